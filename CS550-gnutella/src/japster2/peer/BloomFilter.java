@@ -0,0 +1,142 @@
+package japster2.peer;
+
+/**
+ * Bloom filter of strings, used as query routing table. A peer summarizes the names of the files it can answer
+ * queries for in a BloomFilter and sends it to its neighbors, which forward a query to the peer only if the filter
+ * might contain the name searched.
+ * <br>
+ * The filter is a bit array of a power of two size. Each key sets the bits of its positions, which are computed
+ * with double hashing from a 64 bit FNV-1a hash of the key. mightContain() can return false positives but never
+ * false negatives.
+ * @author jota
+ *
+ */
+public class BloomFilter {
+
+	private long[] words;
+	private int bits;
+	private int hashes;
+
+	/**
+	 * Create an empty filter
+	 * @param bits size of the filter in bits, must be a power of two and at least 64
+	 * @param hashes number of bits set per key
+	 */
+	public BloomFilter(int bits, int hashes) {
+		if ( bits < 64 || Integer.bitCount(bits) != 1 )
+			throw new IllegalArgumentException("Filter size must be a power of two");
+		this.bits = bits;
+		this.hashes = hashes;
+		words = new long[bits / 64];
+	}
+
+	/**
+	 * Create a filter from its words
+	 * @param words bit array of the filter, not copied
+	 * @param hashes number of bits set per key
+	 */
+	public BloomFilter(long[] words, int hashes) {
+		this(words.length * 64, hashes);
+		this.words = words;
+	}
+
+	/**
+	 * Create a copy of a filter
+	 * @param other
+	 */
+	public BloomFilter(BloomFilter other) {
+		this(other.words.clone(), other.hashes);
+	}
+
+	/**
+	 * Add a key to the filter
+	 * @param key
+	 */
+	public void add(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for ( int i = 0; i < hashes; i++ ) {
+			int bit = (h1 + i * h2) & (bits - 1);
+			words[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Check if a key might have been added to the filter
+	 * @param key
+	 * @return false if the key was never added, true if it might have been
+	 */
+	public boolean mightContain(String key) {
+		long hash = hash(key);
+		int h1 = (int) hash;
+		int h2 = (int) (hash >>> 32) | 1;
+		for ( int i = 0; i < hashes; i++ ) {
+			int bit = (h1 + i * h2) & (bits - 1);
+			if ( (words[bit >>> 6] & (1L << bit)) == 0 )
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add every key of another filter of the same size to this filter
+	 * @param other
+	 */
+	public void or(BloomFilter other) {
+		for ( int i = 0; i < words.length; i++ )
+			words[i] |= other.words[i];
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of the characters of a key
+	 */
+	private static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for ( int i = 0; i < key.length(); i++ ) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Get the bit array of the filter. The array is shared and must not be modified.
+	 * @return
+	 */
+	public long[] getWords() {
+		return words;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	/**
+	 * Fraction of bits set, the false positive rate of the filter is about fill^hashes
+	 * @return fill ratio between 0 and 1
+	 */
+	public double getFill() {
+		return (double) count() / bits;
+	}
+
+	/**
+	 * Number of bits set
+	 * @return
+	 */
+	public int count() {
+		int set = 0;
+		for ( long word : words )
+			set += Long.bitCount(word);
+		return set;
+	}
+
+	@Override
+	public String toString() {
+		return bits + " bits, " + count() + " set" + String.format(" (%.2f%%)", getFill() * 100);
+	}
+}
@@ -11,6 +11,71 @@ public class Const {
 	
 	public static final int BUFFER_SIZE = 1024*1024;
 	public static final int FILE_SERVER_WAIT_TIME = 20000;
+	public static final boolean ZERO_COPY = true;
+	public static final int TRANSFER_PORT = 0;
+	public static final int TRANSFER_BACKLOG = 1024;
+	public static final int TRANSFER_BUFFER_SIZE = 64*1024;
+	
+	public static final String PARTIAL_SUFFIX = ".part";
+	public static final int DOWNLOAD_RETRIES = 3;
+	public static final int DOWNLOAD_RETRY_WAIT = 1000;
+	
+	public static final long SWARM_CHUNK_SIZE = 4*1024*1024;
+	public static final int SWARM_MAX_FAILURES = 3;
+	public static final String SWARM_SUFFIX = ".swarm";
+	
+	public static final int STUB_CACHE_SIZE = 256;
+	
+	public static final int POLL_THREADS = 8;
+	public static final int BATCH_SIZE = 32;
+	public static final long BATCH_DELAY = 200;
+	public static final int SEND_QUEUE_LIMIT = 10000;
+	public static final long SEND_DEADLINE = 5000;
+	public static final long DELIVER_TIMEOUT = 10000;
+	public static final int HIT_CACHE_SIZE = 10000;
+	public static final long HIT_CACHE_TTL = 10000;
+	public static final long HIT_CACHE_NEGATIVE_WAIT = 2000;
+	public static final long HIT_CACHE_NEGATIVE_TTL = 10000;
+	public static final int NIO_CALL_TIMEOUT = 30000;
+	public static final int NIO_MAX_FRAME = 16*1024*1024;
+	public static final int REFRESH_THREADS = 4;
+	public static final int REFRESH_PERIOD = 5000;
+	public static final long REFRESH_MAX_BACKOFF = 600000;
+	public static final int REFRESH_MAX_FAILURES = 10;
+	public static final int QRT_BITS = 128*1024;
+	public static final int QRT_HASHES = 4;
+	public static final int QRT_UPDATE_PERIOD = 1000;
+	public static final int QRT_THREADS = 4;
+	public static final double QRT_PATCH_LIMIT = 0.5;
+	public static final int MAX_LEAVES = 30;
+	public static final int LEAF_ULTRAPEERS = 2;
+	public static final long LEAF_REFRESH = 30000;
+	public static final long LEAF_TIMEOUT = 90000;
+	public static final int CHANNEL_MAX_FAILURES = 3;
+	public static final int DQ_START_TTL = 1;
+	public static final int DQ_TARGET_RESULTS = 10;
+	public static final long DQ_HOP_LATENCY = 20;
+	public static final long DQ_MIN_WAIT = 100;
+	public static final long DQ_MAX_WAIT = 5000;
+	public static final double DQ_WAIT_FACTOR = 2.0;
+	public static final int WALKERS = 16;
+	public static final int WALK_TTL = 1024;
+	public static final int WALK_CHECK = 4;
+	public static final long WALK_TIMEOUT = 10000;
+	public static final int WALK_THREADS = 4;
+	public static final int WALK_QUEUE_SIZE = 1000;
+	public static final boolean WALK_DEGREE_BIAS = true;
+	public static final long WATCH_DEBOUNCE = 500;
+	public static final long WATCH_MAX_DELAY = 5000;
+	public static final String META_FILE = ".japster-meta";
+	public static final int META_BUFFER_SIZE = 64*1024;
+	public static final long META_FLUSH_PERIOD = 1000;
+	public static final long META_COMPACT_MIN = 10000;
+	public static final int META_COMPACT_RATIO = 2;
+	public static final String HASH_ALGORITHM = "SHA-256";
+	public static final int HASH_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int HASH_BATCH = 16;
+	public static final int HASH_BUFFER_SIZE = 64*1024;
 	
 	public static final String PEER_SERVICE_NAME = "PeerFileServer";
 	public static final int PEER_SERVICE_PORT = 34993;
@@ -20,5 +85,14 @@ public class Const {
 	public static final int DEFAULT_TTR = 30; 
 	
 	public static final int UPDATE_TTR_PERIOD = 1000;
+	public static final double TTR_JITTER = 0.2;
+	
+	public static final int DISPATCH_WORKERS = 16;
+	public static final int DISPATCH_QUEUE_SIZE = 10000;
+	public static final int DISPATCH_LOCAL_LIMIT = 50000;
+	
+	public static final int ROUTE_LIFETIME = 120000;
+	public static final int ROUTE_CAPACITY = 200000;
+	public static final int ROUTE_BUCKETS = 4;
 
 }
@@ -0,0 +1,161 @@
+package japster2.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Computes the content hashes of the files of a peer on a fork/join pool.
+ * <br>
+ * A list of FileLocations is split in halves until each task has at most Const.HASH_BATCH files, so workers that
+ * finish their files early steal the remaining tasks of the others and large and small files even out. Each file is
+ * read with its own buffer and MessageDigest.
+ * <br>
+ * The hash is only set on a FileLocation if the size and modification time of the file did not change while it was
+ * read, so a hash always belongs to the size and modification time stored next to it. A file that changes while it
+ * is hashed keeps a null hash and is hashed again the next time.
+ * @author jota
+ *
+ */
+public class ContentHasher {
+
+	private ForkJoinPool pool;
+
+	//Counters
+	private AtomicLong files;
+	private AtomicLong bytes;
+	private AtomicLong failures;
+
+	/**
+	 * A range of the files to hash
+	 */
+	private static class HashTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private ContentHasher hasher;
+		private File directory;
+		private List<FileLocation> locations;
+		private Consumer<FileLocation> done;
+
+		private HashTask(ContentHasher hasher, File directory, List<FileLocation> locations, Consumer<FileLocation> done) {
+			this.hasher = hasher;
+			this.directory = directory;
+			this.locations = locations;
+			this.done = done;
+		}
+
+		@Override
+		protected void compute() {
+			int size = locations.size();
+			if ( size > Const.HASH_BATCH ) {
+				invokeAll(new HashTask(hasher, directory, locations.subList(0, size / 2), done),
+						new HashTask(hasher, directory, locations.subList(size / 2, size), done));
+				return;
+			}
+			for ( FileLocation loc : locations ) {
+				if ( hasher.hash(directory, loc) )
+					done.accept(loc);
+			}
+		}
+	}
+
+	/**
+	 * Creates a new ContentHasher
+	 * @param threads number of threads of the pool
+	 */
+	public ContentHasher(int threads) {
+		pool = new ForkJoinPool(threads);
+		files = new AtomicLong();
+		bytes = new AtomicLong();
+		failures = new AtomicLong();
+	}
+
+	/**
+	 * Hash a list of files in parallel. Blocks until every file is hashed
+	 * @param directory shared directory the names of the FileLocations are relative to
+	 * @param locations FileLocations of the files
+	 * @param done called for each FileLocation that got a hash, on the thread that hashed it
+	 */
+	public void hash(File directory, ArrayList<FileLocation> locations, Consumer<FileLocation> done) {
+		if ( !locations.isEmpty() )
+			pool.invoke(new HashTask(this, directory, locations, done));
+	}
+
+	/**
+	 * Hash one file and set the hash of its FileLocation
+	 * @return true if the hash was set
+	 */
+	private boolean hash(File directory, FileLocation loc) {
+		File file = new File(directory, loc.getName());
+		long size = loc.getSize();
+		long modified = loc.getModified();
+		try {
+			byte[] hash = hash(file);
+			if ( file.length() != size || file.lastModified() != modified ||
+					loc.getSize() != size || loc.getModified() != modified )
+				return false;
+			loc.setHash(hash);
+			files.incrementAndGet();
+			bytes.addAndGet(size);
+			return true;
+		} catch (IOException e) {
+			failures.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Compute the content hash of a file
+	 * @param file
+	 * @return hash computed with Const.HASH_ALGORITHM
+	 * @throws IOException
+	 */
+	public static byte[] hash(File file) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(Const.HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(Const.HASH_BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			while ( channel.read(buffer) >= 0 ) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Format a hash as a hexadecimal string
+	 * @param hash
+	 * @return
+	 */
+	public static String toHex(byte[] hash) {
+		StringBuilder str = new StringBuilder(hash.length * 2);
+		for ( byte b : hash )
+			str.append(String.format("%02x", b));
+		return str.toString();
+	}
+
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		return files.get() + " files, " + bytes.get() / (1024 * 1024) + "MB hashed, " + failures.get() + " failed";
+	}
+}
@@ -0,0 +1,168 @@
+package japster2.peer;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Search that expands its ttl until enough results are found, instead of flooding the whole network with
+ * Const.TTL at once.
+ * <br>
+ * Each round sends a new query with a larger ttl and waits for its results. The first round uses
+ * Const.DQ_START_TTL. A round that found nothing doubles the ttl, a round that found some results increases it
+ * by one. The search stops as soon as targetResults distinct results have arrived, or after the round with the
+ * maximum ttl.
+ * <br>
+ * A round waits for about the time a query needs to travel its ttl and come back. This time is estimated from the
+ * latency per hop measured by the peer on previous results (see Peer.getHopLatency()), and is kept between
+ * Const.DQ_MIN_WAIT and Const.DQ_MAX_WAIT milliseconds.
+ * <br>
+ * Every round uses a new MessageId, since peers reached by the previous round would drop a query they have seen
+ * already. Results found again by a later round are not counted twice nor added twice to the search results of
+ * the peer.
+ * @author jota
+ *
+ */
+public class DynamicSearch extends Thread {
+
+	private Peer peer;
+	private String fileName;
+	private int targetResults;
+	private int maxTtl;
+
+	//Distinct results found so far
+	private ArrayList<FileLocation> results;
+
+	//Time (System.nanoTime()) each round was sent, by MessageId of the round
+	private ConcurrentHashMap<MessageId,Long> rounds;
+
+	private volatile int ttl;
+	private volatile boolean finished;
+	private long started;
+	private volatile long ended;
+
+	/**
+	 * Creates a new DynamicSearch, start() sends the first round
+	 * @param peer peer doing the search
+	 * @param fileName name of the file searched
+	 * @param targetResults number of results after which the search stops
+	 * @param maxTtl maximum ttl of the last round
+	 */
+	public DynamicSearch(Peer peer, String fileName, int targetResults, int maxTtl) {
+		super("search-" + fileName);
+		setDaemon(true);
+		this.peer = peer;
+		this.fileName = fileName;
+		this.targetResults = targetResults;
+		this.maxTtl = maxTtl;
+		results = new ArrayList<FileLocation>();
+		rounds = new ConcurrentHashMap<MessageId,Long>();
+	}
+
+	/**
+	 * Record a result of one of the rounds of the search
+	 * @param msgId MessageId of the round
+	 * @param location FileLocation found
+	 * @param hops number of hops the query and its hitquery travelled each way
+	 * @return true if the result was not found before by this search
+	 */
+	public boolean hit(MessageId msgId, FileLocation location, long hops) {
+		Long sent = rounds.get(msgId);
+		if ( sent != null && hops > 0 )
+			peer.updateHopLatency((System.nanoTime() - sent) / (2 * hops));
+		synchronized(this) {
+			for ( FileLocation result : results ) {
+				if ( result.equals(location) && result.getVersion() == location.getVersion() )
+					return false;
+			}
+			results.add(location);
+			if ( results.size() >= targetResults )
+				notifyAll();
+			return true;
+		}
+	}
+
+	@Override
+	public void run() {
+		started = System.nanoTime();
+		ttl = Math.min(Const.DQ_START_TTL, maxTtl);
+		try {
+			while ( true ) {
+				int before = getResultCount();
+				MessageId msgId = peer.sendQuery(fileName, ttl, null, this);
+				rounds.put(msgId, System.nanoTime());
+
+				//wait for the results of the round, or until there are enough results
+				long wait = Math.max(Const.DQ_MIN_WAIT * 1000000L,
+						Math.min(Const.DQ_MAX_WAIT * 1000000L, (long) (Const.DQ_WAIT_FACTOR * 2 * ttl * peer.getHopLatency())));
+				long deadline = System.nanoTime() + wait;
+				synchronized(this) {
+					long remaining;
+					while ( results.size() < targetResults && (remaining = deadline - System.nanoTime()) > 0 )
+						wait(remaining / 1000000L, (int) (remaining % 1000000L));
+				}
+
+				if ( getResultCount() >= targetResults || ttl >= maxTtl )
+					break;
+				//expand the ring, faster if the round found nothing
+				ttl = getResultCount() == before ? Math.min(maxTtl, ttl * 2) : Math.min(maxTtl, ttl + 1);
+			}
+		} catch (RemoteException e) {
+			System.out.println("Search failed");
+		} catch (InterruptedException e) {
+			//search cancelled
+		} finally {
+			ended = System.nanoTime();
+			finished = true;
+			peer.searchFinished(this);
+		}
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Get the MessageIds of the rounds sent so far
+	 * @return
+	 */
+	public ArrayList<MessageId> getRounds() {
+		return new ArrayList<MessageId>(rounds.keySet());
+	}
+
+	public synchronized int getResultCount() {
+		return results.size();
+	}
+
+	public synchronized ArrayList<FileLocation> getResults() {
+		return new ArrayList<FileLocation>(results);
+	}
+
+	/**
+	 * Get the ttl of the last round sent
+	 * @return
+	 */
+	public int getTtl() {
+		return ttl;
+	}
+
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * Get the time the search finished
+	 * @return System.nanoTime() when the search finished, meaningless if it did not finish yet
+	 */
+	public long getEndTime() {
+		return ended;
+	}
+
+	@Override
+	public String toString() {
+		return "\"" + fileName + "\": " + getResultCount() + "/" + targetResults + " results" +
+				", " + rounds.size() + " rounds" +
+				", last ttl " + ttl + "/" + maxTtl +
+				(finished ? ", finished in " + (ended - started) / 1000000 + " ms" : ", running");
+	}
+}
@@ -1,16 +1,23 @@
 package japster2.peer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
 
 import japster2.peer.Const;
 
 /**
  * Creates a thread that will attempt to connect to a another Peer and download
  * a file from it. 
+ * <br>
+ * The file is first downloaded to a hidden partial file next to the final file (see partialFile()), which is 
+ * renamed once the download completes. If the download fails the partial file is kept, so the next download of the 
+ * same version of the file resumes from the last byte received instead of starting over. The thread itself retries
+ * failed transfers up to Const.DOWNLOAD_RETRIES times, obtaining a new ticket from the serving peer for each retry.
  * @author jota
  *
  */
@@ -23,7 +30,7 @@ public class FileDownloaderThread extends Thread {
 	
 	//Socket info 
 	private String address; 
-	private int port;
+	private TransferTicket ticket;
 	
 	//Determine if progress is printed to console
 	private boolean quiet; 
@@ -35,39 +42,45 @@ public class FileDownloaderThread extends Thread {
 	private FileLocation location;
 	
 	//IO resources 
-	private FileOutputStream output = null;
-	private Socket socket = null;
-	private InputStream input = null;
+	private RandomAccessFile output = null;
+	private TransferClient client = null;
 	
 	/**
 	 * Creates a new FileDownloaderThread object
 	 * @param peer peer object doing the download
 	 * @param fileName String representing the full name that will be used to create the file on this peer 
-	 * @param address String representation of the peer that will provide the file
-	 * @param port int representing the port where the remote peer is serving the file
+	 * @param ticket TransferTicket returned by obtain() on the peer that will provide the file
 	 * @param FileLocation location of the file being downloaded
 	 * @param quiet Wont print progress if true
 	 */
-	public FileDownloaderThread(Peer peer, String newFileName, int port, FileLocation location, boolean quiet) { 
+	public FileDownloaderThread(Peer peer, String newFileName, TransferTicket ticket, FileLocation location, boolean quiet) { 
 		this.fileName = newFileName;
 		this.fileSize = location.getSize(); 
 		this.address = location.getLocationAddress().getHostString(); 
-		this.port = port;
+		this.ticket = ticket;
 		this.location = location;
 		this.quiet = quiet; 
 		this.peer = peer; 
 	}
 	
+	/**
+	 * Get the partial file used while downloading a file. The partial file is hidden and its name includes the 
+	 * version, so a partial download is only resumed for the same version of the file.
+	 * @param fileName full name of the file being downloaded
+	 * @param version version of the file being downloaded
+	 * @return File used to store the partial download
+	 */
+	public static File partialFile(String fileName, int version) {
+		File file = new File(fileName);
+		return new File(file.getParentFile(), "." + file.getName() + "." + version + Const.PARTIAL_SUFFIX);
+	}
+	
 	/**
 	 * Close all resources used by the thread.
 	 */
 	public void cleanup() {
-		if( socket != null ) {
-			try {
-				socket.close();
-			} catch (IOException e) {
-				System.out.println("Error closing resource");
-			}
+		if( client != null ) {
+			client.close();
 		}
 		if( output != null ){
 			try {
@@ -76,13 +89,8 @@ public class FileDownloaderThread extends Thread {
 				System.out.println("Error closing resource");
 			}
 		}
-		if( input != null ){
-			try {
-				input.close();
-			} catch (IOException e) {
-				System.out.println("Error closing resource");
-			}
-		} 	
+		client = null;
+		output = null;
 	}
 	
 	private long progress;
@@ -102,41 +110,63 @@ public class FileDownloaderThread extends Thread {
 			System.out.println("Downloading " + name + ": " + progress + "% downloaded");
 		}
 	}
-
+	
 	@Override
 	public void run() {
-		try {
-
-			//Get IO resources
-			output = new FileOutputStream(new File(fileName));
-			socket = new Socket(address,port);
-			input = socket.getInputStream();
-			byte buffer[] = new byte[Const.BUFFER_SIZE];
-
-			//Read file from socket while updating progress variable
-			int len = input.read(buffer);
-			long downloaded = 0; 
-			progress = -1;
-			printProgress(downloaded);
-			while(len>0) {
-				output.write(buffer,0,len);
-				downloaded += len;
-				printProgress(downloaded);
-				len = input.read(buffer);
-			}
+		File partial = partialFile(fileName, location.getVersion());
+		long size = location.getSize();
+		progress = -1;
 		
-			output.flush();
-			
-			if( !quiet)
-				System.out.println("Download success (" + fileName + ")");
-			
-			//Record FileLocation on remote FileLocations table 
-			peer.addRemoteFile(location);
-		} catch (IOException e) {
-			System.out.println("Download failed (" + fileName + ")");
-			e.printStackTrace();
-		} finally {
-			cleanup();
+		for( int attempt = 0; attempt <= Const.DOWNLOAD_RETRIES; attempt++ ) {
+			try {
+				//obtain a new ticket for each retry, the previous one was used already 
+				if ( attempt > 0 ) {
+					Thread.sleep(Const.DOWNLOAD_RETRY_WAIT * attempt);
+					ticket = peer.getPeerNodeCache().call(location.getLocationAddress(), 
+							server -> server.obtain(location.getName()));
+				}
+				
+				//Resume from the end of the partial file
+				output = new RandomAccessFile(partial, "rw");
+				long offset = output.length();
+				if ( offset > size ) {
+					offset = 0;
+					output.setLength(0);
+				}
+				if ( offset > 0 && !quiet )
+					System.out.println("Resuming download at byte " + offset + " (" + fileName + ")");
+				
+				//Read the rest of the file while updating progress
+				if ( offset < size ) {
+					final long start = offset;
+					client = new TransferClient(address, ticket);
+					client.fetch(offset, size - offset, output.getChannel(), 
+							received -> printProgress(start + received));
+				}
+				
+				if ( output.length() != size )
+					throw new IOException("Incomplete transfer");
+				cleanup();
+				
+				//Move the completed file to its final name
+				Files.move(partial.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+				
+				if( !quiet)
+					System.out.println("Download success (" + fileName + ")");
+				
+				//Record FileLocation on remote FileLocations table 
+				peer.addRemoteFile(location);
+				return;
+			} catch (RemoteException | NotBoundException e) {
+				System.out.println("Download failed, can't obtain file (" + fileName + ")");
+			} catch (IOException e) {
+				System.out.println("Download failed (" + fileName + "): " + e.getMessage());
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				cleanup();
+			}
 		}
+		System.out.println("Download failed, partial file kept for resume (" + fileName + ")");
 	}
 }
@@ -2,6 +2,7 @@ package japster2.peer;
 
 import java.io.Serializable;
 import java.net.InetSocketAddress;
+import java.util.Arrays;
 
 /**
  * A FileLocation represents a file which is part of the P2P system. It stores an InetSocketAddress with the information
@@ -15,6 +16,9 @@ import java.net.InetSocketAddress;
  * - Remote FileLocations: for each remote file it has downloaded (i.e. Files that have been downloaded from other peers).  These FileLocations 
  * are received by peers when they download a file from another peer. They point to the peer that provided the file. 
  * - Result FileLocatons: for each result that the peer has received in response of a query. 
+ * 
+ * FileLocations are identified by address and name, which is how the file tables find them. The content hash 
+ * computed by the origin peer tells whether two FileLocations hold the same bytes, see sameContent().
  * @author jota
  *
  */
@@ -31,11 +35,25 @@ public class FileLocation implements Serializable {
 	private long fileSize; 
 	private int version; 
 	
+	//false if the file is a copy served by a peer that downloaded it, true if it is served by the peer where it was
+	//created
+	private boolean origin;
+	
 	//Consistency attributes
 	private boolean valid;
 	private int ttr;
 	private boolean expired;
 	
+	//System.nanoTime() at which the TTR expires, only meaningful on the peer that scheduled it
+	private transient long deadline;
+	private transient boolean scheduled;
+	
+	//Hash of the content of the file computed with Const.HASH_ALGORITHM, null until the origin peer hashes the file
+	private byte[] hash;
+	
+	//Last modification time of the file on the disk of this peer, only meaningful for local and remote FileLocations
+	private transient long modified;
+	
 	//Timestamp used for performance tests
 	private long timeStamp; 
 	
@@ -55,6 +73,7 @@ public class FileLocation implements Serializable {
 		this.ttr = ttr;
 		expired = false; 
 		valid = true; 
+		origin = true;
 		
 		updateTimeStamp();
 	}
@@ -69,23 +88,35 @@ public class FileLocation implements Serializable {
 	}
 
 	/**
-	 * Decreases the value of TTR. It should be called periodically every UPDATE_TTR_PERIOD seconds
+	 * Mark the TTR as expired. Called by the TtrScheduler when the deadline of the FileLocation passes
 	 * 
 	 *  This should never be called for Local FileLocations since a file is considered to always
 	 *  be up to date at its origin peer 
 	 */
-	public void tickTtr() {
-		//No need to update TTR if already expired
-		if( expired )
-			return;
-		
-		//Decrease TTR 
-		ttr -= Const.UPDATE_TTR_PERIOD/1000;
-		
-		//Check if we are expired 
-		if( ttr <= 0 ) {
-			expired = true;
-		}
+	public void expire() {
+		expired = true;
+	}
+	
+	public long getDeadline() {
+		return deadline;
+	}
+	
+	public void setDeadline(long deadline) {
+		this.deadline = deadline;
+		scheduled = true;
+	}
+	
+	/**
+	 * Get the number of seconds left before the TTR expires
+	 * @return remaining seconds, or the TTR if the expiration has not been scheduled
+	 */
+	public int getRemainingTtr() {
+		if ( !scheduled )
+			return ttr;
+		if ( expired )
+			return 0;
+		long remaining = deadline - System.nanoTime();
+		return (int) Math.max(0, (remaining + 999999999L) / 1000000000L);
 	}
 	
 	public boolean isExpired() {
@@ -112,6 +143,48 @@ public class FileLocation implements Serializable {
 		updateTimeStamp();
 	}
 	
+	/**
+	 * Record a change of the file on disk and increase its version. 
+	 * 
+	 * This method should only be called for Local FileLocations
+	 * @param size new size of the file
+	 * @param modified new modification time of the file
+	 */
+	public void update(long size, long modified) {
+		fileSize = size;
+		this.modified = modified;
+		hash = null;
+		touch();
+	}
+	
+	public long getModified() {
+		return modified;
+	}
+	
+	public void setModified(long modified) {
+		this.modified = modified;
+	}
+	
+	public byte[] getHash() {
+		return hash;
+	}
+	
+	public void setHash(byte[] hash) {
+		this.hash = hash;
+	}
+	
+	/**
+	 * Check if another FileLocation holds the same bytes as this one, no matter its name or address. When either 
+	 * FileLocation has no hash they are only the same content if they have the same name, version and size
+	 * @param other
+	 * @return
+	 */
+	public boolean sameContent(FileLocation other) {
+		if ( hash != null && other.hash != null )
+			return fileSize == other.fileSize && Arrays.equals(hash, other.hash);
+		return fileName.equals(other.fileName) && version == other.version && fileSize == other.fileSize;
+	}
+	
 	public void invalidate() { 
 		valid = false; 
 	}
@@ -120,6 +193,18 @@ public class FileLocation implements Serializable {
 		return valid;
 	}
 	
+	/**
+	 * Check if the file is served by the peer where it was created
+	 * @return false if the FileLocation points to a peer that downloaded the file
+	 */
+	public boolean isOrigin() {
+		return origin;
+	}
+	
+	public void setOrigin(boolean origin) {
+		this.origin = origin;
+	}
+	
 	public long getSize() {
 		return fileSize;
 	}
@@ -135,6 +220,10 @@ public class FileLocation implements Serializable {
 	public void updateTimeStamp() {
 		timeStamp = System.currentTimeMillis();
 	}
+	
+	public void setTimeStamp(long timeStamp) {
+		this.timeStamp = timeStamp;
+	}
 
 	@Override
 	public String toString() {
@@ -143,7 +232,9 @@ public class FileLocation implements Serializable {
 				locationAddress.getPort() +
 				"(version " + version + ")" + 
 				"(" + fileSize + "bytes)";
-		str += "(TTR " + ttr + ")";
+		if ( hash != null )
+			str += "(hash " + ContentHasher.toHex(hash).substring(0, 12) + ")";
+		str += "(TTR " + getRemainingTtr() + ")";
 		if (!valid ) {
 			str += "(INVALID)";
 		} else if ( isExpired() ) {
@@ -0,0 +1,121 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of FileLocations indexed by file name. Used for the local and remote FileLocations of a peer.
+ * <br>
+ * The table keeps the FileLocations in insertion order, so they can be listed and selected by index from the 
+ * console, and also keeps a hash index by name so that queries and polls can find a file without scanning the
+ * whole table. An InvertedIndex of the names is kept up to date on every change to answer keyword queries. 
+ * Lookups by name do not take any lock, modifications are synchronized.
+ * <br>
+ * A table holds at most one FileLocation per file name.
+ * @author jota
+ *
+ */
+public class FileTable {
+
+	//FileLocations in insertion order
+	private ArrayList<FileLocation> files;
+
+	//Index by file name
+	private ConcurrentHashMap<String,FileLocation> index;
+	
+	//Index of the names by keyword
+	private InvertedIndex keywords;
+
+	//Incremented on every modification, used to find out if the table changed
+	private volatile long modCount;
+
+	public FileTable() {
+		files = new ArrayList<FileLocation>();
+		index = new ConcurrentHashMap<String,FileLocation>();
+		keywords = new InvertedIndex();
+	}
+
+	/**
+	 * Add a FileLocation to the table. If the table already has a FileLocation with the same name it is replaced
+	 * @param loc FileLocation to add
+	 * @return the FileLocation that was replaced or null
+	 */
+	public synchronized FileLocation put(FileLocation loc) {
+		FileLocation old = index.put(loc.getName(), loc);
+		if ( old != null ) {
+			files.set(files.indexOf(old), loc);
+		} else {
+			files.add(loc);
+			keywords.add(loc.getName());
+		}
+		modCount++;
+		return old;
+	}
+
+	/**
+	 * Find a FileLocation by name
+	 * @param name name of the file
+	 * @return the FileLocation or null if the file is not on the table
+	 */
+	public FileLocation get(String name) {
+		return index.get(name);
+	}
+
+	/**
+	 * Find the FileLocations whose names contain every keyword of a query
+	 * @param query keywords separated by spaces or punctuation
+	 * @return list of FileLocations, empty if no name matches
+	 */
+	public ArrayList<FileLocation> search(String query) {
+		ArrayList<FileLocation> matches = new ArrayList<FileLocation>();
+		for ( String name : keywords.search(query) ) {
+			FileLocation loc = index.get(name);
+			if ( loc != null )
+				matches.add(loc);
+		}
+		return matches;
+	}
+	
+	/**
+	 * Get the keywords of the names in the table
+	 * @return
+	 */
+	public ArrayList<String> tokens() {
+		return keywords.tokens();
+	}
+
+	/**
+	 * Remove a FileLocation from the table. Nothing is removed if the FileLocation stored under the same name is
+	 * a different object
+	 * @param loc FileLocation to remove
+	 * @return true if the FileLocation was removed
+	 */
+	public synchronized boolean remove(FileLocation loc) {
+		if ( !index.remove(loc.getName(), loc) )
+			return false;
+		files.remove(files.indexOf(loc));
+		keywords.remove(loc.getName());
+		modCount++;
+		return true;
+	}
+
+	/**
+	 * Get a copy of the FileLocations in the table
+	 * @return list of FileLocations in insertion order
+	 */
+	public synchronized ArrayList<FileLocation> list() {
+		return new ArrayList<FileLocation>(files);
+	}
+
+	public int size() {
+		return index.size();
+	}
+
+	/**
+	 * Get the number of modifications made to the table so far
+	 * @return
+	 */
+	public long getModCount() {
+		return modCount;
+	}
+}
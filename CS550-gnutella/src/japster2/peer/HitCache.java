@@ -0,0 +1,231 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the query results that were routed through a peer, keyed by file name. Used to answer repeated queries
+ * for popular files without flooding them through the network again.
+ * <br>
+ * Entries are positive or negative. A positive entry holds the FileLocations seen on hitquery messages for the file
+ * and lives for Const.HIT_CACHE_TTL milliseconds, or less if the TTR of one of its FileLocations is shorter. A
+ * negative entry records that a query for the file was forwarded and no hit came back within
+ * Const.HIT_CACHE_NEGATIVE_WAIT milliseconds; it is used until Const.HIT_CACHE_NEGATIVE_TTL milliseconds after the
+ * query, and only for queries that would not travel further than the query that produced it.
+ * <br>
+ * An invalidate message for a file removes its cached results and makes the cache ignore hits with older versions
+ * that are still on their way back, and a hit with a newer version of a file replaces the older FileLocations, so
+ * the cache never answers with a version older than the one announced by push mode.
+ * @author jota
+ *
+ */
+public class HitCache {
+
+	/**
+	 * Result of a lookup
+	 */
+	public enum Result { MISS, HIT, NEGATIVE }
+
+	/**
+	 * Cached results for a file name
+	 */
+	private static class Entry {
+		//FileLocations found, empty for negative entries. Replaced on every update
+		private volatile ArrayList<FileLocation> hits = new ArrayList<FileLocation>();
+		//time (System.nanoTime()) when the last query for the file was forwarded and its ttl
+		private volatile long queried;
+		private volatile long queryTtl;
+		//true if a hit arrived after the last query was forwarded
+		private volatile boolean answered;
+		//time when the positive results expire
+		private volatile long expires;
+		//oldest version accepted, raised by invalidate messages
+		private volatile int minVersion;
+
+		private Entry() {
+			long now = System.nanoTime();
+			expires = now;
+			queried = now - Const.HIT_CACHE_NEGATIVE_TTL * 1000000L - 1;
+		}
+	}
+
+	private ConcurrentHashMap<String,Entry> entries;
+	private int capacity;
+
+	//Counters
+	private AtomicLong hits;
+	private AtomicLong negativeHits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+
+	/**
+	 * Create a new HitCache
+	 * @param capacity maximum number of file names cached
+	 */
+	public HitCache(int capacity) {
+		this.capacity = capacity;
+		entries = new ConcurrentHashMap<String,Entry>();
+		hits = new AtomicLong();
+		negativeHits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Look up the results for a query
+	 * @param fileName file being searched
+	 * @param ttl ttl of the query
+	 * @param results receives the cached FileLocations on a HIT
+	 * @return HIT if there are cached results, NEGATIVE if the file was recently searched without results, MISS
+	 * otherwise
+	 */
+	public Result lookup(String fileName, long ttl, ArrayList<FileLocation> results) {
+		Entry entry = entries.get(fileName);
+		long now = System.nanoTime();
+		if ( entry != null ) {
+			ArrayList<FileLocation> cached = entry.hits;
+			if ( !cached.isEmpty() && now - entry.expires < 0 ) {
+				results.addAll(cached);
+				hits.incrementAndGet();
+				return Result.HIT;
+			}
+			long age = now - entry.queried;
+			if ( cached.isEmpty() && !entry.answered && ttl <= entry.queryTtl &&
+					age > Const.HIT_CACHE_NEGATIVE_WAIT * 1000000L &&
+					age < Const.HIT_CACHE_NEGATIVE_TTL * 1000000L ) {
+				negativeHits.incrementAndGet();
+				return Result.NEGATIVE;
+			}
+		}
+		misses.incrementAndGet();
+		return Result.MISS;
+	}
+
+	/**
+	 * Record that a query for a file was forwarded to the neighbors. If no hit arrives the entry becomes negative
+	 * @param fileName
+	 * @param ttl ttl the query was forwarded with
+	 */
+	public void queried(String fileName, long ttl) {
+		Entry entry = entry(fileName);
+		if ( entry == null )
+			return;
+		synchronized(entry) {
+			//expired results are dropped so the entry can become negative
+			if ( System.nanoTime() - entry.expires >= 0 )
+				entry.hits = new ArrayList<FileLocation>();
+			entry.queried = System.nanoTime();
+			entry.queryTtl = ttl;
+			entry.answered = false;
+		}
+	}
+
+	/**
+	 * Record a hit routed through this peer
+	 * @param fileName
+	 * @param location FileLocation carried by the hitquery
+	 */
+	public void hit(String fileName, FileLocation location) {
+		Entry entry = entry(fileName);
+		if ( entry == null )
+			return;
+		long now = System.nanoTime();
+		long ttl = Math.min(Const.HIT_CACHE_TTL, location.getTtr() * 1000L) * 1000000L;
+		synchronized(entry) {
+			entry.answered = true;
+			if ( location.getVersion() < entry.minVersion )
+				return;
+			ArrayList<FileLocation> updated = new ArrayList<FileLocation>();
+			//drop expired results
+			if ( now - entry.expires < 0 )
+				updated.addAll(entry.hits);
+			for ( Iterator<FileLocation> it = updated.iterator(); it.hasNext(); ) {
+				FileLocation cached = it.next();
+				//ignore hits older than the cached ones
+				if ( cached.getVersion() > location.getVersion() )
+					return;
+				//replace older versions and the previous hit from the same peer
+				if ( cached.getVersion() < location.getVersion() || cached.equals(location) )
+					it.remove();
+			}
+			updated.add(location);
+			entry.expires = updated.size() == 1 || now + ttl - entry.expires < 0 ? now + ttl : entry.expires;
+			entry.hits = updated;
+		}
+	}
+
+	/**
+	 * Remove the cached results of a file, called when an invalidate message for the file is received
+	 * @param fileName
+	 * @param version new version of the file, hits for older versions are ignored from now on
+	 */
+	public void invalidate(String fileName, int version) {
+		Entry entry = entry(fileName);
+		if ( entry == null )
+			return;
+		synchronized(entry) {
+			if ( !entry.hits.isEmpty() )
+				evictions.incrementAndGet();
+			entry.hits = new ArrayList<FileLocation>();
+			entry.expires = System.nanoTime();
+			entry.minVersion = Math.max(entry.minVersion, version);
+		}
+	}
+
+	/**
+	 * Get or create the entry of a file
+	 * @param fileName
+	 * @return the entry or null if the cache is full
+	 */
+	private Entry entry(String fileName) {
+		Entry entry = entries.get(fileName);
+		if ( entry != null )
+			return entry;
+		if ( entries.size() >= capacity ) {
+			purge();
+			if ( entries.size() >= capacity )
+				return null;
+		}
+		return entries.computeIfAbsent(fileName, k -> new Entry());
+	}
+
+	/**
+	 * Remove entries that can no longer be used
+	 */
+	private void purge() {
+		long now = System.nanoTime();
+		for ( Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+			Entry entry = it.next();
+			if ( now - entry.expires >= 0 && now - entry.queried >= Const.HIT_CACHE_NEGATIVE_TTL * 1000000L ) {
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Fraction of lookups answered from the cache, positive or negative
+	 * @return hit rate between 0 and 1
+	 */
+	public double getHitRate() {
+		long answered = hits.get() + negativeHits.get();
+		long total = answered + misses.get();
+		return total == 0 ? 0 : (double) answered / total;
+	}
+
+	@Override
+	public String toString() {
+		return size() + " names" +
+				", hits " + hits.get() +
+				", negative hits " + negativeHits.get() +
+				", misses " + misses.get() +
+				String.format(", hit rate %.1f%%", getHitRate() * 100) +
+				", evictions " + evictions.get();
+	}
+}
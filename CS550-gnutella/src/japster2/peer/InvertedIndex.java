@@ -0,0 +1,119 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Inverted index from keywords to file names, used to answer keyword queries without scanning every file.
+ * <br>
+ * File names are split into tokens: lowercase runs of letters and digits, so "My_Song-01.mp3" has the tokens
+ * "my", "song", "01" and "mp3". Each token has a posting list with the names of the files that contain it. A
+ * keyword query matches the files that contain every keyword, found by intersecting the posting lists of the
+ * keywords starting from the shortest one.
+ * <br>
+ * Lookups do not take any lock, additions and removals are synchronized.
+ * @author jota
+ *
+ */
+public class InvertedIndex {
+
+	private static final String[] EMPTY = new String[0];
+
+	//Posting list of each token
+	private ConcurrentHashMap<String,Set<String>> postings;
+
+	public InvertedIndex() {
+		postings = new ConcurrentHashMap<String,Set<String>>();
+	}
+
+	/**
+	 * Split a file name or a keyword query into distinct tokens
+	 * @param text
+	 * @return array of tokens, empty if the text has no letters or digits
+	 */
+	public static String[] tokenize(String text) {
+		String[] parts = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+		ArrayList<String> tokens = new ArrayList<String>(parts.length);
+		for ( String part : parts ) {
+			if ( !part.isEmpty() && !tokens.contains(part) )
+				tokens.add(part);
+		}
+		return tokens.toArray(EMPTY);
+	}
+
+	/**
+	 * Add a file name to the posting lists of its tokens
+	 * @param name
+	 */
+	public synchronized void add(String name) {
+		for ( String token : tokenize(name) )
+			postings.computeIfAbsent(token, t -> ConcurrentHashMap.newKeySet()).add(name);
+	}
+
+	/**
+	 * Remove a file name from the posting lists of its tokens
+	 * @param name
+	 */
+	public synchronized void remove(String name) {
+		for ( String token : tokenize(name) ) {
+			Set<String> names = postings.get(token);
+			if ( names == null )
+				continue;
+			names.remove(name);
+			if ( names.isEmpty() )
+				postings.remove(token);
+		}
+	}
+
+	/**
+	 * Find the file names that contain every keyword of a query
+	 * @param keywords keywords separated by spaces or punctuation
+	 * @return list of file names, empty if the query has no keywords
+	 */
+	public ArrayList<String> search(String keywords) {
+		ArrayList<String> matches = new ArrayList<String>();
+		String[] tokens = tokenize(keywords);
+		if ( tokens.length == 0 )
+			return matches;
+
+		//get the posting lists, a keyword without posting list matches nothing
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Set<String>[] lists = new Set[tokens.length];
+		for ( int i = 0; i < tokens.length; i++ ) {
+			lists[i] = postings.get(tokens[i]);
+			if ( lists[i] == null )
+				return matches;
+		}
+
+		//intersect starting from the shortest list
+		Arrays.sort(lists, Comparator.comparingInt(Set::size));
+		for ( String name : lists[0] ) {
+			boolean all = true;
+			for ( int i = 1; i < lists.length && all; i++ )
+				all = lists[i].contains(name);
+			if ( all )
+				matches.add(name);
+		}
+		return matches;
+	}
+
+	/**
+	 * Get the tokens in the index
+	 * @return
+	 */
+	public ArrayList<String> tokens() {
+		return new ArrayList<String>(postings.keySet());
+	}
+
+	/**
+	 * Number of distinct tokens
+	 * @return
+	 */
+	public int size() {
+		return postings.size();
+	}
+}
@@ -0,0 +1,155 @@
+package japster2.peer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of the files shared by the leaves of an ultrapeer, used by the ultrapeer to answer queries for its leaves
+ * so that queries are never forwarded to them.
+ * <br>
+ * Each leaf publishes the FileLocations of all the files it shares, pointing to the leaf, and publishes them again
+ * whenever they change. A publication replaces everything the leaf published before, and everything a leaf
+ * published is dropped when it is detached. The names are also kept on
+ * an InvertedIndex to answer keyword queries. Lookups do not take any lock, publications are synchronized.
+ * @author jota
+ *
+ */
+public class LeafIndex {
+
+	private static final FileLocation[] EMPTY = new FileLocation[0];
+
+	//FileLocations published by each leaf
+	private HashMap<InetSocketAddress,ArrayList<FileLocation>> leaves;
+
+	//FileLocations of every leaf by file name, arrays are replaced on every update
+	private ConcurrentHashMap<String,FileLocation[]> index;
+	
+	//Index of the names by keyword
+	private InvertedIndex keywords;
+
+	//Incremented on every publication, used to find out if the index changed
+	private volatile long modCount;
+
+	public LeafIndex() {
+		leaves = new HashMap<InetSocketAddress,ArrayList<FileLocation>>();
+		index = new ConcurrentHashMap<String,FileLocation[]>();
+		keywords = new InvertedIndex();
+	}
+
+	/**
+	 * Replace the files published by a leaf
+	 * @param leaf address of the leaf
+	 * @param files FileLocations of the files shared by the leaf
+	 */
+	public synchronized void publish(InetSocketAddress leaf, ArrayList<FileLocation> files) {
+		ArrayList<FileLocation> old = leaves.put(leaf, files);
+		if ( old != null ) {
+			for ( FileLocation loc : old )
+				remove(loc);
+		}
+		for ( FileLocation loc : files ) {
+			FileLocation[] current = index.getOrDefault(loc.getName(), EMPTY);
+			if ( current.length == 0 )
+				keywords.add(loc.getName());
+			FileLocation[] updated = new FileLocation[current.length + 1];
+			System.arraycopy(current, 0, updated, 0, current.length);
+			updated[current.length] = loc;
+			index.put(loc.getName(), updated);
+		}
+		modCount++;
+	}
+
+	/**
+	 * Drop every file published by a leaf
+	 * @param leaf address of the leaf
+	 */
+	public synchronized void unpublish(InetSocketAddress leaf) {
+		ArrayList<FileLocation> old = leaves.remove(leaf);
+		if ( old == null )
+			return;
+		for ( FileLocation loc : old )
+			remove(loc);
+		modCount++;
+	}
+
+	/**
+	 * Remove a FileLocation from the index by name
+	 */
+	private void remove(FileLocation loc) {
+		FileLocation[] current = index.get(loc.getName());
+		if ( current == null )
+			return;
+		ArrayList<FileLocation> updated = new ArrayList<FileLocation>(current.length);
+		for ( FileLocation other : current ) {
+			if ( other != loc )
+				updated.add(other);
+		}
+		if ( updated.isEmpty() ) {
+			index.remove(loc.getName());
+			keywords.remove(loc.getName());
+		} else
+			index.put(loc.getName(), updated.toArray(EMPTY));
+	}
+
+	/**
+	 * Find the FileLocations of a file on the leaves
+	 * @param name name of the file
+	 * @return array of FileLocations, empty if no leaf has the file. The array must not be modified.
+	 */
+	public FileLocation[] lookup(String name) {
+		return index.getOrDefault(name, EMPTY);
+	}
+
+	/**
+	 * Find the FileLocations of the files on the leaves whose names contain every keyword of a query
+	 * @param query keywords separated by spaces or punctuation
+	 * @return list of FileLocations, empty if no name matches
+	 */
+	public ArrayList<FileLocation> search(String query) {
+		ArrayList<FileLocation> matches = new ArrayList<FileLocation>();
+		for ( String name : keywords.search(query) ) {
+			for ( FileLocation loc : lookup(name) )
+				matches.add(loc);
+		}
+		return matches;
+	}
+	
+	/**
+	 * Get the keywords of the names of the files on the leaves
+	 * @return
+	 */
+	public ArrayList<String> tokens() {
+		return keywords.tokens();
+	}
+
+	/**
+	 * Get the names of all the files on the leaves
+	 * @return
+	 */
+	public ArrayList<String> names() {
+		return new ArrayList<String>(index.keySet());
+	}
+
+	/**
+	 * Get the number of publications so far
+	 * @return
+	 */
+	public long getModCount() {
+		return modCount;
+	}
+
+	/**
+	 * Number of leaves that have published their files
+	 * @return
+	 */
+	public synchronized int getLeafCount() {
+		return leaves.size();
+	}
+
+	@Override
+	public String toString() {
+		return getLeafCount() + " leaves, " + index.size() + " names";
+	}
+}
@@ -0,0 +1,127 @@
+package japster2.peer;
+
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * A query, hitquery, invalidate or walk message waiting to be sent to a neighbor. Messages going to the same neighbor are
+ * queued on the NeighborChannel of the neighbor and sent together with a single deliver() call. The receiving peer processes each 
+ * message as if it had been received through query(), hitquery() or invalidate(). Walk messages carry a random 
+ * walker of a search started with Peer.walk() and keywords messages carry a keyword query, they can only be 
+ * delivered through deliver().
+ * @author jota
+ *
+ */
+public class Message implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+	
+	//Message types
+	public static final byte QUERY = 0;
+	public static final byte HITQUERY = 1;
+	public static final byte INVALIDATE = 2;
+	public static final byte WALK = 3;
+	public static final byte KEYWORDS = 4;
+	
+	private byte type;
+	private MessageId msgId;
+	private long ttl;
+	private String fileName;
+	
+	//FileLocation carried by hitquery and invalidate messages
+	private FileLocation fileLocation;
+	
+	//Sender of query, invalidate and walk messages
+	private String host;
+	private int port;
+	
+	//Conditions the results of query and keywords messages must meet, null if any result is wanted
+	private QueryFilter filter;
+	
+	//Peer that started the walk, walkers check back with it and results are sent to it directly
+	private InetSocketAddress origin;
+	
+	public Message(byte type, MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port) {
+		this.type = type;
+		this.msgId = msgId;
+		this.ttl = ttl;
+		this.fileName = fileName;
+		this.fileLocation = fileLocation;
+		this.host = host;
+		this.port = port;
+	}
+	
+	public Message(byte type, MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port, 
+			InetSocketAddress origin) {
+		this(type, msgId, ttl, fileName, fileLocation, host, port);
+		this.origin = origin;
+	}
+	
+	public static Message query(MessageId msgId, long ttl, String fileName, String host, int port) {
+		return new Message(QUERY, msgId, ttl, fileName, null, host, port);
+	}
+	
+	public static Message query(MessageId msgId, long ttl, String fileName, String host, int port, QueryFilter filter) {
+		Message message = new Message(QUERY, msgId, ttl, fileName, null, host, port);
+		message.filter = filter;
+		return message;
+	}
+	
+	public static Message keywords(MessageId msgId, long ttl, String keywords, String host, int port, QueryFilter filter) {
+		Message message = new Message(KEYWORDS, msgId, ttl, keywords, null, host, port);
+		message.filter = filter;
+		return message;
+	}
+	
+	public static Message hitquery(MessageId msgId, long ttl, String fileName, FileLocation fileLocation) {
+		return new Message(HITQUERY, msgId, ttl, fileName, fileLocation, null, 0);
+	}
+	
+	public static Message invalidate(MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port) {
+		return new Message(INVALIDATE, msgId, ttl, fileName, fileLocation, host, port);
+	}
+	
+	public static Message walk(MessageId msgId, long ttl, String fileName, String host, int port, InetSocketAddress origin) {
+		return new Message(WALK, msgId, ttl, fileName, null, host, port, origin);
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public MessageId getMsgId() {
+		return msgId;
+	}
+
+	public long getTtl() {
+		return ttl;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	public FileLocation getFileLocation() {
+		return fileLocation;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public QueryFilter getFilter() {
+		return filter;
+	}
+
+	public void setFilter(QueryFilter filter) {
+		this.filter = filter;
+	}
+
+	public InetSocketAddress getOrigin() {
+		return origin;
+	}
+}
@@ -0,0 +1,318 @@
+package japster2.peer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+/**
+ * Binary encoding of the messages exchanged by NioTransport.
+ * <br>
+ * Every message is sent as a frame: a 4 byte length followed by a 1 byte frame type, a 4 byte call id and the 
+ * arguments of the call. The frame type is one of the PeerNode calls, or REPLY/ERROR for the answer to a call. 
+ * Calls that do not return a value (query, hitquery, invalidate, deliver) use call id 0 and are not answered.
+ * <br>
+ * Values are written with DataOutputStream: strings as modified UTF-8, addresses as host and port, optional 
+ * values preceded by a boolean, lists preceded by their number of elements. Frames come from other peers, the
+ * number of elements of a list is checked against the bytes left in the frame before anything is allocated.
+ * @author jota
+ *
+ */
+public class MessageCodec {
+	
+	//Frame types
+	public static final byte REPLY = 0;
+	public static final byte ERROR = 1;
+	public static final byte HELLO = 2;
+	public static final byte QUERY = 3;
+	public static final byte HITQUERY = 4;
+	public static final byte INVALIDATE = 5;
+	public static final byte POLL = 6;
+	public static final byte POLL_BATCH = 7;
+	public static final byte OBTAIN = 8;
+	public static final byte DELIVER = 9;
+	public static final byte UPDATE_ROUTES = 10;
+	public static final byte ATTACH = 11;
+	public static final byte PUBLISH = 12;
+	public static final byte CHECK_WALK = 13;
+	
+	//Size of the frame length, type and call id
+	public static final int HEADER_SIZE = 9;
+	
+	/**
+	 * Read the number of elements of a list and check that the rest of the frame can hold them
+	 * @param in stream over the frame
+	 * @param minSize minimum encoded size of one element in bytes
+	 * @return number of elements
+	 * @throws IOException if the number is negative or larger than the rest of the frame
+	 */
+	public static int readCount(DataInputStream in, int minSize) throws IOException {
+		int count = in.readInt();
+		if ( count < 0 || count > in.available() / minSize )
+			throw new IOException("Invalid element count " + count);
+		return count;
+	}
+	
+	public static void writeMessageId(DataOutputStream out, MessageId msgId) throws IOException {
+		out.writeLong(msgId.getHigh());
+		out.writeLong(msgId.getLow());
+	}
+	
+	public static MessageId readMessageId(DataInputStream in) throws IOException {
+		return new MessageId(in.readLong(), in.readLong());
+	}
+	
+	public static void writeAddress(DataOutputStream out, InetSocketAddress address) throws IOException {
+		out.writeUTF(address.getHostString());
+		out.writeInt(address.getPort());
+	}
+	
+	public static InetSocketAddress readAddress(DataInputStream in) throws IOException {
+		return new InetSocketAddress(in.readUTF(), in.readInt());
+	}
+	
+	/**
+	 * Write a FileLocation, which can be null
+	 * @param out
+	 * @param loc
+	 * @throws IOException
+	 */
+	public static void writeFileLocation(DataOutputStream out, FileLocation loc) throws IOException {
+		out.writeBoolean(loc != null);
+		if ( loc == null )
+			return;
+		writeAddress(out, loc.getLocationAddress());
+		out.writeUTF(loc.getName());
+		out.writeLong(loc.getSize());
+		out.writeInt(loc.getVersion());
+		out.writeInt(loc.getTtr());
+		out.writeBoolean(loc.isValid());
+		out.writeBoolean(loc.isOrigin());
+		out.writeLong(loc.getTimeStamp());
+		byte[] hash = loc.getHash();
+		out.writeByte(hash == null ? 0 : hash.length);
+		if ( hash != null )
+			out.write(hash);
+	}
+	
+	/**
+	 * Read a FileLocation written by writeFileLocation()
+	 * @param in
+	 * @return FileLocation or null
+	 * @throws IOException
+	 */
+	public static FileLocation readFileLocation(DataInputStream in) throws IOException {
+		if ( !in.readBoolean() )
+			return null;
+		FileLocation loc = new FileLocation(readAddress(in), in.readUTF(), in.readLong(), in.readInt(), in.readInt());
+		if ( !in.readBoolean() )
+			loc.invalidate();
+		loc.setOrigin(in.readBoolean());
+		loc.setTimeStamp(in.readLong());
+		int hashLength = in.readUnsignedByte();
+		if ( hashLength > 0 ) {
+			byte[] hash = new byte[hashLength];
+			in.readFully(hash);
+			loc.setHash(hash);
+		}
+		return loc;
+	}
+	
+	/**
+	 * Read a FileLocation written by writeFileLocation() that must be present, like the one of a hitquery or an 
+	 * invalidate
+	 * @param in
+	 * @return FileLocation
+	 * @throws IOException if the FileLocation is null
+	 */
+	public static FileLocation readRequiredFileLocation(DataInputStream in) throws IOException {
+		FileLocation loc = readFileLocation(in);
+		if ( loc == null )
+			throw new IOException("Missing file location");
+		return loc;
+	}
+	
+	public static void writeFileLocations(DataOutputStream out, ArrayList<FileLocation> files) throws IOException {
+		out.writeInt(files.size());
+		for ( FileLocation loc : files )
+			writeFileLocation(out, loc);
+	}
+	
+	public static ArrayList<FileLocation> readFileLocations(DataInputStream in) throws IOException {
+		//a null location is a single boolean
+		int count = readCount(in, 1);
+		ArrayList<FileLocation> files = new ArrayList<FileLocation>(count);
+		for ( int i = 0; i < count; i++ )
+			files.add(readFileLocation(in));
+		return files;
+	}
+	
+	/**
+	 * Write the messages of a deliver() call
+	 * @param out
+	 * @param messages
+	 * @throws IOException
+	 */
+	public static void writeMessages(DataOutputStream out, ArrayList<Message> messages) throws IOException {
+		out.writeInt(messages.size());
+		for ( Message m : messages ) {
+			out.writeByte(m.getType());
+			writeMessageId(out, m.getMsgId());
+			out.writeLong(m.getTtl());
+			out.writeUTF(m.getFileName());
+			if ( m.getType() == Message.QUERY || m.getType() == Message.KEYWORDS )
+				writeQueryFilter(out, m.getFilter());
+			if ( m.getType() == Message.HITQUERY || m.getType() == Message.INVALIDATE )
+				writeFileLocation(out, m.getFileLocation());
+			if ( m.getType() != Message.HITQUERY ) {
+				out.writeUTF(m.getHost());
+				out.writeInt(m.getPort());
+			}
+			if ( m.getType() == Message.WALK )
+				writeAddress(out, m.getOrigin());
+		}
+	}
+	
+	public static ArrayList<Message> readMessages(DataInputStream in) throws IOException {
+		//type, message id, ttl and an empty file name
+		int count = readCount(in, 27);
+		ArrayList<Message> messages = new ArrayList<Message>(count);
+		for ( int i = 0; i < count; i++ ) {
+			byte type = in.readByte();
+			MessageId msgId = readMessageId(in);
+			long ttl = in.readLong();
+			String fileName = in.readUTF();
+			QueryFilter filter = type == Message.QUERY || type == Message.KEYWORDS ? readQueryFilter(in) : null;
+			FileLocation loc = type == Message.HITQUERY || type == Message.INVALIDATE ? readRequiredFileLocation(in) : null;
+			String host = null;
+			int port = 0;
+			if ( type != Message.HITQUERY ) {
+				host = in.readUTF();
+				port = in.readInt();
+			}
+			InetSocketAddress origin = type == Message.WALK ? readAddress(in) : null;
+			Message message = new Message(type, msgId, ttl, fileName, loc, host, port, origin);
+			message.setFilter(filter);
+			messages.add(message);
+		}
+		return messages;
+	}
+	
+	/**
+	 * Write a QueryFilter, which can be null
+	 * @param out
+	 * @param filter
+	 * @throws IOException
+	 */
+	public static void writeQueryFilter(DataOutputStream out, QueryFilter filter) throws IOException {
+		out.writeBoolean(filter != null);
+		if ( filter == null )
+			return;
+		out.writeLong(filter.getMinSize());
+		out.writeLong(filter.getMaxSize());
+		out.writeInt(filter.getMinVersion());
+		out.writeBoolean(filter.isOriginOnly());
+	}
+	
+	public static QueryFilter readQueryFilter(DataInputStream in) throws IOException {
+		if ( !in.readBoolean() )
+			return null;
+		return new QueryFilter(in.readLong(), in.readLong(), in.readInt(), in.readBoolean());
+	}
+	
+	public static void writeTicket(DataOutputStream out, TransferTicket ticket) throws IOException {
+		out.writeInt(ticket.getPort());
+		out.writeLong(ticket.getToken());
+	}
+	
+	public static TransferTicket readTicket(DataInputStream in) throws IOException {
+		return new TransferTicket(in.readInt(), in.readLong());
+	}
+	
+	public static void writeNames(DataOutputStream out, ArrayList<String> names) throws IOException {
+		out.writeInt(names.size());
+		for ( String name : names )
+			out.writeUTF(name);
+	}
+	
+	public static ArrayList<String> readNames(DataInputStream in) throws IOException {
+		//length of an empty string
+		int count = readCount(in, 2);
+		ArrayList<String> names = new ArrayList<String>(count);
+		for ( int i = 0; i < count; i++ )
+			names.add(in.readUTF());
+		return names;
+	}
+	
+	/**
+	 * Write the results of a pollBatch() call, null entries are allowed
+	 * @param out
+	 * @param results
+	 * @throws IOException
+	 */
+	public static void writePollResults(DataOutputStream out, ArrayList<PollResult> results) throws IOException {
+		out.writeInt(results.size());
+		for ( PollResult result : results ) {
+			out.writeBoolean(result != null);
+			if ( result != null ) {
+				out.writeInt(result.getVersion());
+				out.writeInt(result.getTtr());
+			}
+		}
+	}
+	
+	public static ArrayList<PollResult> readPollResults(DataInputStream in) throws IOException {
+		//a null result is a single boolean
+		int count = readCount(in, 1);
+		ArrayList<PollResult> results = new ArrayList<PollResult>(count);
+		for ( int i = 0; i < count; i++ ) {
+			if ( in.readBoolean() )
+				results.add(new PollResult(in.readInt(), in.readInt()));
+			else
+				results.add(null);
+		}
+		return results;
+	}
+	
+	/**
+	 * Write a routing table update, full updates are written without indices
+	 * @param out
+	 * @param update
+	 * @throws IOException
+	 */
+	public static void writeRouteUpdate(DataOutputStream out, RouteUpdate update) throws IOException {
+		out.writeLong(update.getVersion());
+		out.writeLong(update.getBase());
+		out.writeBoolean(update.isAggregate());
+		out.writeInt(update.getDegree());
+		out.writeInt(update.getHashes());
+		out.writeBoolean(update.isFull());
+		long[] words = update.getWords();
+		out.writeInt(words.length);
+		for ( int i = 0; i < words.length; i++ ) {
+			if ( !update.isFull() )
+				out.writeInt(update.getIndices()[i]);
+			out.writeLong(words[i]);
+		}
+	}
+	
+	public static RouteUpdate readRouteUpdate(DataInputStream in) throws IOException {
+		long version = in.readLong();
+		long base = in.readLong();
+		boolean aggregate = in.readBoolean();
+		int degree = in.readInt();
+		int hashes = in.readInt();
+		boolean full = in.readBoolean();
+		//a word, and its index in a patch
+		int count = readCount(in, full ? 8 : 12);
+		int[] indices = full ? null : new int[count];
+		long[] words = new long[count];
+		for ( int i = 0; i < count; i++ ) {
+			if ( !full )
+				indices[i] = in.readInt();
+			words[i] = in.readLong();
+		}
+		return new RouteUpdate(version, base, aggregate, degree, hashes, indices, words);
+	}
+}
@@ -0,0 +1,230 @@
+package japster2.peer;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes incoming messages (query, hitquery, invalidate) on a fixed set of worker threads instead of
+ * creating a new thread for every message.
+ * <br>
+ * Messages wait on a bounded inbound queue. Each message is either forwarded (a query received from a neighbor,
+ * which can be safely shed under load) or local (a message that must not be lost, like a hitquery carrying a
+ * result or an invalidate needed for consistency). When the queue is full the oldest forwarded message is dropped
+ * to make room. If there are no forwarded messages left to drop, a new forwarded message is rejected. Local
+ * messages are admitted past the capacity and are never dropped once queued, but they have their own limit so a
+ * flood of hitqueries or invalidates can not exhaust the memory of the peer: a local message that arrives while
+ * localLimit local messages are waiting is rejected and counted apart from the forwarded ones.
+ * <br>
+ * Workers can optionally be virtual threads when the running JVM supports them.
+ * @author jota
+ *
+ */
+public class MessageDispatcher {
+
+	//Pending messages. Local messages are served first
+	private ArrayDeque<Runnable> localQueue;
+	private ArrayDeque<Runnable> forwardedQueue;
+
+	//Maximum number of queued messages, and of queued local messages
+	private int capacity;
+	private int localLimit;
+
+	//Worker threads
+	private Thread[] workers;
+	private boolean running;
+
+	//Counters
+	private AtomicLong processed;
+	private AtomicLong rejected;
+	private AtomicLong rejectedLocal;
+	private int maxDepth;
+
+	/**
+	 * Creates and starts a new MessageDispatcher
+	 * @param workerCount number of worker threads
+	 * @param capacity maximum number of messages waiting on the inbound queue
+	 * @param localLimit maximum number of local messages waiting on the inbound queue
+	 * @param virtual use virtual threads as workers if the JVM supports them
+	 */
+	public MessageDispatcher(int workerCount, int capacity, int localLimit, boolean virtual) {
+		this.capacity = capacity;
+		this.localLimit = localLimit;
+
+		localQueue = new ArrayDeque<Runnable>();
+		forwardedQueue = new ArrayDeque<Runnable>();
+		processed = new AtomicLong();
+		rejected = new AtomicLong();
+		rejectedLocal = new AtomicLong();
+		maxDepth = 0;
+		running = true;
+
+		//create workers
+		ThreadFactory factory = virtual ? virtualThreadFactory() : null;
+		if ( factory == null )
+			factory = new WorkerFactory();
+		workers = new Thread[workerCount];
+		for( int i = 0; i < workerCount; i++ ) {
+			workers[i] = factory.newThread(new Worker());
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * Queue a message for processing
+	 * @param task Runnable that processes the message
+	 * @param local true if the message must not be dropped once queued
+	 * @return false if the message was rejected because the queue is full
+	 */
+	public synchronized boolean dispatch(Runnable task, boolean local) {
+		if( !running )
+			return false;
+
+		if( local && localQueue.size() >= localLimit ) {
+			rejectedLocal.incrementAndGet();
+			return false;
+		}
+
+		//make room if the queue is full
+		if( localQueue.size() + forwardedQueue.size() >= capacity ) {
+			if ( forwardedQueue.isEmpty() ) {
+				//nothing can be dropped, only local messages are admitted
+				if (!local ) {
+					rejected.incrementAndGet();
+					return false;
+				}
+			} else {
+				//drop the oldest forwarded message
+				forwardedQueue.pollFirst();
+				rejected.incrementAndGet();
+			}
+		}
+
+		if( local )
+			localQueue.addLast(task);
+		else
+			forwardedQueue.addLast(task);
+
+		maxDepth = Math.max(maxDepth, getQueueDepth());
+		notify();
+		return true;
+	}
+
+	/**
+	 * Wait for the next message to process
+	 * @return the next message or null if the dispatcher was shut down
+	 * @throws InterruptedException
+	 */
+	private synchronized Runnable take() throws InterruptedException {
+		while( running && localQueue.isEmpty() && forwardedQueue.isEmpty() )
+			wait();
+		if( !running )
+			return null;
+		Runnable task = localQueue.pollFirst();
+		if ( task == null )
+			task = forwardedQueue.pollFirst();
+		return task;
+	}
+
+	/**
+	 * Stop all workers. Queued messages are discarded
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		localQueue.clear();
+		forwardedQueue.clear();
+		notifyAll();
+	}
+
+	public synchronized int getQueueDepth() {
+		return localQueue.size() + forwardedQueue.size();
+	}
+
+	public synchronized int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	public long getRejectedLocalCount() {
+		return rejectedLocal.get();
+	}
+
+	public long getProcessedCount() {
+		return processed.get();
+	}
+
+	public int getWorkerCount() {
+		return workers.length;
+	}
+
+	@Override
+	public String toString() {
+		return "workers " + getWorkerCount() +
+				", queue depth " + getQueueDepth() + " (max " + getMaxQueueDepth() + "/" + capacity + ")" +
+				", processed " + getProcessedCount() +
+				", rejected " + getRejectedCount() +
+				", local rejected " + getRejectedLocalCount() + " (limit " + localLimit + ")";
+	}
+
+	/**
+	 * Obtain a ThreadFactory that creates virtual threads. Looked up by reflection since virtual threads are not
+	 * available on every JVM this program runs on.
+	 * @return the factory or null if virtual threads are not supported
+	 */
+	private static ThreadFactory virtualThreadFactory() {
+		try {
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			System.out.println("Virtual threads not supported, using platform threads");
+			return null;
+		}
+	}
+
+	/**
+	 * Creates named daemon worker threads so that the dispatcher does not keep the process alive
+	 */
+	private static class WorkerFactory implements ThreadFactory {
+		private AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "dispatcher-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/**
+	 * Takes messages from the queue and processes them until the dispatcher is shut down
+	 */
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while(true) {
+				Runnable task;
+				try {
+					task = take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if ( task == null )
+					return;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.out.println("Failed to process message");
+					e.printStackTrace();
+				}
+				processed.incrementAndGet();
+			}
+		}
+	}
+}
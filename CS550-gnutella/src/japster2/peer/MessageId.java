@@ -0,0 +1,74 @@
+package japster2.peer;
+
+import java.io.Serializable;
+
+/**
+ * Identifies a message sent through the P2P network. A MessageId is a 128 bit value stored as two longs: 
+ * the high part identifies the peer run that created the message (derived from its address, port and start time) 
+ * and the low part is a sequence number incremented for each message created by that peer run.
+ * <br>
+ * MessageIds are immutable and cheap to hash and compare, so they can be used directly as keys of the 
+ * table of seen messages.
+ * @author jota
+ *
+ */
+public final class MessageId implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long high;
+	private final long low;
+
+	public MessageId(long high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	public long getHigh() {
+		return high;
+	}
+
+	public long getLow() {
+		return low;
+	}
+
+	/**
+	 * Compute the high part of the ids created by a peer run
+	 * @param address address of the peer
+	 * @param port port of the peer
+	 * @param peerId start time of the peer, distinguishes between different runs of the same peer
+	 * @return long used as high part of the MessageIds created by the peer
+	 */
+	public static long prefix(String address, int port, long peerId) {
+		//64 bit FNV-1a hash of the address followed by the port and the peerId
+		long hash = 0xcbf29ce484222325L;
+		for ( int i = 0; i < address.length(); i++ ) {
+			hash ^= address.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= port;
+		hash *= 0x100000001b3L;
+		hash ^= peerId;
+		hash *= 0x100000001b3L;
+		return hash;
+	}
+
+	@Override
+	public int hashCode() {
+		long h = high * 31 + low;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof MessageId))
+			return false;
+		MessageId other = (MessageId) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public String toString() {
+		return Long.toHexString(high) + "_" + low;
+	}
+}
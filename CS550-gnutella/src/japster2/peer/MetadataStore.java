@@ -0,0 +1,452 @@
+package japster2.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps the local and remote file tables of a peer on disk, so a restarted peer knows its files, their versions and
+ * which of them are copies downloaded from other peers without scanning the whole shared directory again.
+ * <br>
+ * The store is an append-only log kept in the file Const.META_FILE of the shared directory. Every change to a file
+ * table appends a record, records are buffered and written every Const.META_FLUSH_PERIOD milliseconds by this
+ * thread. Once the log holds more than Const.META_COMPACT_RATIO records per live entry it is rewritten with one
+ * record per entry to a temporary file which then replaces the log. The log is memory mapped to load it, and a log
+ * cut short by a crash is truncated after its last complete record. Records are written with a RandomAccessFile
+ * rather than a FileChannel, since a FileChannel is closed when a thread writing to it is interrupted.
+ * <br>
+ * The content hash of each file is stored with its size and modification time, so a file whose size and
+ * modification time did not change does not have to be hashed again.
+ * <br>
+ * The store also keeps the modification time of every directory of the share as it was when the directory was last
+ * listed. Files can only be created or deleted in a directory by changing its modification time, so on restart only
+ * the directories whose modification time changed have to be listed again.
+ * @author jota
+ *
+ */
+public class MetadataStore extends Thread {
+
+	private static final int MAGIC = 0x4A4D4554;
+	private static final int FORMAT = 2;
+
+	//Record types
+	private static final byte LOCAL = 1;
+	private static final byte REMOTE = 2;
+	private static final byte REMOVE_LOCAL = 3;
+	private static final byte REMOVE_REMOTE = 4;
+	private static final byte DIRECTORY = 5;
+	private static final byte REMOVE_DIRECTORY = 6;
+
+	private Path path;
+	private RandomAccessFile out;
+	private ByteBuffer buffer;
+
+	//Tables persisted on the store
+	private FileTable localFiles;
+	private FileTable remoteFiles;
+
+	//Modification time of each directory of the share when it was last listed, by name relative to the share
+	private HashMap<String,Long> directories;
+
+	//Records in the log and number of compactions
+	private long records;
+	private long compactions;
+
+	/**
+	 * Creates a new MetadataStore for a shared directory. load() must be called before the store is used
+	 * @param directory shared directory
+	 * @param localFiles local file table of the peer
+	 * @param remoteFiles remote file table of the peer
+	 */
+	public MetadataStore(String directory, FileTable localFiles, FileTable remoteFiles) {
+		super("metadata-store");
+		setDaemon(true);
+		path = new File(directory, Const.META_FILE).toPath();
+		this.localFiles = localFiles;
+		this.remoteFiles = remoteFiles;
+		directories = new HashMap<String,Long>();
+		buffer = ByteBuffer.allocate(Const.META_BUFFER_SIZE);
+	}
+
+	/**
+	 * Read the log and add the files recorded on it to the file tables. Nothing is checked against the disk.
+	 * A log with an unknown format is discarded
+	 * @param address address of this peer, used for the local FileLocations
+	 * @param ttr TTR of the local FileLocations
+	 * @return number of files added to the tables
+	 * @throws IOException
+	 */
+	public synchronized int load(InetSocketAddress address, int ttr) throws IOException {
+		out = new RandomAccessFile(path.toFile(), "rw");
+		long size = out.length();
+		int loaded = 0;
+		long good = 0;
+		if ( size >= 8 ) {
+			MappedByteBuffer in = out.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if ( in.getInt() == MAGIC && in.getInt() == FORMAT ) {
+				good = in.position();
+				//owner addresses are shared by the FileLocations of the same owner
+				HashMap<String,InetSocketAddress> owners = new HashMap<String,InetSocketAddress>();
+				try {
+					while ( in.hasRemaining() ) {
+						byte type = in.get();
+						String name = readString(in);
+						switch ( type ) {
+						case LOCAL: {
+							long fileSize = in.getLong();
+							long modified = in.getLong();
+							FileLocation loc = new FileLocation(address, name, fileSize, in.getInt(), ttr);
+							loc.setModified(modified);
+							loc.setHash(readHash(in));
+							localFiles.put(loc);
+							break;
+						}
+						case REMOTE: {
+							long fileSize = in.getLong();
+							long modified = in.getLong();
+							int version = in.getInt();
+							int remoteTtr = in.getInt();
+							byte[] hash = readHash(in);
+							boolean origin = in.get() != 0;
+							String host = readString(in);
+							int port = in.getInt();
+							InetSocketAddress owner = owners.computeIfAbsent(host + ":" + port,
+									k -> new InetSocketAddress(host, port));
+							FileLocation loc = new FileLocation(owner, name, fileSize, version, remoteTtr);
+							loc.setOrigin(origin);
+							loc.setModified(modified);
+							loc.setHash(hash);
+							remoteFiles.put(loc);
+							break;
+						}
+						case REMOVE_LOCAL:
+							remove(localFiles, name);
+							break;
+						case REMOVE_REMOTE:
+							remove(remoteFiles, name);
+							break;
+						case DIRECTORY:
+							directories.put(name, in.getLong());
+							break;
+						case REMOVE_DIRECTORY:
+							directories.remove(name);
+							break;
+						default:
+							throw new IllegalArgumentException("Unknown record " + type);
+						}
+						records++;
+						good = in.position();
+					}
+				} catch (BufferUnderflowException | IllegalArgumentException e) {
+					System.out.println("Metadata store truncated after " + records + " records");
+				}
+				loaded = localFiles.size() + remoteFiles.size();
+			} else {
+				System.out.println("Unknown metadata store format, discarded");
+			}
+		}
+
+		//drop the incomplete record at the end of the log, or start a new log
+		if ( good == 0 ) {
+			out.setLength(0);
+			writeHeader(out);
+		} else if ( good < size ) {
+			out.setLength(good);
+		}
+		out.seek(out.length());
+		return loaded;
+	}
+
+	private static void remove(FileTable table, String name) {
+		FileLocation loc = table.get(name);
+		if ( loc != null )
+			table.remove(loc);
+	}
+
+	/**
+	 * Record a new FileLocation or a change to a FileLocation
+	 * @param loc
+	 * @param local true for a local FileLocation, false for a remote one
+	 */
+	public synchronized void put(FileLocation loc, boolean local) {
+		if ( out == null )
+			return;
+		try {
+			writePut(loc, local);
+			records++;
+		} catch (IOException e) {
+			System.out.println("Failed to write metadata store");
+		}
+	}
+
+	/**
+	 * Record that a file was removed from a table
+	 * @param name name of the file
+	 * @param local true for the local table, false for the remote table
+	 */
+	public synchronized void remove(String name, boolean local) {
+		if ( out == null )
+			return;
+		try {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			reserve(5 + bytes.length);
+			buffer.put(local ? REMOVE_LOCAL : REMOVE_REMOTE);
+			writeString(bytes);
+			records++;
+		} catch (IOException e) {
+			System.out.println("Failed to write metadata store");
+		}
+	}
+
+	/**
+	 * Record the modification time of a directory after listing it
+	 * @param name name of the directory relative to the share, "" for the shared directory itself
+	 * @param modified modification time of the directory before it was listed
+	 */
+	public synchronized void putDirectory(String name, long modified) {
+		Long old = directories.put(name, modified);
+		if ( out == null || ( old != null && old == modified ) )
+			return;
+		try {
+			writeDirectory(name, modified);
+			records++;
+		} catch (IOException e) {
+			System.out.println("Failed to write metadata store");
+		}
+	}
+
+	/**
+	 * Forget a directory that no longer exists
+	 * @param name
+	 */
+	public synchronized void removeDirectory(String name) {
+		if ( directories.remove(name) == null || out == null )
+			return;
+		try {
+			byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+			reserve(5 + bytes.length);
+			buffer.put(REMOVE_DIRECTORY);
+			writeString(bytes);
+			records++;
+		} catch (IOException e) {
+			System.out.println("Failed to write metadata store");
+		}
+	}
+
+	/**
+	 * Get the directories of the share that have been listed
+	 * @return copy of the modification time of each directory by name
+	 */
+	public synchronized HashMap<String,Long> getDirectories() {
+		return new HashMap<String,Long>(directories);
+	}
+
+	/**
+	 * Get the recorded modification time of a directory
+	 * @param name
+	 * @return modification time or null if the directory has not been listed
+	 */
+	public synchronized Long getDirectory(String name) {
+		return directories.get(name);
+	}
+
+	/**
+	 * Check if the share has been listed at least once since the log was created
+	 * @return
+	 */
+	public synchronized boolean hasDirectories() {
+		return !directories.isEmpty();
+	}
+
+	/**
+	 * Write the buffered records to the log
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if ( out == null )
+			return;
+		out.write(buffer.array(), 0, buffer.position());
+		buffer.clear();
+	}
+
+	/**
+	 * Rewrite the log with one record per entry of the tables and directory
+	 * @throws IOException
+	 */
+	public synchronized void compact() throws IOException {
+		if ( out == null )
+			return;
+		flush();
+		Path tmp = path.resolveSibling(Const.META_FILE + ".tmp");
+		RandomAccessFile log = out;
+		out = new RandomAccessFile(tmp.toFile(), "rw");
+		try {
+			out.setLength(0);
+			writeHeader(out);
+			for ( FileLocation loc : localFiles.list() )
+				writePut(loc, true);
+			for ( FileLocation loc : remoteFiles.list() )
+				writePut(loc, false);
+			for ( Map.Entry<String,Long> dir : directories.entrySet() )
+				writeDirectory(dir.getKey(), dir.getValue());
+			flush();
+			out.getFD().sync();
+			out.close();
+			Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			//keep appending to the old log
+			out.close();
+			buffer.clear();
+			out = log;
+			throw e;
+		}
+		log.close();
+		out = new RandomAccessFile(path.toFile(), "rw");
+		out.seek(out.length());
+		records = live();
+		compactions++;
+	}
+
+	private long live() {
+		return localFiles.size() + remoteFiles.size() + directories.size();
+	}
+
+	private synchronized boolean needsCompaction() {
+		return records > Const.META_COMPACT_MIN && records > live() * Const.META_COMPACT_RATIO;
+	}
+
+	/**
+	 * Write the buffered records and close the log
+	 */
+	public synchronized void shutdown() {
+		interrupt();
+		if ( out == null )
+			return;
+		try {
+			flush();
+			out.close();
+		} catch (IOException e) {
+			System.out.println("Failed to write metadata store");
+		}
+		out = null;
+	}
+
+	@Override
+	public void run() {
+		while ( !Thread.interrupted() ) {
+			try {
+				Thread.sleep(Const.META_FLUSH_PERIOD);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				flush();
+				if ( needsCompaction() )
+					compact();
+			} catch (IOException e) {
+				System.out.println("Failed to write metadata store");
+			}
+		}
+	}
+
+	private static void writeHeader(RandomAccessFile file) throws IOException {
+		file.writeInt(MAGIC);
+		file.writeInt(FORMAT);
+	}
+
+	private void writePut(FileLocation loc, boolean local) throws IOException {
+		byte[] name = loc.getName().getBytes(StandardCharsets.UTF_8);
+		byte[] hash = loc.getHash();
+		int hashLength = hash == null ? 0 : hash.length;
+		if ( local ) {
+			reserve(26 + name.length + hashLength);
+			buffer.put(LOCAL);
+			writeString(name);
+			buffer.putLong(loc.getSize()).putLong(loc.getModified()).putInt(loc.getVersion());
+			writeHash(hash);
+		} else {
+			byte[] host = loc.getLocationAddress().getHostString().getBytes(StandardCharsets.UTF_8);
+			reserve(39 + name.length + host.length + hashLength);
+			buffer.put(REMOTE);
+			writeString(name);
+			buffer.putLong(loc.getSize()).putLong(loc.getModified()).putInt(loc.getVersion()).putInt(loc.getTtr());
+			writeHash(hash);
+			buffer.put((byte) (loc.isOrigin() ? 1 : 0));
+			writeString(host);
+			buffer.putInt(loc.getLocationAddress().getPort());
+		}
+	}
+
+	private void writeDirectory(String name, long modified) throws IOException {
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		reserve(13 + bytes.length);
+		buffer.put(DIRECTORY);
+		writeString(bytes);
+		buffer.putLong(modified);
+	}
+
+	private void writeString(byte[] bytes) {
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+	}
+
+	private void writeHash(byte[] hash) {
+		if ( hash == null ) {
+			buffer.put((byte) 0);
+			return;
+		}
+		buffer.put((byte) hash.length);
+		buffer.put(hash);
+	}
+
+	private static byte[] readHash(ByteBuffer in) {
+		int length = in.get() & 0xff;
+		if ( length == 0 )
+			return null;
+		byte[] hash = new byte[length];
+		in.get(hash);
+		return hash;
+	}
+
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if ( length < 0 || length > in.remaining() )
+			throw new IllegalArgumentException("Bad string length " + length);
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Make room in the buffer for a record, writing the buffered records if needed
+	 */
+	private void reserve(int size) throws IOException {
+		if ( buffer.remaining() < size )
+			flush();
+		if ( buffer.capacity() < size )
+			throw new IOException("Record too large");
+	}
+
+	@Override
+	public synchronized String toString() {
+		long size = 0;
+		try {
+			if ( out != null )
+				size = out.length() + buffer.position();
+		} catch (IOException e) {
+			//size unknown
+		}
+		return records + " records for " + live() + " entries, " + size + " bytes, " + compactions + " compactions";
+	}
+}
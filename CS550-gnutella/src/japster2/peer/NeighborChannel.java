@@ -0,0 +1,320 @@
+package japster2.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.NotBoundException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound queue of the messages going to one neighbor. Each neighbor has its own NeighborChannel with its own
+ * sender thread, so sending a message never blocks the caller and a slow or dead neighbor only delays the
+ * messages queued for it.
+ * <br>
+ * The sender thread sends the queued messages in batches with a single deliver() call. A batch is sent as soon as
+ * it holds batchSize messages, or flushDelay microseconds after its first message was queued, whichever happens
+ * first. A batch size of 1 sends every message on its own. Batches are delivered through the PeerNodeCache, a stub
+ * that stopped working is replaced once before the delivery counts as failed.
+ * <br>
+ * The queue holds at most queueLimit messages, new messages are dropped while it is full. Messages that have been
+ * waiting longer than the send deadline when their batch is sent are dropped too, a neighbor that was stalled
+ * does not receive a burst of messages that are too old to be useful. Invalidates are exempt from both: dropping
+ * one would leave the neighbor serving a stale copy in push mode, so they are queued past the limit and never expire.
+ * <br>
+ * Each deliver() call is made on a separate caller thread and waited for at most Const.DELIVER_TIMEOUT ms, a call
+ * that hangs counts as a failed delivery instead of blocking the channel. While a timed out call is still running
+ * no new call is started, the batches taken meanwhile fail too.
+ * <br>
+ * After Const.CHANNEL_MAX_FAILURES deliveries in a row fail the failure handler is called, the peer decides
+ * whether the neighbor is dropped.
+ * @author jota
+ *
+ */
+public class NeighborChannel extends Thread {
+
+	/**
+	 * A queued message and the time it was queued
+	 */
+	private static class Entry {
+		private Message message;
+		private long queued;
+
+		private Entry(Message message, long queued) {
+			this.message = message;
+			this.queued = queued;
+		}
+	}
+
+	//Neighbor receiving the messages, and the cache its stub is obtained from
+	private InetSocketAddress address;
+	private PeerNodeCache peerNodes;
+
+	private int batchSize;
+	private long flushDelay;
+	private int queueLimit;
+	private long deadline;
+
+	//Messages waiting to be sent. A lock and condition are used instead of wait() because the flush delay is usually
+	//shorter than a millisecond
+	private ArrayDeque<Entry> queue;
+	private boolean running;
+	private ReentrantLock lock;
+	private Condition ready;
+
+	//Counters
+	private AtomicLong messages;
+	private AtomicLong batches;
+	private AtomicLong fullBatches;
+	//time from the first message of each batch being queued until the batch is sent
+	private AtomicLong flushLatency;
+	private AtomicLong dropped;
+	private AtomicLong expired;
+	private AtomicLong failed;
+	
+	//Called when deliveries keep failing, and deliveries failed in a row
+	private Runnable failureHandler;
+	private int failures;
+
+	//Thread making the deliver() calls, and true while it is inside a call
+	private ExecutorService caller;
+	private volatile boolean calling;
+	private AtomicLong timedOut;
+
+	/**
+	 * Creates and starts a new NeighborChannel
+	 * @param address address of the neighbor
+	 * @param peerNodes cache of the PeerNode stubs used to call the neighbor
+	 * @param batchSize maximum number of messages sent in one call
+	 * @param flushDelay maximum time in microseconds a message waits for the batch to fill up
+	 * @param queueLimit maximum number of messages waiting to be sent
+	 * @param deadline time in milliseconds after which a queued message is dropped instead of sent
+	 * @param failureHandler called when Const.CHANNEL_MAX_FAILURES deliveries in a row fail, or null
+	 */
+	public NeighborChannel(InetSocketAddress address, PeerNodeCache peerNodes, int batchSize, long flushDelay, 
+			int queueLimit, long deadline, Runnable failureHandler) {
+		super("neighbor-" + address);
+		setDaemon(true);
+		this.address = address;
+		this.peerNodes = peerNodes;
+		this.batchSize = Math.max(1, batchSize);
+		this.flushDelay = flushDelay;
+		this.queueLimit = queueLimit;
+		this.deadline = deadline;
+		this.failureHandler = failureHandler;
+		queue = new ArrayDeque<Entry>();
+		running = true;
+		lock = new ReentrantLock();
+		ready = lock.newCondition();
+		messages = new AtomicLong();
+		batches = new AtomicLong();
+		fullBatches = new AtomicLong();
+		flushLatency = new AtomicLong();
+		dropped = new AtomicLong();
+		expired = new AtomicLong();
+		failed = new AtomicLong();
+		timedOut = new AtomicLong();
+		caller = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, getName() + "-caller");
+			t.setDaemon(true);
+			return t;
+		});
+		start();
+	}
+
+	/**
+	 * Queue a message to be sent to the neighbor
+	 * @param message
+	 * @return false if the message was dropped because the queue is full. Invalidates are only dropped when
+	 * the channel was shut down
+	 */
+	public boolean send(Message message) {
+		lock.lock();
+		try {
+			if ( !running || (queue.size() >= queueLimit && message.getType() != Message.INVALIDATE) ) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			queue.addLast(new Entry(message, System.nanoTime()));
+			//wake up the sender for the first message of a batch and when the batch is full
+			if ( queue.size() == 1 || queue.size() == batchSize )
+				ready.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop the sender thread, queued messages are discarded
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			running = false;
+			queue.clear();
+			ready.signal();
+		} finally {
+			lock.unlock();
+		}
+		caller.shutdownNow();
+	}
+
+	/**
+	 * Wait for the next batch of messages
+	 * @return messages to send, or null if the channel was shut down
+	 * @throws InterruptedException
+	 */
+	private ArrayList<Message> take() throws InterruptedException {
+		lock.lock();
+		try {
+			while ( running && queue.isEmpty() )
+				ready.await();
+			if ( !running )
+				return null;
+
+			//wait for the batch to fill up, at most until the flush delay of its first message
+			long first = queue.peekFirst().queued;
+			long flushAt = first + flushDelay * 1000;
+			long remaining;
+			while ( running && queue.size() < batchSize && (remaining = flushAt - System.nanoTime()) > 0 )
+				ready.awaitNanos(remaining);
+			if ( !running )
+				return null;
+
+			long now = System.nanoTime();
+			if ( queue.size() >= batchSize )
+				fullBatches.incrementAndGet();
+			flushLatency.addAndGet(now - first);
+
+			//take the batch, dropping messages that have waited too long except invalidates
+			ArrayList<Message> batch = new ArrayList<Message>(Math.min(batchSize, queue.size()));
+			while ( batch.size() < batchSize && !queue.isEmpty() ) {
+				Entry entry = queue.pollFirst();
+				if ( now - entry.queued > deadline * 1000000L && entry.message.getType() != Message.INVALIDATE )
+					expired.incrementAndGet();
+				else
+					batch.add(entry.message);
+			}
+			return batch;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run() {
+		while ( true ) {
+			ArrayList<Message> batch;
+			try {
+				batch = take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if ( batch == null )
+				return;
+			if ( batch.isEmpty() )
+				continue;
+
+			messages.addAndGet(batch.size());
+			batches.incrementAndGet();
+			try {
+				deliver(batch);
+				failures = 0;
+			} catch (IOException | NotBoundException | TimeoutException e) {
+				failed.addAndGet(batch.size());
+				System.out.println("Failed to contact neighbor");
+				if ( ++failures >= Const.CHANNEL_MAX_FAILURES && failureHandler != null ) {
+					failures = 0;
+					failureHandler.run();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deliver a batch on the caller thread and wait for the call to finish
+	 * @param batch
+	 * @throws TimeoutException if the call did not finish in Const.DELIVER_TIMEOUT ms, or a previous call that 
+	 * timed out is still running
+	 * @throws NotBoundException
+	 * @throws IOException
+	 */
+	private void deliver(ArrayList<Message> batch) throws IOException, NotBoundException, TimeoutException {
+		if ( calling )
+			throw new TimeoutException("Previous delivery still running");
+		//a cancelled Future is done even if its thread is still inside the call, so the call tracks itself
+		Future<Void> call = caller.submit(() -> {
+			calling = true;
+			try {
+				return peerNodes.call(address, node -> {
+					node.deliver(batch);
+					return null;
+				});
+			} finally {
+				calling = false;
+			}
+		});
+		try {
+			call.get(Const.DELIVER_TIMEOUT, TimeUnit.MILLISECONDS);
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof IOException )
+				throw (IOException) e.getCause();
+			if ( e.getCause() instanceof NotBoundException )
+				throw (NotBoundException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (TimeoutException e) {
+			timedOut.incrementAndGet();
+			//interrupt the call if the transport allows it, it is not waited for again
+			call.cancel(true);
+			throw e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Delivery interrupted");
+		}
+	}
+
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	public long getBatchCount() {
+		return batches.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get() + expired.get();
+	}
+
+	@Override
+	public String toString() {
+		long b = batches.get();
+		long m = messages.get();
+		return m + " messages in " + b + " calls" +
+				String.format(" (%.1f messages/call)", b == 0 ? 0.0 : (double) m / b) +
+				", " + fullBatches.get() + " full batches" +
+				", avg batch wait " + (b == 0 ? 0 : flushLatency.get() / b / 1000) + "us" +
+				", queue depth " + getQueueDepth() + "/" + queueLimit +
+				", dropped " + dropped.get() +
+				", expired " + expired.get() +
+				", failed " + failed.get() +
+				", timed out " + timedOut.get();
+	}
+}
@@ -0,0 +1,265 @@
+package japster2.peer;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Table of the neighbors of a peer. Each neighbor is interned to a small integer handle the first time it is
+ * added, the handle stays the same for as long as the peer runs. Handles are used on the message routing path
+ * instead of addresses so that finding the sender of a message and storing the route back to it do not 
+ * allocate any objects.
+ * <br>
+ * A removed neighbor keeps its handle, and its entry stays reachable by handle with its channel shut down, so routes 
+ * that still point to it fail to send instead of reaching another neighbor. A neighbor added again with the same 
+ * address gets its old handle back.
+ * <br>
+ * The table does not hold PeerNode stubs, calls to a neighbor are made through the PeerNodeCache of the peer so a
+ * neighbor that was restarted is reached with a new stub.
+ * <br>
+ * The table is copy-on-write: neighbors are added and removed rarely while the table is read for every message.
+ * @author jota
+ *
+ */
+public class NeighborTable {
+
+	//Handle used for routes of messages created by this peer
+	public static final int LOCAL = -1;
+
+	/**
+	 * A neighbor entry
+	 */
+	public static final class Neighbor {
+		private final int handle;
+		private final InetSocketAddress address;
+		private final NeighborChannel channel;
+		//true if the neighbor is a leaf attached to this peer
+		private final boolean leaf;
+
+		//Query routing table received from the neighbor, null until the neighbor sends one
+		private volatile BloomFilter routes;
+		private volatile boolean routesAggregate;
+		private long routesVersion;
+		//Number of neighbors of the neighbor, sent with its routing table. 0 until the neighbor sends one
+		private volatile int degree;
+		//System.nanoTime() when the neighbor was added or last published its files
+		private volatile long lastSeen;
+
+		private Neighbor(int handle, InetSocketAddress address, NeighborChannel channel, boolean leaf) {
+			this.handle = handle;
+			this.address = address;
+			this.channel = channel;
+			this.leaf = leaf;
+			lastSeen = System.nanoTime();
+		}
+
+		public int getHandle() {
+			return handle;
+		}
+
+		public InetSocketAddress getAddress() {
+			return address;
+		}
+
+		public NeighborChannel getChannel() {
+			return channel;
+		}
+
+		public boolean isLeaf() {
+			return leaf;
+		}
+
+		public BloomFilter getRoutes() {
+			return routes;
+		}
+
+		public boolean isRoutesAggregate() {
+			return routesAggregate;
+		}
+
+		public int getDegree() {
+			return degree;
+		}
+
+		/**
+		 * Record that the neighbor is alive
+		 */
+		public void touch() {
+			lastSeen = System.nanoTime();
+		}
+
+		public long getLastSeen() {
+			return lastSeen;
+		}
+
+		/**
+		 * Apply an update of the query routing table sent by the neighbor
+		 * @param update
+		 * @return false if the update is a patch for a version of the table we do not have
+		 */
+		public synchronized boolean updateRoutes(RouteUpdate update) {
+			BloomFilter updated;
+			try {
+				updated = update.apply(routes, routesVersion);
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			if ( updated == null )
+				return false;
+			routesAggregate = update.isAggregate();
+			degree = update.getDegree();
+			routesVersion = update.getVersion();
+			routes = updated;
+			return true;
+		}
+
+		/**
+		 * Check if a query should be forwarded to the neighbor. Queries are always forwarded until the neighbor 
+		 * sends its routing table. A table that is not aggregate is only used when the neighbor will not forward
+		 * the query any further
+		 * @param fileName name searched, or keywords
+		 * @param ttl ttl the query is forwarded with
+		 * @param keywords true if fileName holds keywords, the table must have every keyword
+		 * @return false if the neighbor can not answer the query
+		 */
+		public boolean mightAnswer(String fileName, long ttl, boolean keywords) {
+			BloomFilter filter = routes;
+			if ( filter == null || (!routesAggregate && ttl > 1) )
+				return true;
+			if ( !keywords )
+				return filter.mightContain(fileName);
+			for ( String token : InvertedIndex.tokenize(fileName) ) {
+				if ( !filter.mightContain(token) )
+					return false;
+			}
+			return true;
+		}
+	}
+
+	//Current neighbors, replaced on every update
+	private volatile Neighbor[] neighbors = new Neighbor[0];
+	
+	//Every neighbor ever added, including removed ones. Index is the handle of the neighbor
+	private volatile Neighbor[] handles = new Neighbor[0];
+
+	/**
+	 * Add a neighbor or replace the channel of an existing neighbor
+	 * @param address address of the neighbor
+	 * @param channel NeighborChannel used to send messages to the neighbor, the channel of a replaced neighbor is shut down
+	 * @param leaf true if the neighbor is a leaf attached to this peer
+	 * @return the handle of the neighbor
+	 */
+	public synchronized int put(InetSocketAddress address, NeighborChannel channel, boolean leaf) {
+		int handle = handles.length;
+		for ( Neighbor n : handles ) {
+			if ( n.address.equals(address) ) {
+				handle = n.handle;
+				n.channel.shutdown();
+				break;
+			}
+		}
+		Neighbor neighbor = new Neighbor(handle, address, channel, leaf);
+		
+		//replace or add the entry by handle
+		Neighbor[] updatedHandles = Arrays.copyOf(handles, Math.max(handles.length, handle + 1));
+		updatedHandles[handle] = neighbor;
+		
+		//replace or add the entry on the current neighbors
+		Neighbor[] current = neighbors;
+		Neighbor[] updated = null;
+		for ( int i = 0; i < current.length; i++ ) {
+			if ( current[i].handle == handle ) {
+				updated = current.clone();
+				updated[i] = neighbor;
+				break;
+			}
+		}
+		if ( updated == null ) {
+			updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = neighbor;
+		}
+		handles = updatedHandles;
+		neighbors = updated;
+		return handle;
+	}
+	
+	/**
+	 * Remove a neighbor and shut down its channel. Its handle is kept for when it is added again
+	 * @param handle handle of the neighbor
+	 * @return false if the handle is not a current neighbor
+	 */
+	public synchronized boolean remove(int handle) {
+		Neighbor[] current = neighbors;
+		for ( int i = 0; i < current.length; i++ ) {
+			if ( current[i].handle == handle ) {
+				Neighbor[] updated = new Neighbor[current.length - 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+				neighbors = updated;
+				current[i].channel.shutdown();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the handle of a neighbor
+	 * @param host host string of the neighbor
+	 * @param port port of the neighbor
+	 * @return the handle of the neighbor or -1 if it is not a neighbor
+	 */
+	public int handleOf(String host, int port) {
+		for ( Neighbor n : neighbors ) {
+			if ( n.address.getPort() == port && n.address.getHostString().equals(host) )
+				return n.handle;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the entry of a neighbor
+	 * @param handle handle of the neighbor
+	 * @return the neighbor, which may have been removed, or null if the handle is unknown
+	 */
+	public Neighbor getNeighbor(int handle) {
+		Neighbor[] current = handles;
+		if ( handle < 0 || handle >= current.length )
+			return null;
+		return current[handle];
+	}
+
+	/**
+	 * Get the NeighborChannel of a neighbor
+	 * @param handle handle of the neighbor
+	 * @return NeighborChannel of the neighbor, shut down if the neighbor was removed, or null if the handle is unknown
+	 */
+	public NeighborChannel getChannel(int handle) {
+		Neighbor n = getNeighbor(handle);
+		return n == null ? null : n.channel;
+	}
+
+	/**
+	 * Get all current neighbors. The returned array is shared and must not be modified.
+	 * @return array of neighbors, not indexed by handle
+	 */
+	public Neighbor[] snapshot() {
+		return neighbors;
+	}
+
+	public int size() {
+		return neighbors.length;
+	}
+
+	/**
+	 * Number of neighbors that are leaves attached to this peer
+	 * @return
+	 */
+	public int leafCount() {
+		int count = 0;
+		for ( Neighbor n : neighbors ) {
+			if ( n.leaf )
+				count++;
+		}
+		return count;
+	}
+}
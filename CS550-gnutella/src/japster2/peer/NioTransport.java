@@ -0,0 +1,543 @@
+package japster2.peer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PeerTransport that sends PeerNode calls as binary frames (see MessageCodec) over persistent TCP connections.
+ * <br>
+ * Each peer listens on its port for connections of other peers. connect() opens one connection to the other peer,
+ * which is kept open and shared by every call made to that peer, so flooding a query to a neighbor is a single
+ * write on an open socket. Calls that return a value are matched with their reply by a call id, so many calls
+ * can be in flight on the same connection. query, hitquery, invalidate and deliver are not answered.
+ * <br>
+ * Each connection has a thread reading its frames. Incoming calls are processed on the thread of the connection
+ * they arrived on, in the order they were sent; query, hitquery, invalidate and deliver only queue messages on the
+ * MessageDispatcher so the connection is not blocked by the processing of the message.
+ * <br>
+ * If a connection breaks the call fails with a RemoteException and the next call opens a new connection.
+ * @author jota
+ *
+ */
+public class NioTransport implements PeerTransport {
+
+	/**
+	 * Writes the arguments of a frame
+	 */
+	private interface FrameWriter {
+		public void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * Reads the reply of a call
+	 */
+	private interface FrameReader<T> {
+		public T read(DataInputStream in) throws IOException;
+	}
+
+	//PeerNode receiving incoming calls
+	private PeerNode local;
+	private ServerSocketChannel server;
+	private Thread acceptThread;
+
+	//Open connections and PeerNodes of other peers
+	private Set<Connection> connections;
+	private ConcurrentHashMap<InetSocketAddress,RemotePeerNode> remotes;
+
+	//Counters
+	private AtomicLong framesSent;
+	private AtomicLong framesReceived;
+
+	public NioTransport() {
+		connections = ConcurrentHashMap.newKeySet();
+		remotes = new ConcurrentHashMap<InetSocketAddress,RemotePeerNode>();
+		framesSent = new AtomicLong();
+		framesReceived = new AtomicLong();
+	}
+
+	@Override
+	public void export(PeerNode node, String address, int port) throws RemoteException {
+		local = node;
+		try {
+			server = ServerSocketChannel.open();
+			server.bind(new InetSocketAddress(address, port), Const.TRANSFER_BACKLOG);
+		} catch (IOException e) {
+			throw new RemoteException("Failed to listen on port " + port, e);
+		}
+
+		//accept connections of other peers
+		acceptThread = new Thread("nio-accept") {
+			@Override
+			public void run() {
+				while ( server.isOpen() ) {
+					try {
+						SocketChannel channel = server.accept();
+						new Connection(channel, local).start();
+					} catch (IOException e) {
+						if ( server.isOpen() )
+							System.out.println("Failed to accept connection");
+					}
+				}
+			}
+		};
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	@Override
+	public void shutdown() throws RemoteException {
+		try {
+			if ( server != null )
+				server.close();
+		} catch (IOException e) {
+			System.out.println("Error closing resource");
+		}
+		for ( Connection connection : connections )
+			connection.close();
+		remotes.clear();
+	}
+
+	@Override
+	public PeerNode connect(InetSocketAddress address) throws RemoteException {
+		//reuse the PeerNode of the peer, so there is a single connection per peer
+		RemotePeerNode node = remotes.computeIfAbsent(address, RemotePeerNode::new);
+		node.connection();
+		return node;
+	}
+
+	@Override
+	public String toString() {
+		return "nio, " + connections.size() + " connections" +
+				", sent " + framesSent.get() + " frames" +
+				", received " + framesReceived.get() + " frames";
+	}
+
+	/**
+	 * A TCP connection to another peer
+	 */
+	private class Connection extends Thread {
+
+		private SocketChannel channel;
+
+		//PeerNode that processes the calls received on the connection, null on connections opened by us
+		private PeerNode handler;
+
+		//Calls waiting for a reply
+		private ConcurrentHashMap<Integer,CompletableFuture<DataInputStream>> pending;
+		private AtomicInteger nextCallId;
+
+		private volatile boolean closed;
+
+		private Connection(SocketChannel channel, PeerNode handler) throws IOException {
+			super("nio-" + channel.getRemoteAddress());
+			setDaemon(true);
+			this.channel = channel;
+			this.handler = handler;
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			pending = new ConcurrentHashMap<Integer,CompletableFuture<DataInputStream>>();
+			nextCallId = new AtomicInteger();
+			connections.add(this);
+		}
+
+		private boolean isClosed() {
+			return closed;
+		}
+
+		/**
+		 * Write a frame to the connection
+		 * @param type frame type
+		 * @param callId call id, 0 for calls that are not answered
+		 * @param body writes the arguments of the frame
+		 * @throws RemoteException if the frame can not be sent
+		 */
+		private void send(byte type, int callId, FrameWriter body) throws RemoteException {
+			ByteBuffer buffer;
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeInt(0);
+				out.writeByte(type);
+				out.writeInt(callId);
+				body.write(out);
+				out.flush();
+				buffer = ByteBuffer.wrap(bytes.toByteArray());
+				buffer.putInt(0, buffer.remaining() - 4);
+			} catch (IOException e) {
+				throw new RemoteException("Failed to encode message", e);
+			}
+			try {
+				synchronized(this) {
+					while ( buffer.hasRemaining() )
+						channel.write(buffer);
+				}
+				framesSent.incrementAndGet();
+			} catch (IOException e) {
+				close();
+				throw new RemoteException("Failed to send message", e);
+			}
+		}
+
+		/**
+		 * Make a call and wait for its reply
+		 * @param type frame type of the call
+		 * @param body writes the arguments of the call
+		 * @param reply reads the reply
+		 * @return value returned by the call
+		 * @throws RemoteException if the connection fails or there is no reply
+		 * @throws IOException if the call failed on the other peer
+		 */
+		private <T> T call(byte type, FrameWriter body, FrameReader<T> reply) throws IOException {
+			int callId = nextCallId.incrementAndGet();
+			if ( callId == 0 )
+				callId = nextCallId.incrementAndGet();
+			CompletableFuture<DataInputStream> result = new CompletableFuture<DataInputStream>();
+			pending.put(callId, result);
+			try {
+				if ( closed )
+					throw new RemoteException("Connection closed");
+				send(type, callId, body);
+				return reply.read(result.get(Const.NIO_CALL_TIMEOUT, TimeUnit.MILLISECONDS));
+			} catch (ExecutionException e) {
+				if ( e.getCause() instanceof IOException )
+					throw (IOException) e.getCause();
+				throw new RemoteException("Call failed", e.getCause());
+			} catch (TimeoutException e) {
+				throw new RemoteException("Call timed out");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RemoteException("Call interrupted");
+			} finally {
+				pending.remove(callId);
+			}
+		}
+
+		/**
+		 * Read frames until the connection is closed
+		 */
+		@Override
+		public void run() {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			try {
+				while ( true ) {
+					//read frame length and then the whole frame
+					length.clear();
+					readFully(length);
+					int size = length.getInt(0);
+					if ( size < MessageCodec.HEADER_SIZE - 4 || size > Const.NIO_MAX_FRAME )
+						throw new IOException("Invalid frame size " + size);
+					ByteBuffer frame = ByteBuffer.allocate(size);
+					readFully(frame);
+					framesReceived.incrementAndGet();
+
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame.array()));
+					byte type = in.readByte();
+					int callId = in.readInt();
+					if ( type == MessageCodec.REPLY ) {
+						CompletableFuture<DataInputStream> result = pending.get(callId);
+						if ( result != null )
+							result.complete(in);
+					} else if ( type == MessageCodec.ERROR ) {
+						CompletableFuture<DataInputStream> result = pending.get(callId);
+						if ( result != null )
+							result.completeExceptionally(new IOException(in.readUTF()));
+					} else if ( handler != null ) {
+						handle(type, callId, in);
+					}
+				}
+			} catch (IOException e) {
+				//connection closed or broken
+			} finally {
+				close();
+			}
+		}
+
+		private void readFully(ByteBuffer buffer) throws IOException {
+			while ( buffer.hasRemaining() ) {
+				if ( channel.read(buffer) < 0 )
+					throw new EOFException();
+			}
+		}
+
+		/**
+		 * Process a call received from another peer and send back its reply
+		 * @param type frame type of the call
+		 * @param callId id of the call
+		 * @param in arguments of the call
+		 * @throws RemoteException if the reply can not be sent
+		 */
+		private void handle(byte type, int callId, DataInputStream in) throws RemoteException {
+			try {
+				switch ( type ) {
+				case MessageCodec.QUERY:
+					handler.query(MessageCodec.readMessageId(in), in.readLong(), in.readUTF(), in.readUTF(), in.readInt());
+					break;
+				case MessageCodec.HITQUERY:
+					handler.hitquery(MessageCodec.readMessageId(in), in.readLong(), in.readUTF(),
+							MessageCodec.readRequiredFileLocation(in));
+					break;
+				case MessageCodec.INVALIDATE:
+					handler.invalidate(MessageCodec.readMessageId(in), in.readLong(), in.readUTF(),
+							MessageCodec.readRequiredFileLocation(in), in.readUTF(), in.readInt());
+					break;
+				case MessageCodec.DELIVER:
+					handler.deliver(MessageCodec.readMessages(in));
+					break;
+				case MessageCodec.HELLO:
+					boolean accepted = handler.hello(MessageCodec.readAddress(in));
+					send(MessageCodec.REPLY, callId, out -> out.writeBoolean(accepted));
+					break;
+				case MessageCodec.ATTACH:
+					boolean attached = handler.attach(MessageCodec.readAddress(in));
+					send(MessageCodec.REPLY, callId, out -> out.writeBoolean(attached));
+					break;
+				case MessageCodec.PUBLISH:
+					boolean published = handler.publish(MessageCodec.readAddress(in), MessageCodec.readFileLocations(in));
+					send(MessageCodec.REPLY, callId, out -> out.writeBoolean(published));
+					break;
+				case MessageCodec.CHECK_WALK:
+					boolean walking = handler.checkWalk(MessageCodec.readMessageId(in));
+					send(MessageCodec.REPLY, callId, out -> out.writeBoolean(walking));
+					break;
+				case MessageCodec.UPDATE_ROUTES:
+					boolean applied = handler.updateRoutes(MessageCodec.readAddress(in), MessageCodec.readRouteUpdate(in));
+					send(MessageCodec.REPLY, callId, out -> out.writeBoolean(applied));
+					break;
+				case MessageCodec.POLL:
+					FileLocation loc = handler.poll(in.readUTF());
+					send(MessageCodec.REPLY, callId, out -> MessageCodec.writeFileLocation(out, loc));
+					break;
+				case MessageCodec.POLL_BATCH:
+					ArrayList<PollResult> results = handler.pollBatch(MessageCodec.readNames(in));
+					send(MessageCodec.REPLY, callId, out -> MessageCodec.writePollResults(out, results));
+					break;
+				case MessageCodec.OBTAIN:
+					TransferTicket ticket = handler.obtain(in.readUTF());
+					send(MessageCodec.REPLY, callId, out -> MessageCodec.writeTicket(out, ticket));
+					break;
+				default:
+					throw new IOException("Unknown frame type " + type);
+				}
+			} catch (IOException e) {
+				//report the failure to the caller
+				if ( callId != 0 ) {
+					String message = e.getMessage() == null ? e.toString() : e.getMessage();
+					send(MessageCodec.ERROR, callId, out -> out.writeUTF(message));
+				}
+			}
+		}
+
+		/**
+		 * Close the connection and fail the calls waiting for a reply
+		 */
+		private void close() {
+			closed = true;
+			connections.remove(this);
+			try {
+				channel.close();
+			} catch (IOException e) {
+				System.out.println("Error closing resource");
+			}
+			for ( CompletableFuture<DataInputStream> result : pending.values() )
+				result.completeExceptionally(new RemoteException("Connection closed"));
+		}
+	}
+
+	/**
+	 * PeerNode of another peer, sends the calls through a Connection to that peer. A new connection is opened if
+	 * the previous one was closed
+	 */
+	private class RemotePeerNode implements PeerNode {
+
+		private InetSocketAddress address;
+		private Connection connection;
+
+		private RemotePeerNode(InetSocketAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Get the connection to the peer, opening it if needed
+		 * @return open connection
+		 * @throws RemoteException if the peer can not be contacted
+		 */
+		private synchronized Connection connection() throws RemoteException {
+			if ( connection == null || connection.isClosed() ) {
+				try {
+					SocketChannel channel = SocketChannel.open(address);
+					connection = new Connection(channel, null);
+					connection.start();
+				} catch (IOException e) {
+					throw new RemoteException("Failed to connect to " + address, e);
+				}
+			}
+			return connection;
+		}
+
+		@Override
+		public boolean hello(InetSocketAddress peerAddress) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.HELLO,
+						out -> MessageCodec.writeAddress(out, peerAddress),
+						in -> in.readBoolean());
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("hello failed", e);
+			}
+		}
+
+		@Override
+		public boolean attach(InetSocketAddress leafAddress) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.ATTACH,
+						out -> MessageCodec.writeAddress(out, leafAddress),
+						in -> in.readBoolean());
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("attach failed", e);
+			}
+		}
+
+		@Override
+		public boolean checkWalk(MessageId msgId) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.CHECK_WALK,
+						out -> MessageCodec.writeMessageId(out, msgId),
+						in -> in.readBoolean());
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("checkWalk failed", e);
+			}
+		}
+
+		@Override
+		public boolean publish(InetSocketAddress leafAddress, ArrayList<FileLocation> files) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.PUBLISH,
+						out -> {
+							MessageCodec.writeAddress(out, leafAddress);
+							MessageCodec.writeFileLocations(out, files);
+						},
+						in -> in.readBoolean());
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("publish failed", e);
+			}
+		}
+
+		@Override
+		public void query(MessageId msgId, long ttl, String fileName, String host, int port) throws RemoteException {
+			connection().send(MessageCodec.QUERY, 0, out -> {
+				MessageCodec.writeMessageId(out, msgId);
+				out.writeLong(ttl);
+				out.writeUTF(fileName);
+				out.writeUTF(host);
+				out.writeInt(port);
+			});
+		}
+
+		@Override
+		public void hitquery(MessageId msgId, long ttl, String fileName, FileLocation fileLocation) throws RemoteException {
+			connection().send(MessageCodec.HITQUERY, 0, out -> {
+				MessageCodec.writeMessageId(out, msgId);
+				out.writeLong(ttl);
+				out.writeUTF(fileName);
+				MessageCodec.writeFileLocation(out, fileLocation);
+			});
+		}
+
+		@Override
+		public void invalidate(MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port)
+				throws RemoteException {
+			connection().send(MessageCodec.INVALIDATE, 0, out -> {
+				MessageCodec.writeMessageId(out, msgId);
+				out.writeLong(ttl);
+				out.writeUTF(fileName);
+				MessageCodec.writeFileLocation(out, fileLocation);
+				out.writeUTF(host);
+				out.writeInt(port);
+			});
+		}
+
+		@Override
+		public void deliver(ArrayList<Message> messages) throws RemoteException {
+			connection().send(MessageCodec.DELIVER, 0, out -> MessageCodec.writeMessages(out, messages));
+		}
+
+		@Override
+		public boolean updateRoutes(InetSocketAddress peerAddress, RouteUpdate update) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.UPDATE_ROUTES,
+						out -> {
+							MessageCodec.writeAddress(out, peerAddress);
+							MessageCodec.writeRouteUpdate(out, update);
+						},
+						in -> in.readBoolean());
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("updateRoutes failed", e);
+			}
+		}
+
+		@Override
+		public FileLocation poll(String fileName) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.POLL,
+						out -> out.writeUTF(fileName),
+						MessageCodec::readFileLocation);
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("poll failed", e);
+			}
+		}
+
+		@Override
+		public ArrayList<PollResult> pollBatch(ArrayList<String> fileNames) throws RemoteException {
+			try {
+				return connection().call(MessageCodec.POLL_BATCH,
+						out -> MessageCodec.writeNames(out, fileNames),
+						MessageCodec::readPollResults);
+			} catch (RemoteException e) {
+				throw e;
+			} catch (IOException e) {
+				throw new RemoteException("pollBatch failed", e);
+			}
+		}
+
+		@Override
+		public TransferTicket obtain(String name) throws RemoteException, IOException {
+			return connection().call(MessageCodec.OBTAIN,
+					out -> out.writeUTF(name),
+					MessageCodec::readTicket);
+		}
+
+		@Override
+		public String toString() {
+			return "RemotePeerNode[" + address + "]";
+		}
+	}
+}
@@ -2,15 +2,28 @@ package japster2.peer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.rmi.AccessException;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -35,6 +48,13 @@ import org.apache.commons.cli.ParseException;
  */
 public class Peer implements PeerNode {
 	
+	/**
+	 * Role of a peer on the overlay. PEER is a flat network where every peer floods queries to its neighbors. 
+	 * ULTRAPEERs flood queries among themselves and answer queries for the files of the LEAFs attached to them, 
+	 * leaves send their queries to their ultrapeers and never forward messages.
+	 */
+	public enum Role { PEER, ULTRAPEER, LEAF }
+	
 	
 	//Address and port where the registry for this peer will be created
 	private String localAddress;
@@ -44,13 +64,16 @@ public class Peer implements PeerNode {
 	private String fileDirectoryName;
 	
 	//Used to create unique message ids for each message. works as a counter initialized at 0
-	private int msgIdSeq; 
+	private AtomicLong msgIdSeq; 
 	
 	//Stores the time at which the peer was started. This number is sent as part of the msgId 
 	//so that if a peer is closed and then run again the other peers will not discard the messages that have the 
 	//same sequence as in the first time the peer was run
 	private long peerId; 
 	
+	//High part of the MessageIds created by this peer, derived from address, port and peerId
+	private long msgIdPrefix;
+	
 	//True if running in pull mode
 	private boolean pullMode; 
 	
@@ -58,25 +81,67 @@ public class Peer implements PeerNode {
 	private int defaultTtr; 
 
 	//Table of neighbors. For each neighbor we store a PeerNode stub that is used to communicate with it
-	private Hashtable<InetSocketAddress,PeerNode> neighbors;
+	//and a small integer handle that identifies the neighbor on routes
+	private NeighborTable neighbors;
 
-	//Table of previously seen messages. For each seen message the PeerNode of the neighbor that sent the message is stored.
+	//Table of previously seen messages. For each seen message the handle of the neighbor that sent the message is stored
+	//(NeighborTable.LOCAL for messages created by this peer).
 	//This table is used to propagate hitquery messages back to the proper neighbor and to drop query messages that have been 
-	//processed already
-	private Hashtable<String,PeerNode> seenMessages;
+	//processed already. Entries expire after Const.ROUTE_LIFETIME
+	private RouteTable<MessageId,Integer> seenMessages;
 	
-	//List of FileLocations of files that were stored on this server before the process was run
+	//Results of queries routed through this peer, used to answer repeated queries without flooding them again
+	private HitCache hitCache;
+	private boolean useHitCache;
+	
+	//Role of this peer and, on ultrapeers, index of the files of the attached leaves
+	private Role role;
+	private LeafIndex leafIndex;
+	
+	//Sends the query routing table of this peer to the neighbors and decides which neighbors a query is forwarded to
+	private QueryRouter router;
+	
+	//Table of FileLocations of files that were stored on this server before the process was run
 	//These files can be updated and will always be valid on this peer so their TTR value does not get updated. 
-	private ArrayList<FileLocation> localFiles;
-	//List of FileLocations of files that have been downloaded by this peer. They keep the address of the peer where they 
+	private FileTable localFiles;
+	//Table of FileLocations of files that have been downloaded by this peer. They keep the address of the peer where they 
 	//were downloaded from. Their TTR is updated periodically and can be invalidated
-	private ArrayList<FileLocation> remoteFiles; 
+	private FileTable remoteFiles; 
 	//List of FileLocations received as search results. Can be used to initiate new downloads. 
 	private ArrayList<FileLocation> searchResults;
 	
-	//Registry and stub created by this peer and used by other peers to contact this peer
-	private Registry registry;
-	private PeerNode peerStub;
+	//Dynamic searches by MessageId of each of their rounds, kept for Const.ROUTE_LIFETIME after they finish so 
+	//late results are not added twice. Estimated latency of one hop in nanoseconds, used to size their rounds
+	private ConcurrentHashMap<MessageId,DynamicSearch> searches;
+	private volatile long hopLatency;
+	
+	//Random walks started by this peer by MessageId, and whether walkers prefer neighbors with more neighbors
+	private ConcurrentHashMap<MessageId,RandomWalk> walks;
+	private volatile boolean walkBias;
+	private AtomicLong walkersForwarded;
+	
+	//Pool making the calls of walkers to their origin, walks whose origin stopped them or could not be reached, and 
+	//walkers dropped because the pool was full
+	private ThreadPoolExecutor walkCalls;
+	private RouteTable<MessageId,Boolean> stoppedWalks;
+	private AtomicLong walkersDropped;
+	
+	//Results not sent because they did not meet the filter of their query
+	private AtomicLong filteredResults;
+	
+	//Watches the shared directory, null unless enabled
+	private ShareWatcher watcher;
+	
+	//Keeps the file tables on disk, null unless enabled. Lock held while the file tables are checked against the 
+	//shared directory
+	private MetadataStore store;
+	private final Object shareLock = new Object();
+	
+	//Computes the content hashes of the local files
+	private ContentHasher hasher;
+	
+	//Transport used to receive calls from other peers and to call them (RMI by default)
+	private PeerTransport transport;
 	
 	//Propagation delay (used for performance tests) 
 	private boolean simulateDelay = false;
@@ -85,8 +150,39 @@ public class Peer implements PeerNode {
 	//Quiet flag used for performance test
 	private boolean quiet = false; 
 	
-	//pull mode thread for updating TTR and polling when required 
+	//pull mode thread for polling when TTRs expire and the deadlines of the TTRs 
 	private UpdateTtrThread updateTtrThr; 
+	private TtrScheduler ttrScheduler;
+	
+	//Serves files to other peers
+	private TransferServer transferServer;
+	
+	//PeerNode stubs of other peers
+	private PeerNodeCache peerNodes;
+	
+	//Threads used to poll file owners in pull mode and poll counters
+	private ExecutorService pollExecutor;
+	private AtomicLong pollRpcs;
+	private AtomicLong polledFiles;
+	private AtomicLong pollCycles;
+	
+	//Number of query, hitquery and invalidate messages received
+	private AtomicLong messagesReceived;
+	
+	//Downloads new copies of invalid remote files in the background
+	private RefreshThread refresher;
+	
+	//Outbound message channels: maximum messages per call, maximum delay in microseconds before a batch is sent, 
+	//maximum messages queued for a neighbor and time in milliseconds after which a queued message is dropped
+	private int batchSize;
+	private long batchDelay;
+	private int sendQueueLimit;
+	private long sendDeadline;
+	
+	//Worker pool that processes incoming query, hitquery and invalidate messages
+	private MessageDispatcher dispatcher;
+	private int dispatchWorkers;
+	private boolean virtualThreads;
 	
 	//Command line options
 	private static Options options;
@@ -106,47 +202,229 @@ public class Peer implements PeerNode {
 		this.localPort = localPort;
 		this.fileDirectoryName = fileDirectory;
 		
-		neighbors = new Hashtable <InetSocketAddress,PeerNode>();
-		seenMessages = new Hashtable <String,PeerNode>();
+		neighbors = new NeighborTable();
+		transport = new RmiTransport();
+		peerNodes = new PeerNodeCache(Const.STUB_CACHE_SIZE, transport);
+		
+		pollExecutor = Executors.newFixedThreadPool(Const.POLL_THREADS, r -> {
+			Thread t = new Thread(r, "poll");
+			t.setDaemon(true);
+			return t;
+		});
+		pollRpcs = new AtomicLong();
+		polledFiles = new AtomicLong();
+		pollCycles = new AtomicLong();
+		seenMessages = new RouteTable <MessageId,Integer>(Const.ROUTE_LIFETIME, Const.ROUTE_CAPACITY, Const.ROUTE_BUCKETS);
+		hitCache = new HitCache(Const.HIT_CACHE_SIZE);
+		useHitCache = true;
 		searchResults = new ArrayList <FileLocation>();
-		localFiles = new ArrayList<FileLocation>();
-		remoteFiles = new ArrayList<FileLocation>();
+		searches = new ConcurrentHashMap<MessageId,DynamicSearch>();
+		walks = new ConcurrentHashMap<MessageId,RandomWalk>();
+		walkBias = Const.WALK_DEGREE_BIAS;
+		walkersForwarded = new AtomicLong();
+		walkersDropped = new AtomicLong();
+		stoppedWalks = new RouteTable<MessageId,Boolean>(Const.ROUTE_LIFETIME, Const.ROUTE_CAPACITY, Const.ROUTE_BUCKETS);
+		walkCalls = new ThreadPoolExecutor(Const.WALK_THREADS, Const.WALK_THREADS, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(Const.WALK_QUEUE_SIZE), r -> {
+			Thread t = new Thread(r, "walk");
+			t.setDaemon(true);
+			return t;
+		}, (r, executor) -> walkersDropped.incrementAndGet());
+		filteredResults = new AtomicLong();
+		hopLatency = Const.DQ_HOP_LATENCY * 1000000L;
+		localFiles = new FileTable();
+		remoteFiles = new FileTable();
+		hasher = new ContentHasher(Const.HASH_THREADS);
+		role = Role.PEER;
+		leafIndex = new LeafIndex();
+		router = new QueryRouter(this, QueryRouter.Mode.LAST_HOP);
+		messagesReceived = new AtomicLong();
 		
 		//work in push mode by default
 		pullMode = false; 
 		
 		defaultTtr = Const.DEFAULT_TTR;
+		ttrScheduler = new TtrScheduler(Const.TTR_JITTER);
+		refresher = new RefreshThread(this);
+		
+		batchSize = Const.BATCH_SIZE;
+		batchDelay = Const.BATCH_DELAY;
+		sendQueueLimit = Const.SEND_QUEUE_LIMIT;
+		sendDeadline = Const.SEND_DEADLINE;
+		
+		dispatchWorkers = Const.DISPATCH_WORKERS;
+		virtualThreads = false;
 		
-		msgIdSeq = 0; 
+		msgIdSeq = new AtomicLong(); 
 		
 		//used to distinguish between multiple runs of the same peer, does not have to be unique among peers
 		peerId = System.currentTimeMillis();
+		msgIdPrefix = MessageId.prefix(localAddress, localPort, peerId);
 	}
 	
+	/**
+	 * Get a copy of the list of remote FileLocations
+	 * @return list of FileLocations of downloaded files
+	 */
 	public ArrayList<FileLocation> getRemoteFiles() {
-		return remoteFiles;
+		return remoteFiles.list();
 	}
 	
+	/**
+	 * Add a downloaded file to the table of remote files. In pull mode the expiration of its TTR is scheduled
+	 * @param loc FileLocation of the downloaded file
+	 */
 	public void addRemoteFile(FileLocation loc) {
-		synchronized(remoteFiles) { 
-			remoteFiles.add(loc);
-		}
+		loc.setModified(new File(fileDirectoryName, loc.getName()).lastModified());
+		remoteFiles.put(loc);
+		if ( store != null )
+			store.put(loc, false);
+		if ( pullMode )
+			ttrScheduler.schedule(loc);
 	}
 	
+	/**
+	 * Get a copy of the list of local FileLocations
+	 * @return list of FileLocations of local files
+	 */
 	public ArrayList<FileLocation> getLocalFiles() {
+		return localFiles.list();
+	}
+	
+	public FileTable getLocalFileTable() {
 		return localFiles;
 	}
 	
+	public FileTable getRemoteFileTable() {
+		return remoteFiles;
+	}
+	
+	/**
+	 * Get the FileLocations this peer answers queries with: the local files and the valid copies of remote files, 
+	 * pointing to this peer. Published by leaves to their ultrapeers
+	 * @return list of FileLocations
+	 */
+	public ArrayList<FileLocation> getSharedFiles() {
+		ArrayList<FileLocation> files = localFiles.list();
+		for ( FileLocation loc : remoteFiles.list() ) {
+			FileLocation shared = shareRemoteFile(loc);
+			if ( shared != null && localFiles.get(loc.getName()) == null )
+				files.add(shared);
+		}
+		return files;
+	}
+	
+	/**
+	 * Create the FileLocation used to answer queries for a downloaded file. We cannot use the location stored on 
+	 * the remote table since that one points to the original copy, we want to answer the query with a FileLocation 
+	 * that points to us
+	 * @param loc FileLocation on the remote table
+	 * @return FileLocation pointing to this peer, or null if our copy is invalid or expired
+	 */
+	private FileLocation shareRemoteFile(FileLocation loc) {
+		if ( !loc.isValid() || loc.isExpired() )
+			return null;
+		FileLocation copy = new FileLocation(getAddress(),
+				loc.getName(),
+				loc.getSize(), 
+				loc.getVersion(),
+				getDefaultTtr()
+				);
+		copy.setOrigin(false);
+		copy.setHash(loc.getHash());
+		return copy;
+	}
+	
+	public LeafIndex getLeafIndex() {
+		return leafIndex;
+	}
+	
+	/**
+	 * Get the address other peers use to contact this peer
+	 * @return
+	 */
+	public InetSocketAddress getAddress() {
+		return new InetSocketAddress(localAddress, localPort);
+	}
+	
+	public Role getRole() {
+		return role;
+	}
+	/**
+	 * Set the role of this peer on the overlay. Must be called before any neighbor is added
+	 * @param role
+	 */
+	public void setRole(Role role) {
+		this.role = role;
+	}
+	
+	public long getMessagesReceived() {
+		return messagesReceived.get();
+	}
+	
 	public ArrayList<FileLocation> getSearchResults() {
 		return searchResults;
 	}
 	
+	/**
+	 * Group the search results by content, see FileLocation.sameContent()
+	 * @return for the first result with each content, its index on the search results and the number of results 
+	 * with the same content
+	 */
+	public LinkedHashMap<Integer,Integer> getUniqueResults() {
+		LinkedHashMap<Integer,Integer> unique = new LinkedHashMap<Integer,Integer>();
+		synchronized(searchResults) {
+			for ( int i = 0; i < searchResults.size(); i++ ) {
+				FileLocation result = searchResults.get(i);
+				Integer first = null;
+				for ( Integer j : unique.keySet() ) {
+					if ( searchResults.get(j).sameContent(result) ) {
+						first = j;
+						break;
+					}
+				}
+				if ( first == null )
+					unique.put(i, 1);
+				else
+					unique.put(first, unique.get(first) + 1);
+			}
+		}
+		return unique;
+	}
+	
+	/**
+	 * Get the estimated latency of one hop, measured on the results of dynamic searches
+	 * @return latency in nanoseconds
+	 */
+	public long getHopLatency() {
+		return hopLatency;
+	}
+	
+	/**
+	 * Add a sample to the estimated latency of one hop
+	 * @param sample latency of one hop in nanoseconds
+	 */
+	public void updateHopLatency(long sample) {
+		hopLatency = (hopLatency * 7 + sample) / 8;
+	}
+	
 	public int getDefaultTtr() {
 		return defaultTtr;
 	}
 	public void setDefaultTtr(int defaultTtr) {
 		this.defaultTtr = defaultTtr;
 	}
+	/**
+	 * Set the jitter applied to TTR expirations in pull mode
+	 * @param jitter fraction of the TTR by which expirations can be moved forward, at least 0 and less than 1
+	 * @throws IllegalArgumentException if jitter is out of range
+	 */
+	public void setTtrJitter(double jitter) {
+		ttrScheduler.setJitter(jitter);
+	}
+	public TtrScheduler getTtrScheduler() {
+		return ttrScheduler;
+	}
 	public boolean getPullMode() {
 		return pullMode; 
 	}
@@ -154,7 +432,7 @@ public class Peer implements PeerNode {
 		this.pullMode = pullMode;
 	}
 
-	public Hashtable<InetSocketAddress,PeerNode> getNeighbors() {
+	public NeighborTable getNeighbors() {
 		return neighbors;
 	}
 	
@@ -167,6 +445,166 @@ public class Peer implements PeerNode {
 		quiet = value;
 	}
 	
+	/**
+	 * Configure the worker pool used to process incoming messages. Must be called before exportPeerStub()
+	 * @param workers number of worker threads
+	 * @param virtual use virtual threads if supported by the JVM
+	 */
+	public void setDispatchWorkers(int workers, boolean virtual) {
+		dispatchWorkers = workers;
+		virtualThreads = virtual;
+	}
+	
+	/**
+	 * Configure batching of outgoing messages. Applies to neighbors added after the call
+	 * @param size maximum number of messages sent to a neighbor in one call, 1 disables batching
+	 * @param delay maximum time in microseconds a message waits for its batch to fill up
+	 */
+	public void setBatching(int size, long delay) {
+		batchSize = size;
+		batchDelay = delay;
+	}
+	
+	/**
+	 * Configure the outbound queue of each neighbor. Applies to neighbors added after the call
+	 * @param queueLimit maximum number of messages waiting to be sent to a neighbor
+	 * @param deadline time in milliseconds after which a message that could not be sent to a neighbor is dropped
+	 */
+	public void setSendLimits(int queueLimit, long deadline) {
+		sendQueueLimit = queueLimit;
+		sendDeadline = deadline;
+	}
+	
+	/**
+	 * Create the NeighborChannel used to send messages to a neighbor 
+	 * @param address address of the neighbor
+	 * @return
+	 */
+	private NeighborChannel newChannel(InetSocketAddress address) {
+		return new NeighborChannel(address, peerNodes, batchSize, batchDelay, sendQueueLimit, sendDeadline, 
+				() -> channelFailed(address));
+	}
+	
+	/**
+	 * Called when deliveries to a neighbor keep failing. A leaf is detached, other neighbors are kept since they
+	 * may come back
+	 * @param address
+	 */
+	private void channelFailed(InetSocketAddress address) {
+		int handle = neighbors.handleOf(address.getHostString(), address.getPort());
+		NeighborTable.Neighbor neighbor = neighbors.getNeighbor(handle);
+		if ( neighbor != null && neighbor.isLeaf() )
+			detachLeaf(handle);
+	}
+	
+	/**
+	 * Detach a leaf: its files are dropped from the leaf index, so queries are no longer answered with them and 
+	 * they leave our routing table, and its slot is freed for another leaf
+	 * @param handle handle of the leaf
+	 */
+	public void detachLeaf(int handle) {
+		NeighborTable.Neighbor leaf = neighbors.getNeighbor(handle);
+		if ( leaf == null || !leaf.isLeaf() || !neighbors.remove(handle) )
+			return;
+		leafIndex.unpublish(leaf.getAddress());
+		router.reset(handle);
+		router.wakeup();
+		System.out.println("Detached leaf " + leaf.getAddress());
+	}
+	
+	/**
+	 * Detach the leaves that have not published their files for Const.LEAF_TIMEOUT. Leaves publish at least every 
+	 * Const.LEAF_REFRESH, called periodically by the QueryRouter of ultrapeers
+	 */
+	public void expireLeaves() {
+		long now = System.nanoTime();
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			if ( neighbor.isLeaf() && now - neighbor.getLastSeen() > Const.LEAF_TIMEOUT * 1000000L )
+				detachLeaf(neighbor.getHandle());
+		}
+	}
+	
+	/**
+	 * Enable or disable answering queries from the cache of results routed through this peer
+	 * @param enabled
+	 */
+	public void setHitCache(boolean enabled) {
+		useHitCache = enabled;
+	}
+	
+	/**
+	 * Choose whether random walkers are forwarded to neighbors with a probability proportional to their number of
+	 * neighbors, or uniformly. The number of neighbors of a neighbor is only known once it sent its routing table
+	 * @param enabled
+	 */
+	public void setWalkBias(boolean enabled) {
+		walkBias = enabled;
+	}
+	
+	/**
+	 * Set how query routing tables are exchanged with the neighbors and used to forward queries
+	 * @param mode
+	 */
+	public void setQueryRouting(QueryRouter.Mode mode) {
+		router.setMode(mode);
+	}
+	public QueryRouter getQueryRouter() {
+		return router;
+	}
+	
+	/**
+	 * Set the transport used to communicate with other peers. Must be called before exportPeerStub()
+	 * @param transport
+	 */
+	public void setTransport(PeerTransport transport) {
+		this.transport = transport;
+		peerNodes = new PeerNodeCache(Const.STUB_CACHE_SIZE, transport);
+	}
+	public PeerNodeCache getPeerNodeCache() {
+		return peerNodes;
+	}
+	
+	public MessageDispatcher getDispatcher() {
+		return dispatcher;
+	}
+	
+	/**
+	 * Build a human readable summary of the peer's counters
+	 * @return String with one line per component
+	 */
+	public String getStats() {
+		String str = "role: " + role;
+		if ( role == Role.ULTRAPEER )
+			str += ", " + neighbors.leafCount() + "/" + Const.MAX_LEAVES + " leaves attached, index " + leafIndex;
+		str += "\nmessages received: " + messagesReceived.get();
+		str += "\ndispatcher: " + dispatcher;
+		str += "\ntransfers: " + transferServer;
+		str += "\ntransport: " + transport;
+		str += "\nstub cache: " + peerNodes;
+		str += "\nttr scheduler: " + ttrScheduler.size() + " deadlines";
+		str += "\npolls: " + pollRpcs.get() + " rpcs for " + polledFiles.get() + " files in " + pollCycles.get() + " cycles";
+		str += "\nrefresh: " + refresher;
+		str += "\nseen messages: " + seenMessages;
+		str += "\nhit cache: " + (useHitCache ? hitCache : "disabled");
+		str += "\nrouting: " + router;
+		str += "\nshare watcher: " + (watcher != null ? watcher : "disabled");
+		str += "\nmetadata store: " + (store != null ? store : "disabled");
+		str += "\ncontent hashes: " + hasher;
+		str += "\nquery filters: " + filteredResults.get() + " results not sent";
+		str += "\ndynamic searches: " + searches.size() + " rounds, hop latency " + hopLatency / 1000 + "us";
+		str += "\nrandom walks: " + walks.size() + " started, " + walkersForwarded.get() + " walkers forwarded, " + 
+				walkersDropped.get() + " dropped, " + stoppedWalks.size() + " stopped" + 
+				(walkBias ? ", biased by degree" : "");
+		str += "\nneighbor channels: batch size " + batchSize + ", delay " + batchDelay + "us" + 
+				", queue limit " + sendQueueLimit + ", deadline " + sendDeadline + "ms";
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			str += "\n  " + neighbor.getAddress() + (neighbor.isLeaf() ? " (leaf)" : "") + ": " + neighbor.getChannel();
+			if ( neighbor.getRoutes() != null )
+				str += "\n    routing table " + neighbor.getRoutes() + (neighbor.isRoutesAggregate() ? ", aggregate" : "");
+		}
+		return str;
+	}
+	
 	public static void main(String[] args) {
 		//create and parse options
 		createOptions();
@@ -190,6 +628,67 @@ public class Peer implements PeerNode {
 					Integer.parseInt(cmd.getOptionValue("P")),
 					cmd.getOptionValue("D"));
 
+			//Configure message batching
+			if( cmd.hasOption("b") || cmd.hasOption("B") ) {
+				peer.setBatching(
+						Integer.parseInt(cmd.getOptionValue("b", "" + Const.BATCH_SIZE)),
+						Long.parseLong(cmd.getOptionValue("B", "" + Const.BATCH_DELAY)));
+			}
+			
+			if( cmd.hasOption("q") || cmd.hasOption("d") ) {
+				peer.setSendLimits(
+						Integer.parseInt(cmd.getOptionValue("q", "" + Const.SEND_QUEUE_LIMIT)),
+						Long.parseLong(cmd.getOptionValue("d", "" + Const.SEND_DEADLINE)));
+			}
+			
+			if( cmd.hasOption("C") ) {
+				peer.setHitCache(false);
+			}
+			
+			//Select role on the overlay
+			if( cmd.hasOption("u") ) {
+				String role = cmd.getOptionValue("u");
+				if ( role.equals("ultrapeer") ) {
+					peer.setRole(Role.ULTRAPEER);
+				} else if ( role.equals("leaf") ) {
+					peer.setRole(Role.LEAF);
+				} else if ( !role.equals("peer") ) {
+					System.out.println("Unknown role " + role);
+					System.exit(0);
+				}
+			}
+			
+			//Select query routing mode
+			if( cmd.hasOption("R") ) {
+				String mode = cmd.getOptionValue("R");
+				if ( mode.equals("off") ) {
+					peer.setQueryRouting(QueryRouter.Mode.OFF);
+				} else if ( mode.equals("aggregate") ) {
+					peer.setQueryRouting(QueryRouter.Mode.AGGREGATE);
+				} else if ( !mode.equals("last-hop") ) {
+					System.out.println("Unknown routing mode " + mode);
+					System.exit(0);
+				}
+			}
+			
+			//Select transport
+			if( cmd.hasOption("T") ) {
+				String name = cmd.getOptionValue("T");
+				if ( name.equals("nio") ) {
+					peer.setTransport(new NioTransport());
+				} else if ( !name.equals("rmi") ) {
+					System.out.println("Unknown transport " + name);
+					System.exit(0);
+				}
+			}
+
+			//Configure message processing workers
+			if( cmd.hasOption("w") || cmd.hasOption("v") ) {
+				peer.setDispatchWorkers(
+						Integer.parseInt(cmd.getOptionValue("w", "" + Const.DISPATCH_WORKERS)),
+						cmd.hasOption("v"));
+			}
+
 			//Export PeerNode interface using RMI
 			System.out.println("Exporting PeerNode interface");
 			try {
@@ -225,14 +724,46 @@ public class Peer implements PeerNode {
 				if( cmd.hasOption("t")) {
 					peer.setDefaultTtr(Integer.parseInt(cmd.getOptionValue("t")));
 				}
+				if( cmd.hasOption("j")) {
+					try {
+						peer.setTtrJitter(Double.parseDouble(cmd.getOptionValue("j")));
+					} catch (IllegalArgumentException e) {
+						System.out.println(e.getMessage());
+						System.exit(0);
+					}
+				}
 				
 				//Start pull mode threads
 				peer.initPullMode();
 			}
 			
-			//Load files from local dir
-			System.out.println("loading local files");
-			peer.loadFiles();
+			//Restore the file tables from the metadata store of the local dir
+			boolean restored = false;
+			if( cmd.hasOption("M") ) {
+				try {
+					restored = peer.restoreFiles();
+				} catch (IOException e) {
+					System.out.println("Failed to open metadata store");
+				}
+			}
+			
+			//Load files from local dir, restored files are checked in the background
+			if ( restored ) {
+				System.out.println("restored files, checking for changes");
+				peer.checkFiles();
+			} else {
+				System.out.println("loading local files");
+				peer.loadFiles();
+			}
+			
+			//Watch local dir for changes
+			if( cmd.hasOption("W") ) {
+				try {
+					peer.watchFiles();
+				} catch (IOException e) {
+					System.out.println("Failed to watch shared directory");
+				}
+			}
 			
 			//Create a new PeerConsole attached to the Peer object
 			new PeerConsole(peer);
@@ -244,9 +775,11 @@ public class Peer implements PeerNode {
 	
 	
 	/**
-	 * Start TTR refresh thread
+	 * Start TTR refresh thread and schedule the expiration of the files downloaded so far
 	 */
 	public void initPullMode() {
+		for ( FileLocation loc : remoteFiles.list() )
+			ttrScheduler.schedule(loc);
 		updateTtrThr = new UpdateTtrThread(this);
 		updateTtrThr.start();
 	}
@@ -277,6 +810,11 @@ public class Peer implements PeerNode {
                 .hasArg()
                 .desc(  "ttr value in seconds of pull based consistency" )
                 .build();
+		Option ttrJitter   = Option.builder("j")
+				.argName( "jitter" )
+                .hasArg()
+                .desc(  "fraction of the ttr (0 to less than 1) by which expirations are randomly moved forward to spread polls" )
+                .build();
 		Option pullFlag   = Option.builder("p")
 				.argName( "ip_address" )
                 .desc(  "Use pull approach for file consistency" )
@@ -299,6 +837,70 @@ public class Peer implements PeerNode {
                 .desc(  "provide a list of neighbors in format <ip1>:<port1>,<ip2>:<port2>..." )
                 .longOpt("neighbors")
                 .build();
+		Option workers   = Option.builder("w")
+				.argName( "workers" )
+                .hasArg()
+                .desc(  "number of worker threads used to process incoming messages" )
+                .longOpt("workers")
+                .build();
+		Option virtual   = Option.builder("v")
+                .desc(  "use virtual threads to process incoming messages (if supported by the JVM)" )
+                .longOpt("virtual-threads")
+                .build();
+		Option transport   = Option.builder("T")
+				.argName( "rmi|nio" )
+                .hasArg()
+                .desc(  "transport used to talk to other peers: java rmi (default) or binary protocol over persistent connections. All peers must use the same transport" )
+                .longOpt("transport")
+                .build();
+		Option batchSize   = Option.builder("b")
+				.argName( "messages" )
+                .hasArg()
+                .desc(  "maximum number of query, hitquery and invalidate messages sent to a neighbor in one call (1 disables batching)" )
+                .longOpt("batch-size")
+                .build();
+		Option batchDelay   = Option.builder("B")
+				.argName( "microseconds" )
+                .hasArg()
+                .desc(  "maximum time a message waits for its batch to fill up" )
+                .longOpt("batch-delay")
+                .build();
+		Option queueLimit   = Option.builder("q")
+				.argName( "messages" )
+                .hasArg()
+                .desc(  "maximum number of messages queued for a neighbor, further messages are dropped" )
+                .longOpt("queue-limit")
+                .build();
+		Option sendDeadline   = Option.builder("d")
+				.argName( "milliseconds" )
+                .hasArg()
+                .desc(  "messages that could not be sent to a neighbor within this time are dropped" )
+                .longOpt("send-deadline")
+                .build();
+		Option noHitCache   = Option.builder("C")
+                .desc(  "do not answer queries from the cache of results routed through this peer" )
+                .longOpt("no-hit-cache")
+                .build();
+		Option routing   = Option.builder("R")
+				.argName( "off|last-hop|aggregate" )
+                .hasArg()
+                .desc(  "query routing tables: not used, only for the last hop (default), or covering every file reachable through a neighbor" )
+                .longOpt("routing")
+                .build();
+		Option role   = Option.builder("u")
+				.argName( "peer|ultrapeer|leaf" )
+                .hasArg()
+                .desc(  "role on the overlay: flat flooding peer (default), ultrapeer that answers for its leaves, or leaf attached to the ultrapeers given with -N" )
+                .longOpt("role")
+                .build();
+		Option watch   = Option.builder("W")
+                .desc(  "watch the shared directory and share files as they are created, modified or deleted" )
+                .longOpt("watch")
+                .build();
+		Option metadata   = Option.builder("M")
+                .desc(  "keep the file tables on a metadata store in the shared directory so a restarted peer does not scan it again" )
+                .longOpt("metadata")
+                .build();
 		Option help   = Option.builder("h")
                 .desc(  "print this help" )
                 .longOpt("help")
@@ -311,281 +913,813 @@ public class Peer implements PeerNode {
 		options.addOption(directory);
 		options.addOption(help);
 		options.addOption(ttrValue);
+		options.addOption(ttrJitter);
+		options.addOption(workers);
+		options.addOption(virtual);
+		options.addOption(transport);
+		options.addOption(batchSize);
+		options.addOption(batchDelay);
+		options.addOption(queueLimit);
+		options.addOption(sendDeadline);
+		options.addOption(noHitCache);
+		options.addOption(routing);
+		options.addOption(role);
+		options.addOption(watch);
+		options.addOption(metadata);
 	}
 	
 	/**
-	 * Read files from shared directory and create their local FileLocations 
+	 * Read files from shared directory and its subdirectories and create their local FileLocations. Files in 
+	 * subdirectories are named by their path relative to the shared directory. 
+	 * <br>
+	 * Can be called again to bring the local file table up to date: files loaded already are only updated if they 
+	 * changed on disk, and files that are gone are removed. Downloaded files that are gone are removed from the 
+	 * remote file table and downloaded files that changed on disk are invalidated. 
+	 * <br>
+	 * With a metadata store only the directories that changed since they were last listed are listed again, the 
+	 * other files are only checked for changes of their size and modification time
 	 */
 	public void loadFiles() {
-		
-		File fileDir = new File(fileDirectoryName);
-		File[] files = fileDir.listFiles();
-		long fileSize; 
-		String fileName; 
-
-		// Go through each file 
-		for (int i = 0; i < files.length; i++) {
-			if (files[i].isFile() && !files[i].isHidden()) {
-				fileSize = files[i].length();
-				fileName = files[i].getName();
-				//Create FileLocation for each file found
-				FileLocation location = new FileLocation(
-						new InetSocketAddress(localAddress, localPort), //use this peer's address and port
-						fileName, 
-						fileSize,
-						1, //all files start with version 1 
-						defaultTtr); 
-				//Add FileLocation to localFiles list
-				localFiles.add(location);
-			} 
+		synchronized ( shareLock ) {
+			Path root = new File(fileDirectoryName).toPath();
+			HashSet<String> found = new HashSet<String>();
+			
+			// Go through each file 
+			try {
+				if ( store != null && store.hasDirectories() ) {
+					for ( Map.Entry<String,Long> dir : store.getDirectories().entrySet() ) {
+						File file = new File(fileDirectoryName, dir.getKey());
+						if ( !file.isDirectory() )
+							store.removeDirectory(dir.getKey());
+						else if ( file.lastModified() != dir.getValue() )
+							scanDirectory(root, file.toPath(), false, found);
+					}
+				} else {
+					scanDirectory(root, root, true, found);
+				}
+			} catch (IOException | UncheckedIOException e) {
+				System.out.println("Failed to read shared directory " + fileDirectoryName);
+				return;
+			}
+			
+			//Check the files that were not listed, remove the files that are gone
+			for ( FileLocation loc : localFiles.list() ) {
+				if ( found.contains(loc.getName()) )
+					continue;
+				File file = new File(fileDirectoryName, loc.getName());
+				if ( file.isFile() )
+					updateLocalFile(loc.getName(), file);
+				else
+					removeLocalFile(loc);
+			}
+			for ( FileLocation loc : remoteFiles.list() ) {
+				File file = new File(fileDirectoryName, loc.getName());
+				if ( !file.isFile() ) {
+					if ( remoteFiles.remove(loc) && store != null )
+						store.remove(loc.getName(), false);
+				} else if ( loc.isValid() && ( file.length() != loc.getSize() || file.lastModified() != loc.getModified() ) ) {
+					//our copy was changed, download it again
+					loc.invalidate();
+					refresher.wakeup();
+				}
+			}
+			
+			//Hash the new and changed files
+			ArrayList<FileLocation> unhashed = new ArrayList<FileLocation>();
+			for ( FileLocation loc : localFiles.list() ) {
+				if ( loc.getHash() == null )
+					unhashed.add(loc);
+			}
+			hashFiles(unhashed);
 		}
 	}
 	
 	/**
-	 * Send a query message to all the peer's neighbors
-	 * @param name String representing the name of the file to be searched
-	 * @return
-	 * @throws RemoteException 
+	 * Compute the content hashes of local files in parallel and record them on the metadata store
+	 * @param files local FileLocations without a hash
 	 */
-	public void search(String name) throws RemoteException {
-		//generate msgId 
-		//localAddress and localPort ensure that message is unique among peers
-		//peerId is used to distinguish between different runs of the same peer (i.e. same address and port) 
-		//msgIdSeq is used to distinguish between different messages from the same peer
-		String msgId = localAddress + ":" + localPort + "_" + peerId + "_" + msgIdSeq++;
-		//Add message to list of seen messages in case there is a loop in the topology 
-		seenMessages.put(msgId, this);
-		
-		//Broadcast message to all neighbors
-		for ( PeerNode neighbor : neighbors.values() ) {
-			neighbor.query(msgId, Const.TTL, name, localAddress, localPort);
-		}
+	private void hashFiles(ArrayList<FileLocation> files) {
+		hasher.hash(new File(fileDirectoryName), files, loc -> storeLocalFile(loc));
 	}
 	
-		
 	/**
-	 * Used in push mode to notify all nodes that a file has been updated 
-	 * @param location FileLocation of the file that was updated 
-	 * @throws RemoteException
+	 * Add the files of a directory to the local file table and record the directory on the metadata store
+	 * @param root shared directory
+	 * @param dir directory to list
+	 * @param recursive true to list every subdirectory, false to only list the subdirectories that are not on the 
+	 * metadata store
+	 * @param found names of the files listed are added to this set
+	 * @throws IOException
 	 */
-	public void sendInvalidate(FileLocation location) throws RemoteException {
-		
-		//Don't do anything if running in pull mode
-		if( pullMode )
-			return;
-		
-		//generate msgId 
-		//localAddress and localPort ensure that message is unique among peers
-		//peerId is used to distinguish between different runs of the same peer (i.e. same address and port) 
-		//msgIdSeq is used to distinguish between different messages from the same peer
-		String msgId = localAddress + ":" + localPort + "_" + peerId + "_" + msgIdSeq++; 
-		//Add message to list of seen messages in case there is a loop in the topology 
-		seenMessages.put(msgId, this);
-		
-		//Broadcast message to all neighbors
-		for ( PeerNode neighbor : neighbors.values() ) {
-			neighbor.invalidate(msgId, Const.TTL, location.getName(), location, localAddress, localPort);
+	private void scanDirectory(Path root, Path dir, boolean recursive, HashSet<String> found) throws IOException {
+		try (Stream<Path> paths = Files.walk(dir, recursive ? Integer.MAX_VALUE : 1)) {
+			for ( Path path : (Iterable<Path>) paths::iterator ) {
+				String fileName = ShareWatcher.nameOf(root, path);
+				if ( ShareWatcher.isIgnored(fileName) )
+					continue;
+				if ( Files.isRegularFile(path) ) {
+					found.add(fileName);
+					updateLocalFile(fileName, path.toFile());
+				} else if ( store != null && Files.isDirectory(path) ) {
+					if ( recursive || path.equals(dir) )
+						store.putDirectory(fileName, path.toFile().lastModified());
+					else if ( store.getDirectory(fileName) == null )
+						scanDirectory(root, path, true, found);
+				}
+			}
 		}
 	}
 	
 	/**
-	 * Establish a neighbor relationship with another peer. Obtains the peer's stub and saves it on the neighbor table
-	 * and sends a hello message to the peer so that it can also establish a neighbor relationship to this peer.
-	 * @param addr InetSocketAddress of the peer that we want to add as a neighbor
-	 * @return
-	 * @throws RemoteException
-	 * @throws NotBoundException
+	 * Open the metadata store of the shared directory and fill the file tables with the files recorded on it, 
+	 * without reading the shared directory. checkFiles() should be called next to find the changes made while the 
+	 * peer was not running
+	 * @return true if the shared directory had been loaded before, false if loadFiles() must be called to load it
+	 * @throws IOException
 	 */
-	public boolean sayHello(InetSocketAddress addr) throws RemoteException, NotBoundException {
-		String address = addr.getHostString();
-		int port = addr.getPort();
-		
-		//Query the Peer's registry to obtain its PeerNode remote object
-		Registry registry = LocateRegistry.getRegistry(address, port);
-		PeerNode neighbor = (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);
-		
-		//Save our address
-		InetSocketAddress localAddr= new InetSocketAddress(localAddress, localPort);
-		//Say hello to peer inform them of our address so they can add us as a neighbor
-		if (neighbor.hello( localAddr)) {
-			//Add peer to our neighbor table
-			neighbors.put(addr,neighbor);
-			System.out.println("Added neighbor successfully");
-			return true;
+	public boolean restoreFiles() throws IOException {
+		if ( store != null )
+			return false;
+		store = new MetadataStore(fileDirectoryName, localFiles, remoteFiles);
+		store.load(getAddress(), defaultTtr);
+		store.start();
+		if ( pullMode ) {
+			for ( FileLocation loc : remoteFiles.list() )
+				ttrScheduler.schedule(loc);
 		}
-		
-		return false; 
+		return store.hasDirectories();
 	}
 	
 	/**
-	 * Creates an RMI registry and binds the PeerNode remote object to it.  
-	 * @throws RemoteException
+	 * Check the files restored from the metadata store in the background: the shared directory is brought up to 
+	 * date with loadFiles() and the owners of downloaded files are polled, since invalidates sent while the peer 
+	 * was not running were lost
 	 */
-	public void exportPeerStub() throws RemoteException {
- 		peerStub = (PeerNode) UnicastRemoteObject.exportObject(this,0);
- 		registry = LocateRegistry.getRegistry(localPort);
-		registry = LocateRegistry.createRegistry(localPort);
-        registry.rebind(Const.PEER_SERVICE_NAME, peerStub);
+	public void checkFiles() {
+		Thread check = new Thread(() -> {
+			long start = System.nanoTime();
+			loadFiles();
+			if ( !quiet )
+				System.out.println("Checked shared directory in " + (System.nanoTime() - start) / 1000000 + "ms");
+			sendPolls(remoteFiles.list());
+		}, "share-check");
+		check.setDaemon(true);
+		check.start();
 	}
 	
 	/**
-	 * Remove stub and shutdown registry
-	 * @throws AccessException
-	 * @throws RemoteException
-	 * @throws NotBoundException
+	 * Close the metadata store, writing the changes not written yet
 	 */
-	public void shutdownPeerStub() throws AccessException, RemoteException, NotBoundException {
-		registry.unbind(Const.PEER_SERVICE_NAME);
-		UnicastRemoteObject.unexportObject(this, false);
-		UnicastRemoteObject.unexportObject(registry, false);
+	public void closeStore() {
+		if ( store != null )
+			store.shutdown();
 	}
 	
-		
 	/**
-	 * Reduce the TTR counter of each of the files that have been downloaded from other peers
+	 * Record a change to a local FileLocation on the metadata store, if enabled
+	 * @param loc
 	 */
-	public void tickTtr() {
-		synchronized(remoteFiles) {
-			for( FileLocation loc : remoteFiles ) {
-				loc.tickTtr();
-			}
-		}
+	public void storeLocalFile(FileLocation loc) {
+		if ( store != null )
+			store.put(loc, true);
 	}
 	
+	/**
+	 * Watch the shared directory and update the local file table when files are created, modified or deleted
+	 * @throws IOException
+	 */
+	public void watchFiles() throws IOException {
+		if ( watcher != null )
+			return;
+		watcher = new ShareWatcher(this, fileDirectoryName);
+		watcher.start();
+		//catch the changes made before the directory was watched
+		loadFiles();
+	}
 	
 	/**
-	 * Redownloaded all invalid files
+	 * Called by the ShareWatcher when a file of the shared directory was created, modified or deleted
+	 * @param name name of the file relative to the shared directory
 	 */
-	public void refreshFiles()  {
-		
-		//Go through list of remote files
-		synchronized(remoteFiles) {
-			for( int i = remoteFiles.size() -1; i >= 0; i--) {//Traverse list backwards to ensure safe deletion during traversal
-				FileLocation loc = remoteFiles.get(i); 
-
-				//Find files that have been marked as invalid
-				if (!loc.isValid()) {
-
-					//delete the current copy of the file
-					String fileName = fileDirectoryName + File.separator + loc.getName();
-					new File(fileName).delete();
-
-					//Remove the FileLocation from the list of remote files 
-					remoteFiles.remove(i);
-
-					try {
-						//obtain a PeerNode stub of the owner of the file 
-						String address = loc.getLocationAddress().getHostString();
-						int port = loc.getLocationAddress().getPort();
-						Registry registry = LocateRegistry.getRegistry(address, port);
-						PeerNode owner = (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);	
-
-						//get new FileLocation with updated version and TTR from the owner 
-						FileLocation newFileLocation = owner.poll(loc.getName());
-
-						//download the file using the new FileLocation 
-						download( newFileLocation, quiet );
-					} catch (NotBoundException | IOException e) {
-						System.out.println("Failed to download new copy for " + loc.getName() );
-					} 
+	public void shareChanged(String name) {
+		synchronized ( shareLock ) {
+			File file = new File(fileDirectoryName, name);
+			if ( file.isFile() ) {
+				updateLocalFile(name, file);
+				FileLocation loc = localFiles.get(name);
+				if ( loc != null && loc.getHash() == null ) {
+					ArrayList<FileLocation> unhashed = new ArrayList<FileLocation>();
+					unhashed.add(loc);
+					hashFiles(unhashed);
 				}
+				return;
+			}
+			FileLocation loc = localFiles.get(name);
+			if ( loc != null ) {
+				removeLocalFile(loc);
+				return;
+			}
+			//a directory was deleted or moved away, remove the files that were in it
+			for ( FileLocation local : localFiles.list() ) {
+				if ( local.getName().startsWith(name + "/") && !new File(fileDirectoryName, local.getName()).isFile() )
+					removeLocalFile(local);
 			}
 		}
 	}
 	
 	/**
-	 * Go through list of remote FileLocations and poll the owners of each file that is expired
+	 * Add a file to the local file table, or increase its version if it changed on disk. Files downloaded from 
+	 * other peers are on the remote file table and are not added
+	 * @param name name of the file relative to the shared directory
+	 * @param file
 	 */
-	public void sendPolls() {
+	private void updateLocalFile(String name, File file) {
+		if ( remoteFiles.get(name) != null )
+			return;
+		FileLocation loc = localFiles.get(name);
+		if ( loc == null ) {
+			//Create FileLocation for each new file
+			loc = new FileLocation(
+					new InetSocketAddress(localAddress, localPort), //use this peer's address and port
+					name, 
+					file.length(),
+					1, //all files start with version 1 
+					defaultTtr); 
+			loc.setModified(file.lastModified());
+			localFiles.put(loc);
+			storeLocalFile(loc);
+			return;
+		}
+		if ( loc.getSize() == file.length() && loc.getModified() == file.lastModified() )
+			return;
 		
-		//Go through FileLocations of downloaded files 
-		synchronized(remoteFiles) {
-			for( FileLocation loc : remoteFiles ) {
-
-				//Check if they are about to expire
-				if (loc.isExpired() ) {
-
-					try {
-						//obtain a PeerNode stub for file's owner 
-						String address = loc.getLocationAddress().getHostString();
-						int port = loc.getLocationAddress().getPort();
-						Registry registry = LocateRegistry.getRegistry(address, port);
-						PeerNode owner = (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);	
-
-						//get new FileLocation from the owner 
-						FileLocation newFileLocation = owner.poll(loc.getName());
-
-						//compare our version with the version of the received FileLocation from the owner
-						if ( newFileLocation == null || newFileLocation.getVersion() > loc.getVersion() ) {
-							loc.invalidate();//invalidate our FileLocation if the owner has a new version
-						} else {
-							loc.setTtr(newFileLocation.getTtr());//refresh the file's TTR if our copy is up to date
-						}					
-					} catch (Exception e ) {
-						System.out.println("Poll failed");
-					}
-
+		//the file was modified, peers with copies must download it again
+		loc.update(file.length(), file.lastModified());
+		storeLocalFile(loc);
+		if ( !quiet )
+			System.out.println("Updated -> " + loc);
+		try {
+			sendInvalidate(loc);
+		} catch (RemoteException e) {
+			System.out.println("Failed to send invalidate for " + name);
+		}
+	}
+	
+	/**
+	 * Remove a file that was deleted from the shared directory. The version is increased and an invalidate is 
+	 * sent so that peers with copies poll this peer, find out the file is gone and remove their copies
+	 * @param loc
+	 */
+	private void removeLocalFile(FileLocation loc) {
+		if ( !localFiles.remove(loc) )
+			return;
+		if ( store != null )
+			store.remove(loc.getName(), true);
+		loc.touch();
+		if ( !quiet )
+			System.out.println("Removed -> " + loc);
+		try {
+			sendInvalidate(loc);
+		} catch (RemoteException e) {
+			System.out.println("Failed to send invalidate for " + loc.getName());
+		}
+	}
+	
+	/**
+	 * Generate a new unique MessageId.
+	 * localAddress and localPort ensure that message is unique among peers
+	 * peerId is used to distinguish between different runs of the same peer (i.e. same address and port) 
+	 * msgIdSeq is used to distinguish between different messages from the same peer
+	 * @return MessageId
+	 */
+	private MessageId newMessageId() {
+		return new MessageId(msgIdPrefix, msgIdSeq.getAndIncrement());
+	}
+	
+	/**
+	 * Send a query message to all the peer's neighbors
+	 * @param name String representing the name of the file to be searched
+	 * @return
+	 * @throws RemoteException 
+	 */
+	public void search(String name) throws RemoteException {
+		sendQuery(name, Const.TTL, null, null);
+	}
+	
+	/**
+	 * Send a query message to all the peer's neighbors, asking only for the results that meet the conditions of a 
+	 * filter
+	 * @param name String representing the name of the file to be searched
+	 * @param filter conditions the results must meet, or null
+	 * @throws RemoteException 
+	 */
+	public void search(String name, QueryFilter filter) throws RemoteException {
+		sendQuery(name, Const.TTL, filter, null);
+	}
+	
+	/**
+	 * Search for a file with an expanding ttl, starting with a small ttl and sending the query again with a larger 
+	 * ttl until enough results are found. Results are added to the search results as they arrive.
+	 * @param name String representing the name of the file to be searched
+	 * @param targetResults number of results after which the search stops
+	 * @param maxTtl maximum ttl of the query
+	 * @return the DynamicSearch, already started. It finishes when it has enough results or after the round with 
+	 * the maximum ttl
+	 */
+	public DynamicSearch search(String name, int targetResults, int maxTtl) {
+		//forget searches whose results can not arrive anymore
+		long now = System.nanoTime();
+		searches.values().removeIf(search -> search.isFinished() && 
+				now - search.getEndTime() > Const.ROUTE_LIFETIME * 1000000L);
+		
+		DynamicSearch search = new DynamicSearch(this, name, targetResults, maxTtl);
+		search.start();
+		return search;
+	}
+	
+	/**
+	 * Send a query to the neighbors 
+	 * @param name String representing the name of the file to be searched
+	 * @param ttl ttl of the query
+	 * @param filter conditions the results must meet, or null
+	 * @param search DynamicSearch the query is a round of, or null
+	 * @return the MessageId of the query
+	 * @throws RemoteException
+	 */
+	public MessageId sendQuery(String name, long ttl, QueryFilter filter, DynamicSearch search) throws RemoteException {
+		//generate msgId 
+		MessageId msgId = newMessageId();
+		if ( search != null )
+			searches.put(msgId, search);
+		//Add message to list of seen messages in case there is a loop in the topology 
+		seenMessages.putIfAbsent(msgId, NeighborTable.LOCAL);
+		
+		//The leaves of an ultrapeer are not queried, their files are in the leaf index
+		for ( FileLocation loc : leafIndex.lookup(name) ) {
+			if ( !matches(filter, loc) || (search != null && !search.hit(msgId, loc, 0)) )
+				continue;
+			synchronized(searchResults) {
+				searchResults.add(loc);
+			}
+		}
+		
+		//Queue message for all neighbors that might have the file, they are sent concurrently by the channel of 
+		//each neighbor
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			if ( !neighbor.isLeaf() && router.shouldForward(neighbor, name, ttl, false) )
+				neighbor.getChannel().send(Message.query(msgId, ttl, name, localAddress, localPort, filter));
+		}
+		return msgId;
+	}
+	
+	/**
+	 * Search for the files whose names contain every keyword of a query. The query is flooded with Const.TTL like
+	 * search(), peers answer with every matching file
+	 * @param keywords keywords separated by spaces or punctuation
+	 * @throws RemoteException
+	 */
+	public void searchKeywords(String keywords) throws RemoteException {
+		searchKeywords(keywords, null);
+	}
+	
+	/**
+	 * Search for the files whose names contain every keyword of a query and meet the conditions of a filter
+	 * @param keywords keywords separated by spaces or punctuation
+	 * @param filter conditions the results must meet, or null
+	 * @throws RemoteException
+	 */
+	public void searchKeywords(String keywords, QueryFilter filter) throws RemoteException {
+		MessageId msgId = newMessageId();
+		seenMessages.putIfAbsent(msgId, NeighborTable.LOCAL);
+		
+		//The leaves of an ultrapeer are not queried, their files are in the leaf index
+		for ( FileLocation loc : leafIndex.search(keywords) ) {
+			if ( !matches(filter, loc) )
+				continue;
+			synchronized(searchResults) {
+				searchResults.add(loc);
+			}
+		}
+		
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			if ( !neighbor.isLeaf() && router.shouldForward(neighbor, keywords, Const.TTL, true) )
+				neighbor.getChannel().send(Message.keywords(msgId, Const.TTL, keywords, localAddress, localPort, filter));
+		}
+	}
+	
+	/**
+	 * Search for a file with random walkers instead of flooding the query. Results are added to the search results
+	 * as they arrive.
+	 * @param name String representing the name of the file to be searched
+	 * @param walkers number of walkers
+	 * @param targetResults number of results after which the walkers are stopped
+	 * @return the RandomWalk
+	 * @throws RemoteException
+	 */
+	public RandomWalk walk(String name, int walkers, int targetResults) throws RemoteException {
+		//forget walks whose results can not arrive anymore
+		long now = System.nanoTime();
+		walks.values().removeIf(walk -> now - walk.getStartTime() > (Const.WALK_TIMEOUT + Const.ROUTE_LIFETIME) * 1000000L);
+		
+		MessageId msgId = newMessageId();
+		RandomWalk walk = new RandomWalk(msgId, name, walkers, targetResults);
+		walks.put(msgId, walk);
+		seenMessages.putIfAbsent(msgId, NeighborTable.LOCAL);
+		
+		//The leaves of an ultrapeer are not visited, their files are in the leaf index
+		for ( FileLocation loc : leafIndex.lookup(name) ) {
+			if ( !walk.hit(loc) )
+				continue;
+			synchronized(searchResults) {
+				searchResults.add(loc);
+			}
+		}
+		if ( walk.isFinished() )
+			return walk;
+		
+		//Each walker starts on its own random neighbor
+		for ( int i = 0; i < walkers; i++ ) {
+			NeighborTable.Neighbor next = nextHop(NeighborTable.LOCAL, name, Const.WALK_TTL);
+			if ( next == null )
+				break;
+			next.getChannel().send(Message.walk(msgId, Const.WALK_TTL, name, localAddress, localPort, getAddress()));
+		}
+		return walk;
+	}
+	
+	/**
+	 * Choose the neighbor a walker is forwarded to. Leaves and neighbors whose routing table shows they can not 
+	 * answer are skipped, the neighbor the walker came from is only chosen if there is no other one
+	 * @param sender handle of the neighbor the walker came from
+	 * @param fileName name searched
+	 * @param ttl ttl the walker is forwarded with
+	 * @return the neighbor, or null if the walker can not go anywhere
+	 */
+	private NeighborTable.Neighbor nextHop(int sender, String fileName, long ttl) {
+		ArrayList<NeighborTable.Neighbor> candidates = new ArrayList<NeighborTable.Neighbor>();
+		NeighborTable.Neighbor back = null;
+		long total = 0;
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			if ( neighbor.isLeaf() || !router.shouldForward(neighbor, fileName, ttl, false) )
+				continue;
+			if ( neighbor.getHandle() == sender ) {
+				back = neighbor;
+				continue;
+			}
+			candidates.add(neighbor);
+			total += walkBias ? Math.max(1, neighbor.getDegree()) : 1;
+		}
+		if ( candidates.isEmpty() )
+			return back;
+		
+		//pick a neighbor with a probability proportional to its weight
+		long pick = ThreadLocalRandom.current().nextLong(total);
+		for ( NeighborTable.Neighbor neighbor : candidates ) {
+			pick -= walkBias ? Math.max(1, neighbor.getDegree()) : 1;
+			if ( pick < 0 )
+				return neighbor;
+		}
+		return candidates.get(candidates.size() - 1);
+	}
+	
+	/**
+	 * Called by a DynamicSearch when it finishes
+	 * @param search
+	 */
+	public void searchFinished(DynamicSearch search) {
+		if ( !quiet )
+			System.out.println("Search finished " + search);
+	}
+	
+		
+	/**
+	 * Used in push mode to notify all nodes that a file has been updated 
+	 * @param location FileLocation of the file that was updated 
+	 * @throws RemoteException
+	 */
+	public void sendInvalidate(FileLocation location) throws RemoteException {
+		
+		//Don't do anything if running in pull mode
+		if( pullMode )
+			return;
+		
+		//generate msgId 
+		MessageId msgId = newMessageId(); 
+		//Add message to list of seen messages in case there is a loop in the topology 
+		seenMessages.putIfAbsent(msgId, NeighborTable.LOCAL);
+		
+		//Queue message for all neighbors, they are sent concurrently by the channel of each neighbor
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			neighbor.getChannel().send(Message.invalidate(msgId, Const.TTL, location.getName(), location, localAddress, localPort));
+		}
+	}
+	
+	/**
+	 * Establish a neighbor relationship with another peer. Obtains the peer's stub and saves it on the neighbor table
+	 * and sends a hello message to the peer so that it can also establish a neighbor relationship to this peer.
+	 * @param addr InetSocketAddress of the peer that we want to add as a neighbor
+	 * @return
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public boolean sayHello(InetSocketAddress addr) throws RemoteException, NotBoundException {
+		//Save our address
+		InetSocketAddress localAddr= new InetSocketAddress(localAddress, localPort);
+		
+		//Leaves only attach to a few ultrapeers
+		if ( role == Role.LEAF && neighbors.size() >= Const.LEAF_ULTRAPEERS ) {
+			System.out.println("Already attached to " + neighbors.size() + " ultrapeers");
+			return false;
+		}
+		
+		//Say hello to peer inform them of our address so they can add us as a neighbor, leaves ask to be attached
+		boolean accepted;
+		try {
+			if ( role == Role.LEAF )
+				accepted = peerNodes.call(addr, node -> node.attach(localAddr));
+			else
+				accepted = peerNodes.call(addr, node -> node.hello(localAddr));
+		} catch (RemoteException e) {
+			throw e;
+		} catch (IOException e) {
+			throw new RemoteException("Failed to contact peer", e);
+		}
+		if (accepted) {
+			//Add peer to our neighbor table
+			router.reset(neighbors.put(addr, newChannel(addr), false));
+			router.wakeup();
+			System.out.println(role == Role.LEAF ? "Attached to ultrapeer successfully" : "Added neighbor successfully");
+			return true;
+		}
+		
+		return false; 
+	}
+	
+	/**
+	 * Exports the PeerNode on the transport of the peer (with RMI, creates a registry and binds the PeerNode 
+	 * remote object to it). Also starts the workers that will process incoming messages and the server used to 
+	 * send files to other peers
+	 * @throws RemoteException
+	 */
+	public void exportPeerStub() throws RemoteException {
+		dispatcher = new MessageDispatcher(dispatchWorkers, Const.DISPATCH_QUEUE_SIZE, Const.DISPATCH_LOCAL_LIMIT, 
+				virtualThreads);
+		try {
+			transferServer = new TransferServer(localAddress, Const.TRANSFER_PORT, Const.ZERO_COPY);
+		} catch (IOException e) {
+			throw new RemoteException("Failed to start transfer server", e);
+		}
+		transferServer.start();
+		refresher.start();
+		router.start();
+		transport.export(this, localAddress, localPort);
+	}
+	
+	/**
+	 * Remove stub and shutdown registry
+	 * @throws AccessException
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public void shutdownPeerStub() throws AccessException, RemoteException, NotBoundException {
+		transport.shutdown();
+		dispatcher.shutdown();
+		walkCalls.shutdownNow();
+		transferServer.shutdown();
+		refresher.shutdown();
+		router.shutdown();
+		if ( watcher != null )
+			watcher.shutdown();
+		closeStore();
+		hasher.shutdown();
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() )
+			neighbor.getChannel().shutdown();
+	}
+	
+		
+	/**
+	 * Redownload all invalid files now instead of waiting for the next period of the RefreshThread
+	 */
+	public void refreshFiles()  {
+		refresher.wakeup();
+	}
+	
+	/**
+	 * Download a new copy of an invalid remote file. The new copy is downloaded to a partial file while the old 
+	 * copy and FileLocation stay in place, once the download completes the file is renamed over the old copy and the 
+	 * new FileLocation replaces the old one on the remote file table. 
+	 * Blocks until the download finishes, called by the workers of the RefreshThread
+	 * @param loc invalid FileLocation
+	 * @return true if the new copy was downloaded
+	 */
+	public boolean refreshFile(FileLocation loc) {
+		String fileName = loc.getName();
+		try {
+			//get new FileLocation with updated version and TTR from the owner 
+			FileLocation newFileLocation = peerNodes.call(loc.getLocationAddress(), 
+					owner -> owner.poll(fileName));
+			
+			//the owner does not have the file anymore, remove our copy
+			if ( newFileLocation == null ) {
+				if ( remoteFiles.remove(loc) ) {
+					new File(fileDirectoryName + File.separator + fileName).delete();
+					if ( store != null )
+						store.remove(fileName, false);
+				}
+				System.out.println("File no longer available, removed " + fileName );
+				return false;
+			}
+			
+			//download the file using the new FileLocation and wait for it
+			download( newFileLocation, quiet, true ).join();
+			return remoteFiles.get(fileName) == newFileLocation;
+		} catch (NotBoundException | IOException e) {
+			System.out.println("Failed to download new copy for " + fileName );
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+	
+	/**
+	 * Poll the owners of remote FileLocations that have expired. 
+	 * Expired files are grouped by owner and each owner is polled with a single pollBatch() call, owners are 
+	 * polled in parallel
+	 * @param due FileLocations whose TTR expired, as returned by the TtrScheduler
+	 */
+	public void sendPolls(ArrayList<FileLocation> due) {
+		
+		//Group expired FileLocations of downloaded files by owner
+		HashMap<InetSocketAddress,ArrayList<FileLocation>> expired = new HashMap<InetSocketAddress,ArrayList<FileLocation>>();
+		for( FileLocation loc : due ) {
+			//skip files that have been removed from the remote table since they were scheduled
+			if (remoteFiles.get(loc.getName()) == loc ) {
+				expired.computeIfAbsent(loc.getLocationAddress(), k -> new ArrayList<FileLocation>()).add(loc);
+			}
+		}
+		if ( expired.isEmpty() )
+			return;
+		
+		//Poll each owner on a different thread
+		ArrayList<Callable<Void>> polls = new ArrayList<Callable<Void>>();
+		for( Map.Entry<InetSocketAddress,ArrayList<FileLocation>> entry : expired.entrySet() ) {
+			polls.add(() -> {
+				pollOwner(entry.getKey(), entry.getValue());
+				return null;
+			});
+		}
+		try {
+			pollExecutor.invokeAll(polls);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		pollCycles.incrementAndGet();
+	}
+	
+	/**
+	 * Poll the owner of a group of files and update their FileLocations 
+	 * @param owner address of the owner of the files
+	 * @param files expired FileLocations of files downloaded from the owner
+	 */
+	private void pollOwner(InetSocketAddress owner, ArrayList<FileLocation> files) {
+		ArrayList<String> names = new ArrayList<String>(files.size());
+		for ( FileLocation loc : files )
+			names.add(loc.getName());
+		
+		try {
+			//get current version and TTR of every file from the owner 
+			ArrayList<PollResult> results = peerNodes.call(owner, node -> node.pollBatch(names));
+			pollRpcs.incrementAndGet();
+			polledFiles.addAndGet(names.size());
+			
+			for ( int i = 0; i < files.size(); i++ ) {
+				FileLocation loc = files.get(i);
+				PollResult result = results.get(i);
+				//compare our version with the version of the file at the owner
+				if ( result == null || result.getVersion() > loc.getVersion() ) {
+					loc.invalidate();//invalidate our FileLocation if the owner has a new version
+					refresher.wakeup();
+				} else {
+					loc.setTtr(result.getTtr());//refresh the file's TTR if our copy is up to date
+					if ( pullMode )
+						ttrScheduler.schedule(loc);
 				}
 			}
+		} catch (Exception e ) {
+			System.out.println("Poll failed");
+			//files stay expired, poll again later
+			if ( pullMode ) {
+				for ( FileLocation loc : files )
+					ttrScheduler.schedule(loc, Const.UPDATE_TTR_PERIOD * 1000000L);
+			}
 		}
 	}
 
 	
 	/**
-	 * Download a file represented by a FileLocation from another peer. Starts a new thread to do the download
+	 * Download a file represented by a FileLocation from another peer. Starts a new thread to do the download. 
+	 * If a previous download of the same version of the file was interrupted the download resumes from where it stopped
 	 * @param location FileLocation pointing to the registry of a Peer that has the file available
 	 * @param quiet DownloaderThread wont print progress if true
 	 * @throws NotBoundException
 	 * @throws IOException 
 	 */
 	public Thread download(FileLocation location, boolean quiet) throws NotBoundException, IOException {
-		String address = location.getLocationAddress().getHostString();
-		int port = location.getLocationAddress().getPort();
+		return download(location, quiet, false);
+	}
+	
+	/**
+	 * Download a file represented by a FileLocation from another peer. 
+	 * @param location FileLocation pointing to the registry of a Peer that has the file available
+	 * @param quiet DownloaderThread wont print progress if true
+	 * @param replace replace the existing copy of the file once the download completes 
+	 * @return the thread doing the download
+	 * @throws NotBoundException
+	 * @throws IOException
+	 */
+	private Thread download(FileLocation location, boolean quiet, boolean replace) throws NotBoundException, IOException {
 		String fileName = location.getName();
 		
 		//check if file already exists
 		String newfileName = fileDirectoryName + File.separator + fileName;
-		if( new File(newfileName).exists() )
+		if( !replace && new File(newfileName).exists() )
 			throw new IOException("File exists");
+		//files can be in subdirectories of the shared directory
+		new File(newfileName).getParentFile().mkdirs();
 		
 		
-		//Query the Peer's registry to obtain its PeerNode stub
-		Registry registry = LocateRegistry.getRegistry(address, port);
-		PeerNode server = (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);
-		
-		//Call the obtain method on the peer to get the TCP port where it will 
-		//serve the requested file. 
-		int downloadPort = server.obtain(fileName);
+		//Call the obtain method on the peer to get the port and token that will be
+		//used to download the requested file. 
+		TransferTicket ticket = peerNodes.call(location.getLocationAddress(), server -> server.obtain(fileName));
 		
 		//Start a downloader thread to download the file 
 		FileDownloaderThread fileDownloader = 
-				new FileDownloaderThread(this, newfileName, downloadPort, location, quiet);
+				new FileDownloaderThread(this, newfileName, ticket, location, quiet);
 		fileDownloader.start();
 		
 		return fileDownloader;
 				
 	}
 	
+	/**
+	 * Download a file from all the search results that have the same content as the given FileLocation, see 
+	 * FileLocation.sameContent(). Results with the same content hash are used as sources even if they have a 
+	 * different name, and the downloaded file is checked against the hash. Starts a new thread that downloads 
+	 * different chunks of the file from each source in parallel.
+	 * @param location FileLocation of the file to download, usually one of the search results
+	 * @param quiet SwarmDownloadThread wont print progress if true
+	 * @return the thread doing the download
+	 * @throws IOException if the file exists or no source can be contacted
+	 */
+	public Thread swarmDownload(FileLocation location, boolean quiet) throws IOException {
+		String fileName = location.getName();
+		
+		//check if file already exists
+		String newfileName = fileDirectoryName + File.separator + fileName;
+		if( new File(newfileName).exists() )
+			throw new IOException("File exists");
+		new File(newfileName).getParentFile().mkdirs();
+		
+		//find every result serving the same content, with the name it has on each peer
+		LinkedHashMap<InetSocketAddress,String> names = new LinkedHashMap<InetSocketAddress,String>();
+		names.put(location.getLocationAddress(), fileName);
+		synchronized(searchResults) {
+			for ( FileLocation result : searchResults ) {
+				if ( location.sameContent(result) )
+					names.putIfAbsent(result.getLocationAddress(), result.getName());
+			}
+		}
+		
+		//make sure we can obtain a PeerNode stub for each source
+		ArrayList<SwarmDownloadThread.Source> sources = new ArrayList<SwarmDownloadThread.Source>();
+		for ( Map.Entry<InetSocketAddress,String> source : names.entrySet() ) {
+			try {
+				peerNodes.get(source.getKey());
+				sources.add(new SwarmDownloadThread.Source(source.getKey(), source.getValue()));
+			} catch (NotBoundException | RemoteException e) {
+				System.out.println("Can't contact source " + source.getKey());
+			}
+		}
+		if ( sources.isEmpty() )
+			throw new IOException("No sources available");
+		
+		SwarmDownloadThread swarm = new SwarmDownloadThread(this, newfileName, sources, location, quiet);
+		swarm.start();
+		return swarm;
+	}
+	
 	/*
 	 * Implementation of PeerNode Interface 
 	 */
 	@Override
-	public int obtain(String name) throws RemoteException, IOException  {
+	public TransferTicket obtain(String name) throws RemoteException, IOException  {
 		
 		//generate full name of file to be served
 		String fileName = fileDirectoryName + File.separator + name;
 		
-		FileServerThread serverThread = null; 
-		int port = 0;
-		
-		//Create  a FileServerThread to serve the file
-		serverThread = new FileServerThread(fileName);
-		port = serverThread.getPort();
-		
-		serverThread.start();
-
-		//return the port to the caller so they can connect to the socket serving the file 
-		return port;
+		//Register the file on the TransferServer and return the ticket to the caller so 
+		//they can connect to the server and request the file
+		return transferServer.register(fileName);
 	}
 	
 	/*
@@ -594,16 +1728,16 @@ public class Peer implements PeerNode {
 	@Override
 	public boolean hello(InetSocketAddress peerAddress)  {
 		
-		String address = peerAddress.getHostString();
-		int port = peerAddress.getPort();
+		//Leaves only talk to their ultrapeers
+		if ( role == Role.LEAF )
+			return false;
 		
-		//Query the Peer's registry to obtain its FileServer remote object
-		Registry registry;
+		//Check that the PeerNode remote object of the new neighbor can be obtained
 		try {
-			registry = LocateRegistry.getRegistry(address, port);
-			PeerNode neighbor = (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);
+			peerNodes.get(peerAddress);
 			
-			neighbors.put(peerAddress,neighbor);
+			router.reset(neighbors.put(peerAddress, newChannel(peerAddress), false));
+			router.wakeup();
 		} catch (RemoteException | NotBoundException e) {
 			return false;
 		}
@@ -616,7 +1750,227 @@ public class Peer implements PeerNode {
 	 * Implementation of PeerNode Interface 
 	 */
 	@Override
-	public void query(String msgId, long ttl, String fileName, String host, int port) throws RemoteException {
+	public boolean attach(InetSocketAddress leafAddress) {
+		
+		//Only ultrapeers accept leaves, a leaf that is attached already can attach again
+		if ( role != Role.ULTRAPEER )
+			return false;
+		int handle = neighbors.handleOf(leafAddress.getHostString(), leafAddress.getPort());
+		if ( (handle < 0 || !neighbors.getNeighbor(handle).isLeaf()) && neighbors.leafCount() >= Const.MAX_LEAVES )
+			return false;
+		
+		//Check that the PeerNode remote object of the leaf can be obtained
+		try {
+			peerNodes.get(leafAddress);
+			
+			router.reset(neighbors.put(leafAddress, newChannel(leafAddress), true));
+		} catch (RemoteException | NotBoundException e) {
+			return false;
+		}
+		System.out.println("Attached leaf successfully");
+		
+		return true;
+	}
+	
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public boolean publish(InetSocketAddress leafAddress, ArrayList<FileLocation> files) {
+		
+		//Only accept files from our leaves
+		int handle = neighbors.handleOf(leafAddress.getHostString(), leafAddress.getPort());
+		if ( handle < 0 || !neighbors.getNeighbor(handle).isLeaf() )
+			return false;
+		neighbors.getNeighbor(handle).touch();
+		leafIndex.publish(leafAddress, files);
+		
+		//our routing table includes the files of the leaves
+		router.wakeup();
+		return true;
+	}
+
+	/**
+	 * Check if a result meets the conditions of the filter of a query, counting the results that do not
+	 * @param filter filter of the query, or null
+	 * @param loc
+	 * @return
+	 */
+	private boolean matches(QueryFilter filter, FileLocation loc) {
+		if ( filter == null || filter.accepts(loc) )
+			return true;
+		filteredResults.incrementAndGet();
+		return false;
+	}
+	
+	/**
+	 * Find the FileLocations of the files shared by this peer whose names contain every keyword of a query
+	 * @param keywords
+	 * @return list of FileLocations
+	 */
+	private ArrayList<FileLocation> findSharedFiles(String keywords) {
+		ArrayList<FileLocation> found = localFiles.search(keywords);
+		for ( FileLocation loc : remoteFiles.search(keywords) ) {
+			if ( localFiles.get(loc.getName()) != null )
+				continue;
+			refresher.recordQuery(loc.getName());
+			FileLocation shared = shareRemoteFile(loc);
+			if ( shared != null )
+				found.add(shared);
+		}
+		return found;
+	}
+	
+	/**
+	 * Find the FileLocation of a file shared by this peer, to answer a query
+	 * @param fileName
+	 * @return the FileLocation, or null if the file is not shared by this peer
+	 */
+	private FileLocation findSharedFile(String fileName) {
+		//Find FileLocation on local file table
+		FileLocation fileLocation = localFiles.get(fileName);
+		if ( fileLocation != null )
+			return fileLocation;
+
+		//Find FileLocation on remote file table if not found on local table
+		FileLocation loc = remoteFiles.get(fileName);
+		//if file wasnt found on remote or local table files do nothing
+		if ( loc == null )
+			return null;
+		refresher.recordQuery(fileName);
+		//check if this location is invalid or expired, if so do nothing 
+		return shareRemoteFile(loc);
+	}
+
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public boolean checkWalk(MessageId msgId) {
+		messagesReceived.incrementAndGet();
+		RandomWalk walk = walks.get(msgId);
+		return walk != null && walk.check();
+	}
+	
+	/**
+	 * Process a random walker received from a neighbor. Results and checks are sent to the origin on the walk call 
+	 * pool, a walker that has nothing to send is forwarded right away. Once the origin stops a walk or can not be
+	 * reached the walk is remembered as stopped and later walkers of it are dropped without calling the origin
+	 * @param msgId
+	 * @param ttl number of hops the walker can still make
+	 * @param fileName
+	 * @param host address of the neighbor that sent the walker
+	 * @param port port of the neighbor that sent the walker
+	 * @param origin address of the peer that started the walk
+	 */
+	private void handleWalk(MessageId msgId, long ttl, String fileName, String host, int port, InetSocketAddress origin) {
+		
+		messagesReceived.incrementAndGet();
+		
+		final long newttl = ttl - 1;
+		
+		//Walkers are processed on a dispatcher worker like queries, they can be dropped under load 
+		dispatcher.dispatch(new Runnable() {
+			public void run() {
+				
+				//Get handle of sender
+				int sender = neighbors.handleOf(host, port);
+				if (sender < 0) {
+					System.out.println("Message from unknown neighbor: do nothing");
+					return;
+				}
+				
+				//Answer only the first walker of the walk that gets here, results are sent directly to the origin
+				ArrayList<FileLocation> found = new ArrayList<FileLocation>();
+				if ( seenMessages.putIfAbsent(msgId, sender) ) {
+					for ( FileLocation loc : leafIndex.lookup(fileName) ) {
+						if ( !loc.getLocationAddress().equals(origin) )
+							found.add(loc);
+					}
+					FileLocation fileLocation = findSharedFile(fileName);
+					if ( fileLocation != null )
+						found.add(fileLocation);
+				}
+				//The origin already stopped the walk or could not be reached by an earlier walker
+				if ( stoppedWalks.get(msgId) != null )
+					return;
+				
+				//Leaves never forward messages. Check back with the origin every few hops, and right after sending it
+				//results
+				boolean forward = newttl > 0 && role != Role.LEAF;
+				boolean check = forward && (!found.isEmpty() || newttl % Const.WALK_CHECK == 0);
+				if ( found.isEmpty() && !check ) {
+					if ( forward )
+						forwardWalk(msgId, newttl, fileName, sender, origin);
+					return;
+				}
+				
+				//Calls to the origin are made on the walk call pool, the origin is usually not a neighbor and a slow 
+				//one must not hold a dispatcher worker
+				walkCalls.execute(() -> {
+					try {
+						for ( FileLocation loc : found ) {
+							peerNodes.call(origin, node -> {
+								node.hitquery(msgId, Const.TTL, fileName, loc);
+								return null;
+							});
+						}
+						if ( !forward )
+							return;
+						if ( check && !peerNodes.call(origin, node -> node.checkWalk(msgId)) ) {
+							stoppedWalks.putIfAbsent(msgId, Boolean.TRUE);
+							return;
+						}
+					} catch (NotBoundException | IOException e) {
+						System.out.println("Origin of walk is not reachable");
+						stoppedWalks.putIfAbsent(msgId, Boolean.TRUE);
+						return;
+					}
+					forwardWalk(msgId, newttl, fileName, sender, origin);
+				});
+			}
+		}, false);
+	}
+	
+	/**
+	 * Send a walker on to the next hop
+	 * @param msgId id of the walk
+	 * @param newttl ttl the walker is sent with
+	 * @param fileName name searched
+	 * @param sender handle of the neighbor the walker came from
+	 * @param origin address of the peer that started the walk
+	 */
+	private void forwardWalk(MessageId msgId, long newttl, String fileName, int sender, InetSocketAddress origin) {
+		NeighborTable.Neighbor next = nextHop(sender, fileName, newttl);
+		if ( next == null )
+			return;
+		walkersForwarded.incrementAndGet();
+		next.getChannel().send(Message.walk(msgId, newttl, fileName, localAddress, localPort, origin));
+	}
+
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public boolean updateRoutes(InetSocketAddress peerAddress, RouteUpdate update) {
+		
+		//Find the neighbor that sent the table
+		int handle = neighbors.handleOf(peerAddress.getHostString(), peerAddress.getPort());
+		if ( handle < 0 )
+			return false;
+		if ( !neighbors.getNeighbor(handle).updateRoutes(update) )
+			return false;
+		
+		//pass the change on to the other neighbors right away instead of one period per hop
+		router.routesChanged();
+		return true;
+	}
+
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public void query(MessageId msgId, long ttl, String fileName, String host, int port) throws RemoteException {
 		
 		//Delay simulation for performance tests
 		if(simulateDelay) {
@@ -627,100 +1981,119 @@ public class Peer implements PeerNode {
 			}
 		}
 
+		handleQuery(msgId, ttl, fileName, host, port, false, null);
+	}
+	
+	/**
+	 * Process a query message received through query() or deliver()
+	 * @param keywords true if fileName holds the keywords of a keyword query, every file whose name contains them
+	 * is sent back. Keyword queries are not answered from the hit cache 
+	 * @param filter conditions the results must meet, or null. Results that do not meet them are not sent back
+	 */
+	private void handleQuery(MessageId msgId, long ttl, String fileName, String host, int port, boolean keywords, 
+			QueryFilter filter) {
+
+		messagesReceived.incrementAndGet();
+		
 		//decrease TTL 
 		final long newttl = ttl-1;
 		
-		//Create a new thread to broadcast the message, this prevents the caller from being blocked while
-		//the message propagates through the whole network of peers
-		new Thread() {
+		//Hand the message to the dispatcher to broadcast it, this prevents the caller from being blocked while
+		//the message propagates through the whole network of peers. Queries can be dropped under load
+		dispatcher.dispatch(new Runnable() {
 			public void run() { 
 
-				//Ignore duplicates 
-				if (seenMessages.containsKey(msgId)) {
+				//Get handle of sender
+				int sender = neighbors.handleOf(host, port);
+				if (sender < 0) {
+					System.out.println("Message from unknown neighbor: do nothing");
+					return;
+				}
+					
+				//record message as seen, ignore duplicates 
+				if (!seenMessages.putIfAbsent(msgId, sender)) {
 					System.out.println("Duped message: do nothing");
 					return;
 				} 
-					
-				//Get PeerNode object of sender
-				PeerNode sender = null;
-				sender = neighbors.get(new InetSocketAddress(host, port));
-
-				//record message as seen
-				seenMessages.put(msgId, sender);
 				
-				//If TTL hasnt expired broadcast message to neighbors
-				if (newttl > 0) {
-					// go through each neighbor 
-					for ( PeerNode neighbor : neighbors.values()) {
-						try { 
-							//Dont send query back to sender
-							if ( sender.equals(neighbor) )
-								continue;
-							neighbor.query(msgId, ttl, fileName, localAddress, localPort);
-						} catch(RemoteException e) {
-							System.out.println("Failed to contact neighbor");
+				//Answer from the hit cache if the file was searched recently. Cached results are sent back 
+				//and a recent search without results is not repeated, in both cases the query is not forwarded. 
+				//A filtered query is forwarded when no cached result meets its filter, newer copies may exist 
+				//further out
+				HitCache.Result cached = HitCache.Result.MISS;
+				if ( useHitCache && !keywords ) {
+					ArrayList<FileLocation> results = new ArrayList<FileLocation>();
+					cached = hitCache.lookup(fileName, ttl, results);
+					boolean sent = false;
+					for ( FileLocation result : results ) {
+						if ( matches(filter, result) ) {
+							neighbors.getChannel(sender).send(Message.hitquery(msgId, Const.TTL, fileName, result));
+							sent = true;
 						}
-					}						
+					}
+					if ( cached == HitCache.Result.HIT && !sent )
+						cached = HitCache.Result.MISS;
 				}
 				
-				//Now handle the query at this peer
+				//If TTL hasnt expired broadcast message to neighbors. Leaves never forward messages
+				if (newttl > 0 && cached == HitCache.Result.MISS && role != Role.LEAF) {
+					// go through each neighbor 
+					//each neighbor has its own queue, a slow neighbor does not delay the others
+					for ( NeighborTable.Neighbor neighbor : neighbors.snapshot()) {
+						//Dont send query back to sender, nor to leaves, we answer for them
+						if ( neighbor.getHandle() == sender || neighbor.isLeaf() )
+							continue;
+						//skip neighbors whose routing table shows they can not answer
+						if ( !router.shouldForward(neighbor, fileName, newttl, keywords) )
+							continue;
+						neighbor.getChannel().send(keywords ? Message.keywords(msgId, newttl, fileName, localAddress, localPort, filter) : 
+							Message.query(msgId, newttl, fileName, localAddress, localPort, filter));
+					}
+					//responders drop the results a filter rejects, so a filtered query without answers does 
+					//not mean the file can not be found
+					if ( useHitCache && !keywords && filter == null )
+						hitCache.queried(fileName, ttl);
+				}
 				
-				//build full filename
-				File file = new File(fileDirectoryName +  File.separator + fileName );
-				if( file.exists() ) {
-					//Find FileLocation on local file table
-					FileLocation fileLocation = null;
-					for ( FileLocation loc : localFiles ) {
-						if (loc.getName().equals(fileName) ) {
-							fileLocation = loc; 
-						}
+				//Hitqueries of keyword queries carry the name of each file found, so the hit caches on the way 
+				//back record them as results for that name
+				if ( keywords ) {
+					for ( FileLocation loc : leafIndex.search(fileName) ) {
+						InetSocketAddress leaf = loc.getLocationAddress();
+						if ( (leaf.getPort() != port || !leaf.getHostString().equals(host)) && matches(filter, loc) )
+							neighbors.getChannel(sender).send(Message.hitquery(msgId, Const.TTL, loc.getName(), loc));
 					}
-
-					//Find FileLocation on remote file table if not found on local table
-					if ( fileLocation == null ) {
-						synchronized(remoteFiles) {
-							for( FileLocation loc : remoteFiles ) {
-								if (loc.getName().equals(fileName) ) {
-									//check if this location is invalid or expired 
-									if (loc.isValid() && !loc.isExpired() ) {
-										//Create new file location (We cannot use location stored on the remote table since that 
-										//one points to the original copy, we want to answer the query with a FileLocation that 
-										//points to us)
-										fileLocation = new FileLocation(new InetSocketAddress(localAddress,localPort),
-												fileName,
-												file.length(), 
-												loc.getVersion(),
-												getDefaultTtr()
-												);								
-									} else { //if file invalid or expired do nothing
-										return;
-									}
-
-								}
-							}
-						}
+					for ( FileLocation loc : findSharedFiles(fileName) ) {
+						if ( matches(filter, loc) )
+							neighbors.getChannel(sender).send(Message.hitquery(msgId, Const.TTL, loc.getName(), loc));
 					}
-					
-					//if file wasnt found on remote or local table files
-					if (fileLocation == null)
-						return;
+					return;
+				}
+				
+				//Answer for the leaves that have the file, except the leaf that sent the query
+				for ( FileLocation loc : leafIndex.lookup(fileName) ) {
+					InetSocketAddress leaf = loc.getLocationAddress();
+					if ( (leaf.getPort() != port || !leaf.getHostString().equals(host)) && matches(filter, loc) )
+						neighbors.getChannel(sender).send(Message.hitquery(msgId, Const.TTL, fileName, loc));
+				}
+				
+				//Now handle the query at this peer
+				FileLocation fileLocation = findSharedFile(fileName);
+				if ( fileLocation == null || !matches(filter, fileLocation) )
+					return;
 
-					try {
-						//send hitquery with result
-						sender.hitquery(msgId, Const.TTL, fileName, fileLocation);
-					} catch (RemoteException e) {
-						System.out.println("failed send back reponse");
-					}
-				} 
+				//send hitquery with result
+				if ( !neighbors.getChannel(sender).send(Message.hitquery(msgId, Const.TTL, fileName, fileLocation)) )
+					System.out.println("failed send back reponse");
 			}
-		}.start();
+		}, false);
 	}
 
 	/*
 	 * Implementation of PeerNode Interface 
 	 */
 	@Override
-	public void hitquery(String msgId, long ttl, String fileName, FileLocation fileLocation) throws RemoteException{
+	public void hitquery(MessageId msgId, long ttl, String fileName, FileLocation fileLocation) throws RemoteException{
 		
 		//Delay simulation for performance tests
 		if(simulateDelay) {
@@ -731,47 +2104,77 @@ public class Peer implements PeerNode {
 			}
 		}
 		
+		handleHitquery(msgId, ttl, fileName, fileLocation);
+	}
+	
+	/**
+	 * Process a hitquery message received through hitquery() or deliver()
+	 */
+	private void handleHitquery(MessageId msgId, long ttl, String fileName, FileLocation fileLocation) {
+		
+		messagesReceived.incrementAndGet();
+		
+		//A hitquery without a result is malformed
+		if ( fileLocation == null ) {
+			System.out.println("Hitquery without file location: do nothing");
+			return;
+		}
+		
 		//Decrease TTL
 		long newttl = ttl - 1;
-		PeerNode localPeer = this; 
-		//Process message on different thread to prevent caller from blocking while the message propagates
-		new Thread() {
+		//Process message on a dispatcher worker to prevent caller from blocking while the message propagates. 
+		//Hitqueries carry results so they are not shed under load, only rejected past the local limit
+		boolean queued = dispatcher.dispatch(new Runnable() {
 			public void run() {
 
-				//drop message if it belongs to unknown query 
-				if(!seenMessages.containsKey(msgId)) {
+				//get path back to origin 
+				Integer upstream = seenMessages.get(msgId);
+				
+				//drop message if it belongs to unknown query or its route expired
+				if(upstream == null) {
 					System.out.println("Unknown query");
 					return;
 				} 
 				
-				//get path back to origin 
-				PeerNode upstream = seenMessages.get(msgId);
+				//remember the result to answer repeated queries
+				if ( useHitCache )
+					hitCache.hit(fileName, fileLocation);
 				
 				//Check if query was initiated by us
-				if(upstream == localPeer) { 
+				if(upstream == NeighborTable.LOCAL) { 
+					//Results of dynamic searches are counted by the search, results found by a previous round 
+					//are dropped. Hitqueries start with Const.TTL so the ttl tells how many hops they travelled 
+					DynamicSearch search = searches.get(msgId);
+					if ( search != null && !search.hit(msgId, fileLocation, Const.TTL - ttl + 1) )
+						return;
+					//Results of random walks arrive once per walker that found them
+					RandomWalk walk = walks.get(msgId);
+					if ( walk != null && !walk.hit(fileLocation) )
+						return;
 					//Notify file was found and add result to result list
 					if ( !quiet) {
 						System.out.println("File found, Type \"results\" to view result");						
 					}
-					searchResults.add(fileLocation);
+					synchronized(searchResults) {
+						searchResults.add(fileLocation);
+					}
 					return;
 				//if message is not for us and the TTL hasnt expired propagate to origin  
 				} else if (newttl > 0){
-					try {
-						upstream.hitquery(msgId, newttl, fileName, fileLocation);
-					} catch (RemoteException e) {
+					if ( !neighbors.getChannel(upstream).send(Message.hitquery(msgId, newttl, fileName, fileLocation)) )
 						System.out.println("Failed to send back hitquery");
-					}
 				}
 			}
-		}.start();		
+		}, true);
+		if ( !queued )
+			System.out.println("Hitquery rejected, too many messages waiting");
 	}
 
 	/*
 	 * Implementation of PeerNode Interface 
 	 */
 	@Override
-	public void invalidate(String msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port)
+	public void invalidate(MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port)
 			throws RemoteException {
 		
 		//Delay simulation for performance tests
@@ -783,69 +2186,85 @@ public class Peer implements PeerNode {
 			}
 		}
 		
+		handleInvalidate(msgId, ttl, fileName, fileLocation, host, port);
+	}
+	
+	/**
+	 * Process an invalidate message received through invalidate() or deliver()
+	 */
+	private void handleInvalidate(MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port) {
+		
+		messagesReceived.incrementAndGet();
+		
 		//Ignore messge if running in pull mode
 		if(pullMode) {
 			return; 
 		}
 		
+		//An invalidate without the new version of the file is malformed
+		if ( fileLocation == null ) {
+			System.out.println("Invalidate without file location: do nothing");
+			return;
+		}
+		
 		//decrease TTL
 		long newttl = ttl - 1;
 		
-		//process message if different thread to avoid caller from blocking while message propagates
-		new Thread() { 
+		//process message on a dispatcher worker to avoid caller from blocking while message propagates. 
+		//Invalidates are not shed under load since that would break consistency, only rejected past the local limit
+		boolean queued = dispatcher.dispatch(new Runnable() { 
 			public void run() { 
 				
-				//Drop message if it is a duplicate
-				if (seenMessages.containsKey(msgId)) {
+				//Get handle of sender
+				int sender = neighbors.handleOf(host, port);
+				if (sender < 0) {
+					System.out.println("Message from unknown neighbor: do nothing");
+					return;
+				}
+
+				//record message as seen, drop message if it is a duplicate
+				if (!seenMessages.putIfAbsent(msgId, sender)) {
 					System.out.println("Duped message: do nothing");
 					return;
 				} 
 
-				//Get PeerNode object of sender
-				PeerNode sender = null;
-				sender = neighbors.get(new InetSocketAddress(host, port));
-
-				//record message as seen
-				seenMessages.put(msgId, sender);
-
-				//broadcast message if not expired 
-				if (newttl > 0) {
+				//broadcast message if not expired, leaves never forward messages
+				if (newttl > 0 && role != Role.LEAF) {
 					//go through neighbors
-					for ( PeerNode neighbor : neighbors.values()) {
-						try { 
-							//Dont send query back to sender
-							if ( sender.equals(neighbor) )
-								continue;
-							neighbor.invalidate(msgId, ttl, fileName, fileLocation, localAddress, localPort);
-						} catch(RemoteException e) {
-							System.out.println("Failed to contact neighbor");
-						}
+					for ( NeighborTable.Neighbor neighbor : neighbors.snapshot()) {
+						//Dont send query back to sender
+						if ( neighbor.getHandle() == sender )
+							continue;
+						neighbor.getChannel().send(Message.invalidate(msgId, newttl, fileName, fileLocation, localAddress, localPort));
 					}						
 				}
 				
 				//Now process the invalidate message
+				
+				//Drop cached results with older versions of the file
+				hitCache.invalidate(fileName, fileLocation.getVersion());
 
 				//Find out if we have downloaded that file and mark as invalid if found
-				synchronized(remoteFiles) {
-					for( FileLocation loc : remoteFiles ) {
-						if (loc.getName().equals(fileName) ) {
-							if( !quiet ) {
-								System.out.println("Received invalidate message for " +
-										fileName + "; New version is " + fileLocation.getVersion() );							
-							}
-							loc.invalidate();
-						}
+				FileLocation loc = remoteFiles.get(fileName);
+				if ( loc != null ) {
+					if( !quiet ) {
+						System.out.println("Received invalidate message for " +
+								fileName + "; New version is " + fileLocation.getVersion() );							
 					}
+					loc.invalidate();
+					refresher.wakeup();
 				}
 			}
-		}.start();
+		}, true);
+		if ( !queued )
+			System.out.println("Invalidate rejected, too many messages waiting");
 	}
 	
 	/*
 	 * Implementation of PeerNode Interface 
 	 */
 	@Override
-	public FileLocation poll(String fileName) throws RemoteException {
+	public void deliver(ArrayList<Message> messages) throws RemoteException {
 		
 		//Delay simulation for performance tests
 		if(simulateDelay) {
@@ -856,27 +2275,89 @@ public class Peer implements PeerNode {
 			}
 		}
 		
-		//Find file on local file table 
-		FileLocation fileLocation = null;
-		for ( FileLocation loc : localFiles ) {
-			if (loc.getName().equals(fileName) ) {
-				fileLocation = loc;
+		//Process each message as if it had been received on its own
+		for ( Message m : messages ) {
+			switch ( m.getType() ) {
+			case Message.QUERY:
+				handleQuery(m.getMsgId(), m.getTtl(), m.getFileName(), m.getHost(), m.getPort(), false, m.getFilter());
+				break;
+			case Message.KEYWORDS:
+				handleQuery(m.getMsgId(), m.getTtl(), m.getFileName(), m.getHost(), m.getPort(), true, m.getFilter());
+				break;
+			case Message.HITQUERY:
+				handleHitquery(m.getMsgId(), m.getTtl(), m.getFileName(), m.getFileLocation());
+				break;
+			case Message.INVALIDATE:
+				handleInvalidate(m.getMsgId(), m.getTtl(), m.getFileName(), m.getFileLocation(), m.getHost(), m.getPort());
+				break;
+			case Message.WALK:
+				handleWalk(m.getMsgId(), m.getTtl(), m.getFileName(), m.getHost(), m.getPort(), m.getOrigin());
+				break;
+			}
+		}
+	}
+	
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public ArrayList<PollResult> pollBatch(ArrayList<String> fileNames) throws RemoteException {
+		
+		//Delay simulation for performance tests
+		if(simulateDelay) {
+			try {
+				Thread.sleep(delayValue);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
 		}
 		
+		ArrayList<PollResult> results = new ArrayList<PollResult>(fileNames.size());
+		for ( String fileName : fileNames ) {
+			//Find file on local file table, then on remote file table
+			FileLocation loc = localFiles.get(fileName);
+			if ( loc == null ) 
+				loc = remoteFiles.get(fileName);
+			
+			//Copies downloaded by us are answered with our own TTR as in poll()
+			if ( loc == null )
+				results.add(null);
+			else 
+				results.add(new PollResult(loc.getVersion(), getDefaultTtr()));
+		}
+		return results;
+	}
+	
+	/*
+	 * Implementation of PeerNode Interface 
+	 */
+	@Override
+	public FileLocation poll(String fileName) throws RemoteException {
+		
+		//Delay simulation for performance tests
+		if(simulateDelay) {
+			try {
+				Thread.sleep(delayValue);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		//Find file on local file table 
+		FileLocation fileLocation = localFiles.get(fileName);
+		
 		//Find FileLocation on remote file table if not found on local
 		if ( fileLocation == null ) {
-			synchronized (remoteFiles) {
-				for( FileLocation loc : remoteFiles ) {
-					if (loc.getName().equals(fileName) ) {
-						fileLocation = new FileLocation(new InetSocketAddress(localAddress,localPort),
-								fileName,
-								loc.getSize(), 
-								loc.getVersion(),
-								getDefaultTtr()
-								);
-					}
-				}
+			FileLocation loc = remoteFiles.get(fileName);
+			if ( loc != null ) {
+				fileLocation = new FileLocation(new InetSocketAddress(localAddress,localPort),
+						fileName,
+						loc.getSize(), 
+						loc.getVersion(),
+						getDefaultTtr()
+						);
+				fileLocation.setOrigin(false);
+				fileLocation.setHash(loc.getHash());
 			}
 		}
 		
@@ -7,6 +7,7 @@ import java.net.InetSocketAddress;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 
@@ -20,19 +21,35 @@ import java.util.Scanner;
  * <br>
  *	- neighbors: Print current neighbor list
  * <br>	
- *	- search FILENAME: Sends a query to neighbors
+ *	- search [FILTER] FILENAME: Sends a query to neighbors
+ * <br>
+ *	- find [FILTER] KEYWORDS: Sends a keyword query to neighbors, matching every file whose name contains all the 
+ *	keywords
+ * <br>
+ *	FILTER asks neighbors to answer only with the results that meet some conditions, it is any of: -min SIZE, 
+ *	-max SIZE, -version VERSION (minimum version), -origin (only copies served by the peer that created the file)
+ * <br>
+ *	- dsearch [TARGET [MAXTTL]] FILENAME: Searches with an expanding ttl until TARGET results are found
+ * <br>
+ *	- walk [WALKERS] FILENAME: Searches with random walkers until a result is found
  * <br>
  *	- results: View results of previous search operations
  * <br>
+ *	- unique: View one result per distinct content, with the number of results that have the same content
+ * <br>
  *  - download I: Download a file from the result list
  * <br>
+ *  - swarm I: Download a file from every result with the same content as result I
+ * <br>
  *  - viewlocal: print list of local files i.e files that were stored in the peer before the process was run
  * <br>
  *  - update I: increases the version number of a file from the viewlocal list
  * <br>
  *  - viewremote: print list of files that have been downloaded from other peers.
  * <br> 
- *  - refresh: redownload files from the viewremote list that are invalid
+ *  - refresh: redownload files from the viewremote list that are invalid now (they are also refreshed in the background)
+ * <br> 
+ *  - stats: print message processing counters
  * <br> 
  *	- quit: Exit program
  * 
@@ -92,21 +109,72 @@ public class PeerConsole extends Thread {
 				
 				//Print current neighbor list
 				case "neighbors": 
-					for( InetSocketAddress neighbor : peer.getNeighbors().keySet() ) {
-						System.out.println(neighbor);
+					for( NeighborTable.Neighbor neighbor : peer.getNeighbors().snapshot() ) {
+						System.out.println(neighbor.getAddress() + (neighbor.isLeaf() ? " (leaf)" : ""));
 					}
 					break;
 				
 				//search <filename> Sends a query to neighbors
 				case "search": 
+					QueryFilter filter = parseFilter(s);
 					
 					//Parse the rest of the line as the argument
 					s.useDelimiter("$");
 					String query = s.next().trim();
 					
-					System.out.println("Searching for \"" + query + "\"");
+					System.out.println("Searching for \"" + query + "\"" + (filter != null ? " (" + filter + ")" : ""));
+					try {
+						peer.search(query, filter);
+					} catch( RemoteException e) {
+						System.out.println("Search failed");
+					} 
+					break;
+					
+				//find <keywords> Sends a keyword query 
+				case "find": 
+					QueryFilter keywordFilter = parseFilter(s);
+					s.useDelimiter("$");
+					String keywords = s.next().trim();
+					System.out.println("Searching for files matching \"" + keywords + "\"" + 
+							(keywordFilter != null ? " (" + keywordFilter + ")" : ""));
+					try {
+						peer.searchKeywords(keywords, keywordFilter);
+					} catch( RemoteException e) {
+						System.out.println("Search failed");
+					} 
+					break;
+					
+				//dsearch [<target> [<maxttl>]] <filename> Searches with an expanding ttl
+				case "dsearch": 
+					int target = Const.DQ_TARGET_RESULTS;
+					int maxTtl = Const.TTL;
+					if ( s.hasNextInt() ) {
+						target = s.nextInt();
+						if ( s.hasNextInt() )
+							maxTtl = s.nextInt();
+					}
+					
+					//Parse the rest of the line as the file name
+					s.useDelimiter("$");
+					String name = s.next().trim();
+					
+					System.out.println("Searching for \"" + name + "\" until " + target + " results are found");
+					peer.search(name, target, maxTtl);
+					break;
+					
+				//walk [<walkers>] <filename> Searches with random walkers
+				case "walk": 
+					int walkers = Const.WALKERS;
+					if ( s.hasNextInt() )
+						walkers = s.nextInt();
+					
+					//Parse the rest of the line as the file name
+					s.useDelimiter("$");
+					String walked = s.next().trim();
+					
+					System.out.println("Searching for \"" + walked + "\" with " + walkers + " walkers");
 					try {
-						peer.search(query);
+						peer.walk(walked, walkers, 1);
 					} catch( RemoteException e) {
 						System.out.println("Search failed");
 					} 
@@ -121,6 +189,16 @@ public class PeerConsole extends Thread {
 ;					}
 					break;
 				
+				//View one result per content, with the index it has on the results
+				case "unique":
+					results = peer.getSearchResults();
+					System.out.println("Type \"swarm <i>\" to download a file from all the results with the same content");
+					for( Map.Entry<Integer,Integer> unique : peer.getUniqueResults().entrySet() ) {
+						System.out.println("" + unique.getKey() + "->" + results.get(unique.getKey()) + 
+								"(" + unique.getValue() + " sources)");
+					}
+					break;
+				
 				//download <i> Download a file from the results. <i> is the index of the result as printed
 				//by the "results"command
 				case "download": 
@@ -150,6 +228,27 @@ public class PeerConsole extends Thread {
 					}
 					break;
 					
+				//swarm <i> Download a file from all results that have the same content as result <i>
+				case "swarm": 
+					try { 
+						int i = s.nextInt();
+						results = peer.getSearchResults();
+						if( i < 0 || i >= results.size() ) { 
+							System.out.println("Invalid index");
+							break;
+						}
+						FileLocation loc = results.get(i);
+						System.out.println("Attempting to download " + loc + " from all sources");
+						try {
+							peer.swarmDownload(loc, false);
+						} catch (IOException e) {
+							System.out.println("Download failed. " + e.getMessage());
+						} 
+					} catch( NoSuchElementException e) { 
+						System.out.println("Must specify index");
+					}
+					break;
+					
 				//viewlocal print list of local files i.e files that were stored in the peer before the process was run
 				//These are the files that can be updated by the peer 
 				case "viewlocal": 
@@ -188,6 +287,7 @@ public class PeerConsole extends Thread {
 						//update the file
 						FileLocation file = localFiles.get(i);
 						file.touch();
+						peer.storeLocalFile(file);
 						
 						System.out.println("Updated -> " + file );
 						
@@ -204,6 +304,10 @@ public class PeerConsole extends Thread {
 				case "refresh": 
 					peer.refreshFiles();
 					break;
+				//print counters
+				case "stats":
+					System.out.println(peer.getStats());
+					break;
 				//exit the program 
 				case "quit":
 			        System.out.println("quitting");
@@ -216,4 +320,35 @@ public class PeerConsole extends Thread {
 			System.exit(0);
 		}
 	}
+	
+	/**
+	 * Parse the filter options at the start of the arguments of a search command
+	 * @param s Scanner positioned after the command
+	 * @return the QueryFilter, or null if there are no filter options
+	 */
+	private QueryFilter parseFilter(Scanner s) {
+		long minSize = 0;
+		long maxSize = Long.MAX_VALUE;
+		int minVersion = 0;
+		boolean originOnly = false;
+		boolean found = false;
+		while ( s.hasNext("-(min|max|version|origin)") ) {
+			found = true;
+			switch ( s.next() ) {
+			case "-min":
+				minSize = s.nextLong();
+				break;
+			case "-max":
+				maxSize = s.nextLong();
+				break;
+			case "-version":
+				minVersion = s.nextInt();
+				break;
+			case "-origin":
+				originOnly = true;
+				break;
+			}
+		}
+		return found ? new QueryFilter(minSize, maxSize, minVersion, originOnly) : null;
+	}
 }
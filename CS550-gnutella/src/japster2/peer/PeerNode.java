@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 
 /**
  * Interface of the remote object exposed by each peer
@@ -23,11 +24,33 @@ public interface PeerNode extends Remote {
 	 */
 	public boolean hello(InetSocketAddress peerAddress) throws RemoteException;
 	
+	/**
+	 * Called by a leaf that wants to attach to the receiving peer. Only ultrapeers accept leaves, up to
+	 * Const.MAX_LEAVES. The ultrapeer answers queries for the files of the leaf, never forwards queries to it and
+	 * sends it invalidate messages, the leaf sends its queries to the ultrapeer.
+	 * 
+	 * @param leafAddress Address of the leaf that made the call
+	 * @return true if the receiving peer accepted the leaf
+	 * @throws RemoteException
+	 */
+	public boolean attach(InetSocketAddress leafAddress) throws RemoteException;
+	
+	/**
+	 * Called by a leaf to publish the FileLocations of all the files it shares to an ultrapeer it is attached to.
+	 * The files replace the ones published before by the same leaf. 
+	 * 
+	 * @param leafAddress Address of the leaf that made the call
+	 * @param files FileLocations of the files shared by the leaf, pointing to the leaf
+	 * @return false if the calling peer is not a leaf of the receiving peer
+	 * @throws RemoteException
+	 */
+	public boolean publish(InetSocketAddress leafAddress, ArrayList<FileLocation> files) throws RemoteException;
+	
 	/**
 	 * Query searching for a file. Upon receiving this call the peer will broadcast it to all of its neighbors. If the receiving peer
 	 * has the requested file it will also send hitquery with the FileLocation of the file. 
 	 * 
-	 * @param msgId 
+	 * @param msgId unique id of the query 
 	 * @param ttl 
 	 * @param fileName
 	 * @param host address of the peer that is making the query. Used by the receiving peer to avoid sending the query back to the sender
@@ -36,7 +59,7 @@ public interface PeerNode extends Remote {
 	 * and to know where to send the hitquery back.  
 	 * @throws RemoteException
 	 */
-	public void query(String msgId, long ttl, String fileName, String host, int port) throws RemoteException;
+	public void query(MessageId msgId, long ttl, String fileName, String host, int port) throws RemoteException;
 	
 	/**
 	 * Response sent when a file is found after receiving a query. 
@@ -46,7 +69,7 @@ public interface PeerNode extends Remote {
 	 * @param fileLocation FileLocation where the file can be downloaded from 
 	 * @throws RemoteException
 	 */
-	public void hitquery(String msgId, long ttl, String fileName, FileLocation fileLocation) throws RemoteException;
+	public void hitquery(MessageId msgId, long ttl, String fileName, FileLocation fileLocation) throws RemoteException;
 
 	/**
 	 * Called to notify the receiving peer that a FileLocation is no longer valid. 
@@ -58,9 +81,38 @@ public interface PeerNode extends Remote {
 	 * @param port port of the peer that is sending the message. Used by the receiving peer to avoid sending the message back to the sender.
 	 * @throws RemoteException
 	 */
-	public void invalidate(String msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port) throws RemoteException;
+	public void invalidate(MessageId msgId, long ttl, String fileName, FileLocation fileLocation, String host, int port) throws RemoteException;
 
 	
+	/**
+	 * Deliver several query, hitquery and invalidate messages with a single call. The receiving peer processes
+	 * each message as if it had been received through query(), hitquery() or invalidate(). 
+	 * @param messages messages sent by the calling peer, in the order they were sent
+	 * @throws RemoteException
+	 */
+	public void deliver(ArrayList<Message> messages) throws RemoteException;
+	
+	/**
+	 * Called by a peer holding a random walker of a search started by the receiving peer, to know if the walk must 
+	 * go on. 
+	 * @param msgId MessageId of the walk
+	 * @return false if the receiving peer has found enough results or does not know the walk, the walker is 
+	 * dropped
+	 * @throws RemoteException
+	 */
+	public boolean checkWalk(MessageId msgId) throws RemoteException;
+	
+	/**
+	 * Send the query routing table of the calling peer, or the changes since the last update. The receiving peer 
+	 * uses the table to forward queries to the calling peer only if it might have the file.
+	 * @param peerAddress address of the calling peer, must be a neighbor of the receiving peer
+	 * @param update full table or patch 
+	 * @return false if the calling peer is not a neighbor or the update is a patch for a table the receiving
+	 * peer does not have, the calling peer must send the full table
+	 * @throws RemoteException
+	 */
+	public boolean updateRoutes(InetSocketAddress peerAddress, RouteUpdate update) throws RemoteException;
+	
 	/**
 	 * Called to retrieve a FileLocation for a file on the peer. The retrieved FileLocation is used by other peers
 	 * to see if their copies of the file is up to date. 
@@ -70,14 +122,25 @@ public interface PeerNode extends Remote {
 	 */
 	public FileLocation poll(String fileName) throws RemoteException; 
 	
+	/**
+	 * Poll several files with a single call. Used by peers in pull mode to check all the files they downloaded 
+	 * from the receiving peer at once.
+	 * @param fileNames names of the files to poll
+	 * @return list with one PollResult per file name, in the same order. The entry is null if the receiving peer 
+	 * does not have the file
+	 * @throws RemoteException
+	 */
+	public ArrayList<PollResult> pollBatch(ArrayList<String> fileNames) throws RemoteException; 
+	
 	
 	/**
-	 * Called when a peer wants to download a file from the receiving peer. The receiving peer opens a Listening socket and 
-	 * returns the port where the socket is listening to the calling peer. 
+	 * Called when a peer wants to download a file from the receiving peer. The receiving peer registers the file on its 
+	 * TransferServer and returns a TransferTicket with the port of the server and the token the calling peer must present 
+	 * to download the file. 
 	 * @param name
 	 * @return 
 	 * @throws RemoteException
 	 * @throws IOException
 	 */
-	public int obtain(String name) throws RemoteException, IOException;
+	public TransferTicket obtain(String name) throws RemoteException, IOException;
 }
@@ -0,0 +1,134 @@
+package japster2.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of PeerNode stubs of other peers, keyed by the address of their registry. Avoids querying the registry of 
+ * a peer every time we need to call it. Stubs are obtained through the PeerTransport of the peer.
+ * <br>
+ * The cache holds at most Const.STUB_CACHE_SIZE stubs, the least recently used stub is discarded when it is full.
+ * Calls should be made through call(), which removes the stub from the cache if the call fails with a 
+ * RemoteException and retries the call once with a new stub obtained from the registry (e.g. because the 
+ * other peer was restarted and its old stub is no longer valid).
+ * @author jota
+ *
+ */
+public class PeerNodeCache {
+
+	/**
+	 * A call made on a PeerNode
+	 * @param <T> return type of the call
+	 */
+	public interface RemoteCall<T> {
+		public T call(PeerNode node) throws IOException;
+	}
+
+	//Stubs in access order
+	private LinkedHashMap<InetSocketAddress,PeerNode> stubs;
+	
+	//Transport used to obtain new stubs
+	private PeerTransport transport;
+
+	//Counters
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong reconnects;
+
+	/**
+	 * Create a new PeerNodeCache
+	 * @param capacity maximum number of stubs stored
+	 * @param transport transport used to obtain new stubs
+	 */
+	public PeerNodeCache(int capacity, PeerTransport transport) {
+		this.transport = transport;
+		stubs = new LinkedHashMap<InetSocketAddress,PeerNode>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<InetSocketAddress,PeerNode> eldest) {
+				return size() > capacity;
+			}
+		};
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		reconnects = new AtomicLong();
+	}
+
+	/**
+	 * Get the PeerNode stub of a peer, querying its registry if it is not in the cache
+	 * @param address address of the registry of the peer
+	 * @return PeerNode stub
+	 * @throws RemoteException
+	 * @throws NotBoundException
+	 */
+	public PeerNode get(InetSocketAddress address) throws RemoteException, NotBoundException {
+		synchronized(stubs) {
+			PeerNode node = stubs.get(address);
+			if ( node != null ) {
+				hits.incrementAndGet();
+				return node;
+			}
+		}
+		misses.incrementAndGet();
+
+		//Query the Peer's registry to obtain its PeerNode remote object. Done without holding the lock so 
+		//a slow peer does not block calls to other peers
+		PeerNode node = transport.connect(address);
+
+		synchronized(stubs) {
+			stubs.put(address, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Remove a stub from the cache
+	 * @param address address of the registry of the peer
+	 * @param node stub to remove, nothing is removed if the cache holds a different stub for the address
+	 */
+	public void invalidate(InetSocketAddress address, PeerNode node) {
+		synchronized(stubs) {
+			stubs.remove(address, node);
+		}
+	}
+
+	/**
+	 * Make a call on the PeerNode of a peer. If the call fails with a RemoteException the stub is discarded and
+	 * the call is retried once with a new stub.
+	 * @param address address of the registry of the peer
+	 * @param call call to make
+	 * @return result of the call
+	 * @throws NotBoundException
+	 * @throws IOException
+	 */
+	public <T> T call(InetSocketAddress address, RemoteCall<T> call) throws NotBoundException, IOException {
+		PeerNode node = get(address);
+		try {
+			return call.call(node);
+		} catch (RemoteException e) {
+			invalidate(address, node);
+			reconnects.incrementAndGet();
+			return call.call(get(address));
+		}
+	}
+
+	public int size() {
+		synchronized(stubs) {
+			return stubs.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return size() + " stubs" +
+				", hits " + hits.get() +
+				", misses " + misses.get() +
+				", reconnects " + reconnects.get();
+	}
+}
@@ -0,0 +1,41 @@
+package japster2.peer;
+
+import java.net.InetSocketAddress;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+
+/**
+ * Transport used by peers to exchange messages. A transport makes the PeerNode of a peer reachable by other peers
+ * and creates PeerNode objects that forward calls to a remote peer.
+ * <br>
+ * Peers are always identified by the address and port given to export(), whatever the transport, so FileLocations
+ * and neighbor lists do not depend on the transport. All peers of a network must use the same transport.
+ * @author jota
+ *
+ */
+public interface PeerTransport {
+	
+	/**
+	 * Make a PeerNode reachable by other peers
+	 * @param node PeerNode that will receive the calls
+	 * @param address address to listen on
+	 * @param port port to listen on
+	 * @throws RemoteException
+	 */
+	public void export(PeerNode node, String address, int port) throws RemoteException;
+	
+	/**
+	 * Stop receiving calls and close every connection of the transport
+	 * @throws RemoteException
+	 */
+	public void shutdown() throws RemoteException;
+	
+	/**
+	 * Get a PeerNode that forwards calls to another peer
+	 * @param address address the other peer was exported on
+	 * @return PeerNode of the other peer
+	 * @throws RemoteException if the other peer can not be contacted
+	 * @throws NotBoundException if the other peer is not exporting a PeerNode
+	 */
+	public PeerNode connect(InetSocketAddress address) throws RemoteException, NotBoundException;
+}
@@ -0,0 +1,35 @@
+package japster2.peer;
+
+import java.io.Serializable;
+
+/**
+ * Answer to one of the files of a pollBatch() call. Holds the current version of the file at the peer that was 
+ * polled and the TTR that the polling peer should assign to its copy. 
+ * @author jota
+ *
+ */
+public class PollResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int version;
+	private int ttr;
+
+	public PollResult(int version, int ttr) {
+		this.version = version;
+		this.ttr = ttr;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getTtr() {
+		return ttr;
+	}
+
+	@Override
+	public String toString() {
+		return "(version " + version + ")(TTR " + ttr + ")";
+	}
+}
@@ -0,0 +1,74 @@
+package japster2.peer;
+
+import java.io.Serializable;
+
+/**
+ * Conditions a query result must meet, carried by query and keywords messages so that peers only answer with the
+ * results the origin of the query wants.
+ * <br>
+ * A filter can ask for a minimum and maximum size, a minimum version and for origin copies only (files served by
+ * the peer where they were created, see FileLocation.isOrigin()). Responders check the filter before sending a
+ * hitquery and peers answering from their hit cache check it on the cached results, so results that the origin
+ * would throw away are never sent back through the network.
+ * @author jota
+ *
+ */
+public class QueryFilter implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long minSize;
+	private long maxSize;
+	private int minVersion;
+	private boolean originOnly;
+
+	/**
+	 * Creates a new QueryFilter
+	 * @param minSize minimum size in bytes, 0 for no minimum
+	 * @param maxSize maximum size in bytes, Long.MAX_VALUE for no maximum
+	 * @param minVersion minimum version, 0 for any version
+	 * @param originOnly true to accept only origin copies
+	 */
+	public QueryFilter(long minSize, long maxSize, int minVersion, boolean originOnly) {
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.minVersion = minVersion;
+		this.originOnly = originOnly;
+	}
+
+	/**
+	 * Check if a FileLocation meets the conditions of the filter
+	 * @param loc
+	 * @return
+	 */
+	public boolean accepts(FileLocation loc) {
+		return loc.getSize() >= minSize && loc.getSize() <= maxSize && loc.getVersion() >= minVersion &&
+				(!originOnly || loc.isOrigin());
+	}
+
+	public long getMinSize() {
+		return minSize;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public int getMinVersion() {
+		return minVersion;
+	}
+
+	public boolean isOriginOnly() {
+		return originOnly;
+	}
+
+	@Override
+	public String toString() {
+		String str = "size " + minSize + ".." + (maxSize == Long.MAX_VALUE ? "" : maxSize);
+		if ( minVersion > 0 )
+			str += ", version >= " + minVersion;
+		if ( originOnly )
+			str += ", origin only";
+		return str;
+	}
+}
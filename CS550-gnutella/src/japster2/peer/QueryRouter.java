@@ -0,0 +1,365 @@
+package japster2.peer;
+
+import java.io.IOException;
+import java.rmi.NotBoundException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the query routing tables that a peer sends to its neighbors up to date.
+ * <br>
+ * The routing table of a peer is a BloomFilter with the names and keywords of its local and remote files and, on 
+ * ultrapeers, the files of its leaves. In AGGREGATE mode the table sent to a neighbor also includes the tables received from every
+ * other neighbor, so it covers every file that can be found through the peer and neighbors can use it to prune
+ * queries at any hop. In LAST_HOP mode only the names of the peer's own files are sent and neighbors only use the
+ * table for queries the peer will not forward. In OFF mode no table is sent and the tables received are not used.
+ * <br>
+ * Every Const.QRT_UPDATE_PERIOD milliseconds, or as soon as a neighbor is added or sends a new table, the thread
+ * builds the table for each neighbor and sends it if it changed: the first time in full and then as patches with
+ * the words that changed, or when the number of neighbors of the peer changed. Each neighbor is updated on a worker of a small pool, a neighbor that does not answer
+ * only delays its own updates.
+ * <br>
+ * LAST_HOP is the default. In AGGREGATE mode a bit set in a table is passed around every loop of the topology and 
+ * comes back to the peers that set it, so names removed from the network are never cleared and the tables only fill
+ * up until every query is forwarded everywhere. AGGREGATE is only useful on overlays without loops or for short 
+ * runs, like the routing benchmark.
+ * <br>
+ * Tables are not sent to leaves, ultrapeers never forward queries to them. A leaf does not send tables either,
+ * instead it publishes the FileLocations of its shared files to its ultrapeers whenever they change, whatever the
+ * routing mode, and at least every Const.LEAF_REFRESH milliseconds so the ultrapeers know it is alive. Ultrapeers
+ * detach leaves that did not publish for Const.LEAF_TIMEOUT. A leaf whose publication is rejected because it was
+ * detached attaches again.
+ * @author jota
+ *
+ */
+public class QueryRouter extends Thread {
+
+	/**
+	 * How routing tables are exchanged and used
+	 */
+	public enum Mode { OFF, LAST_HOP, AGGREGATE }
+
+	/**
+	 * Table last sent to a neighbor
+	 */
+	private static class Sent {
+		private BloomFilter filter;
+		private long version;
+		private int degree;
+
+		private Sent(BloomFilter filter, long version, int degree) {
+			this.filter = filter;
+			this.version = version;
+			this.degree = degree;
+		}
+	}
+
+	private volatile Mode mode;
+
+	private Peer peer;
+	private NeighborTable neighbors;
+
+	//Table with the names of the files of this peer and its leaves, rebuilt when the file tables change
+	private volatile BloomFilter own;
+	private long localMods = -1;
+	private long remoteMods = -1;
+	private long leafMods = -1;
+
+	//Table last sent to each neighbor, by neighbor handle, and signature and System.nanoTime() of the files last 
+	//published to each ultrapeer (on leaves)
+	private ConcurrentHashMap<Integer,Sent> sent;
+	private ConcurrentHashMap<Integer,Long> published;
+	private ConcurrentHashMap<Integer,Long> publishedAt;
+
+	//Neighbors being updated and neighbors that were skipped because they were being updated
+	private Set<Integer> inFlight;
+	private Set<Integer> skipped;
+	private ExecutorService workers;
+	private AtomicLong versions;
+
+	//Set by wakeup() to send the tables before the period ends
+	private boolean pending;
+
+	//Counters
+	private AtomicLong fullUpdates;
+	private AtomicLong patches;
+	private AtomicLong wordsSent;
+	private AtomicLong rejected;
+	private AtomicLong pruned;
+	private AtomicLong publications;
+
+	/**
+	 * Creates a new QueryRouter
+	 * @param peer peer whose tables are sent
+	 * @param mode
+	 */
+	public QueryRouter(Peer peer, Mode mode) {
+		super("query-router");
+		setDaemon(true);
+		this.peer = peer;
+		this.neighbors = peer.getNeighbors();
+		this.mode = mode;
+		own = new BloomFilter(Const.QRT_BITS, Const.QRT_HASHES);
+		sent = new ConcurrentHashMap<Integer,Sent>();
+		published = new ConcurrentHashMap<Integer,Long>();
+		publishedAt = new ConcurrentHashMap<Integer,Long>();
+		inFlight = ConcurrentHashMap.newKeySet();
+		skipped = ConcurrentHashMap.newKeySet();
+		workers = Executors.newFixedThreadPool(Const.QRT_THREADS, r -> {
+			Thread t = new Thread(r, "query-router-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		versions = new AtomicLong();
+		fullUpdates = new AtomicLong();
+		patches = new AtomicLong();
+		wordsSent = new AtomicLong();
+		rejected = new AtomicLong();
+		pruned = new AtomicLong();
+		publications = new AtomicLong();
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public void setMode(Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Check if a query should be forwarded to a neighbor
+	 * @param neighbor
+	 * @param fileName name searched, or keywords
+	 * @param ttl ttl the query is forwarded with
+	 * @param keywords true for keyword queries
+	 * @return false if the routing table of the neighbor shows it can not answer the query
+	 */
+	public boolean shouldForward(NeighborTable.Neighbor neighbor, String fileName, long ttl, boolean keywords) {
+		if ( mode == Mode.OFF || neighbor.mightAnswer(fileName, ttl, keywords) )
+			return true;
+		pruned.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Send the tables without waiting for the end of the current period. Called when a neighbor is added
+	 */
+	public synchronized void wakeup() {
+		pending = true;
+		notify();
+	}
+
+	/**
+	 * Called when the table of a neighbor changed. In AGGREGATE mode the tables of the other neighbors include it,
+	 * so they are sent without waiting for the end of the period
+	 */
+	public void routesChanged() {
+		if ( mode == Mode.AGGREGATE )
+			wakeup();
+	}
+
+	/**
+	 * Forget the table sent to a neighbor so the next update is sent in full. Called when a neighbor is replaced
+	 * @param handle handle of the neighbor
+	 */
+	public void reset(int handle) {
+		sent.remove(handle);
+		published.remove(handle);
+		publishedAt.remove(handle);
+	}
+
+	/**
+	 * Stop the thread and its workers
+	 */
+	public void shutdown() {
+		interrupt();
+		workers.shutdown();
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.interrupted()) {
+			try {
+				synchronized(this) {
+					if (!pending)
+						wait(Const.QRT_UPDATE_PERIOD);
+					pending = false;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+			if ( peer.getRole() == Peer.Role.LEAF ) {
+				publish();
+				continue;
+			}
+			if ( peer.getRole() == Peer.Role.ULTRAPEER )
+				peer.expireLeaves();
+			if ( mode == Mode.OFF )
+				continue;
+
+			BloomFilter filter = ownFilter();
+			NeighborTable.Neighbor[] current = neighbors.snapshot();
+			for ( NeighborTable.Neighbor neighbor : current ) {
+				if ( neighbor.isLeaf() )
+					continue;
+				BloomFilter table = filter;
+				if ( mode == Mode.AGGREGATE ) {
+					table = new BloomFilter(filter);
+					for ( NeighborTable.Neighbor other : current ) {
+						BloomFilter routes = other.getRoutes();
+						if ( other != neighbor && routes != null && routes.getBits() == table.getBits() )
+							table.or(routes);
+					}
+				}
+				BloomFilter update = table;
+				execute(neighbor, () -> send(neighbor, update));
+			}
+		}
+	}
+
+	/**
+	 * Run an update of a neighbor on a worker. Only one update per neighbor runs at a time, if the previous update
+	 * of the neighbor has not finished yet the update is skipped and the tables are built again when it finishes
+	 * @param neighbor
+	 * @param update
+	 */
+	private void execute(NeighborTable.Neighbor neighbor, Runnable update) {
+		if ( !inFlight.add(neighbor.getHandle()) ) {
+			skipped.add(neighbor.getHandle());
+			return;
+		}
+		workers.execute(() -> {
+			try {
+				update.run();
+			} finally {
+				inFlight.remove(neighbor.getHandle());
+				if ( skipped.remove(neighbor.getHandle()) )
+					wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Get the table with the names and keywords of the files of this peer and its leaves, rebuilding it if they 
+	 * changed
+	 * @return
+	 */
+	private BloomFilter ownFilter() {
+		long local = peer.getLocalFileTable().getModCount();
+		long remote = peer.getRemoteFileTable().getModCount();
+		long leaves = peer.getLeafIndex().getModCount();
+		if ( local != localMods || remote != remoteMods || leaves != leafMods ) {
+			BloomFilter filter = new BloomFilter(Const.QRT_BITS, Const.QRT_HASHES);
+			for ( FileLocation loc : peer.getLocalFileTable().list() )
+				filter.add(loc.getName());
+			for ( FileLocation loc : peer.getRemoteFileTable().list() )
+				filter.add(loc.getName());
+			for ( String name : peer.getLeafIndex().names() )
+				filter.add(name);
+			for ( String token : peer.getLocalFileTable().tokens() )
+				filter.add(token);
+			for ( String token : peer.getRemoteFileTable().tokens() )
+				filter.add(token);
+			for ( String token : peer.getLeafIndex().tokens() )
+				filter.add(token);
+			own = filter;
+			localMods = local;
+			remoteMods = remote;
+			leafMods = leaves;
+		}
+		return own;
+	}
+
+	/**
+	 * Send a table to a neighbor if it changed since the last update
+	 * @param neighbor
+	 * @param table
+	 */
+	private void send(NeighborTable.Neighbor neighbor, BloomFilter table) {
+		boolean aggregate = mode == Mode.AGGREGATE;
+		int degree = neighbors.size();
+		Sent last = sent.get(neighbor.getHandle());
+		long version = versions.incrementAndGet();
+		RouteUpdate update;
+		if ( last == null ) {
+			update = RouteUpdate.full(version, aggregate, degree, table);
+		} else {
+			update = RouteUpdate.patch(version, last.version, aggregate, degree, last.filter, table);
+			if ( update.size() == 0 && degree == last.degree )
+				return;
+			//send the whole table if most of it changed
+			if ( update.size() > table.getWords().length * Const.QRT_PATCH_LIMIT )
+				update = RouteUpdate.full(version, aggregate, degree, table);
+		}
+
+		RouteUpdate sending = update;
+		try {
+			if ( peer.getPeerNodeCache().call(neighbor.getAddress(), node -> node.updateRoutes(peer.getAddress(), sending)) ) {
+				sent.put(neighbor.getHandle(), new Sent(table, version, degree));
+				if ( sending.isFull() )
+					fullUpdates.incrementAndGet();
+				else
+					patches.incrementAndGet();
+				wordsSent.addAndGet(sending.size());
+				return;
+			}
+			rejected.incrementAndGet();
+		} catch (IOException | NotBoundException e) {
+			System.out.println("Failed to send routing table to " + neighbor.getAddress());
+		}
+		//send the whole table next time
+		sent.remove(neighbor.getHandle());
+	}
+
+	/**
+	 * Publish the files of this leaf to the ultrapeers it is attached to, if they changed since the last publication
+	 * or it was published more than Const.LEAF_REFRESH ago
+	 */
+	private void publish() {
+		ArrayList<FileLocation> files = peer.getSharedFiles();
+		long signature = files.size();
+		for ( FileLocation loc : files )
+			signature = signature * 31 + loc.getName().hashCode() * 17L + loc.getVersion();
+		long current = signature;
+		long now = System.nanoTime();
+		for ( NeighborTable.Neighbor neighbor : neighbors.snapshot() ) {
+			Long last = published.get(neighbor.getHandle());
+			Long lastAt = publishedAt.get(neighbor.getHandle());
+			if ( last != null && last == current && now - lastAt < Const.LEAF_REFRESH * 1000000L )
+				continue;
+			execute(neighbor, () -> {
+				try {
+					if ( peer.getPeerNodeCache().call(neighbor.getAddress(), node -> node.publish(peer.getAddress(), files)) ) {
+						published.put(neighbor.getHandle(), current);
+						publishedAt.put(neighbor.getHandle(), now);
+						publications.incrementAndGet();
+					} else {
+						//the ultrapeer detached us, attach again and publish on the next round
+						rejected.incrementAndGet();
+						published.remove(neighbor.getHandle());
+						if ( peer.getPeerNodeCache().call(neighbor.getAddress(), node -> node.attach(peer.getAddress())) )
+							wakeup();
+					}
+				} catch (IOException | NotBoundException e) {
+					System.out.println("Failed to publish files to " + neighbor.getAddress());
+				}
+			});
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mode + ", own table " + own +
+				", full updates " + fullUpdates.get() +
+				", patches " + patches.get() +
+				", words sent " + wordsSent.get() +
+				", rejected " + rejected.get() +
+				", queries pruned " + pruned.get() +
+				", publications " + publications.get();
+	}
+}
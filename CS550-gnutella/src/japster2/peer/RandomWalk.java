@@ -0,0 +1,127 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+
+/**
+ * Search done with random walkers instead of flooding, kept by the peer that started it.
+ * <br>
+ * The peer sends a number of walkers with the same MessageId, each one to a single neighbor. A peer receiving a
+ * walker answers the query if it has the file, sending the results directly to the origin, and forwards the walker
+ * to one random neighbor. Every Const.WALK_CHECK hops, and whenever it found the file, the peer holding a walker
+ * checks back with the origin through PeerNode.checkWalk() and drops the walker once the walk has enough results
+ * or timed out. The number of messages grows with the number of walkers and hops instead of with the number of
+ * links of the network.
+ * @author jota
+ *
+ */
+public class RandomWalk {
+
+	private MessageId msgId;
+	private String fileName;
+	private int walkers;
+	private int targetResults;
+
+	//Distinct results found so far
+	private ArrayList<FileLocation> results;
+
+	private long started;
+	private volatile long firstHit;
+	private volatile long checks;
+
+	/**
+	 * Creates a new RandomWalk
+	 * @param msgId MessageId carried by the walkers
+	 * @param fileName name of the file searched
+	 * @param walkers number of walkers sent
+	 * @param targetResults number of results after which the walkers are stopped
+	 */
+	public RandomWalk(MessageId msgId, String fileName, int walkers, int targetResults) {
+		this.msgId = msgId;
+		this.fileName = fileName;
+		this.walkers = walkers;
+		this.targetResults = targetResults;
+		results = new ArrayList<FileLocation>();
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Record a result found by a walker
+	 * @param location
+	 * @return true if the result was not found before by this walk
+	 */
+	public synchronized boolean hit(FileLocation location) {
+		for ( FileLocation result : results ) {
+			if ( result.equals(location) && result.getVersion() == location.getVersion() )
+				return false;
+		}
+		if ( results.isEmpty() )
+			firstHit = System.nanoTime();
+		results.add(location);
+		return true;
+	}
+
+	/**
+	 * Called when a walker checks back
+	 * @return true if the walker must go on
+	 */
+	public synchronized boolean check() {
+		checks++;
+		return !isFinished();
+	}
+
+	/**
+	 * Check if the walk has enough results or timed out
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+		return results.size() >= targetResults || System.nanoTime() - started > Const.WALK_TIMEOUT * 1000000L;
+	}
+
+	public MessageId getMsgId() {
+		return msgId;
+	}
+
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * Get the time the walk was started
+	 * @return System.nanoTime() when the walkers were sent
+	 */
+	public long getStartTime() {
+		return started;
+	}
+
+	/**
+	 * Get the time until the first result arrived
+	 * @return time in nanoseconds, -1 if no result arrived yet
+	 */
+	public long getTimeToFirstHit() {
+		return firstHit == 0 ? -1 : firstHit - started;
+	}
+
+	public synchronized int getResultCount() {
+		return results.size();
+	}
+
+	public synchronized ArrayList<FileLocation> getResults() {
+		return new ArrayList<FileLocation>(results);
+	}
+
+	/**
+	 * Number of times walkers checked back
+	 * @return
+	 */
+	public long getChecks() {
+		return checks;
+	}
+
+	@Override
+	public String toString() {
+		long first = getTimeToFirstHit();
+		return "\"" + fileName + "\": " + walkers + " walkers, " + getResultCount() + "/" + targetResults + " results" +
+				", " + checks + " checks" +
+				(first < 0 ? ", no hit" : ", first hit after " + first / 1000 + " us");
+	}
+}
@@ -0,0 +1,198 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads new copies of invalid remote files in the background.
+ * <br>
+ * Every Const.REFRESH_PERIOD milliseconds, or as soon as wakeup() is called, the thread takes a snapshot of the
+ * remote files that are invalid and hands them to a pool of Const.REFRESH_THREADS workers, so at most that many
+ * files are downloaded at the same time. Files that are queried more often are handed to the pool first. A file
+ * that is being refreshed is not queued again until its refresh finishes.
+ * <br>
+ * The workers call Peer.refreshFile(), which downloads the new version next to the old copy and only replaces the
+ * old copy and its FileLocation once the download is complete. No lock on the remote file table is held while the
+ * files are downloaded.
+ * <br>
+ * A file whose refresh fails is retried with an exponential backoff, starting at Const.REFRESH_PERIOD and doubling
+ * up to Const.REFRESH_MAX_BACKOFF. After Const.REFRESH_MAX_FAILURES failures in a row the thread gives up on the
+ * file until its FileLocation is replaced, e.g. by a new download, so an owner that went away is not retried forever.
+ * @author jota
+ *
+ */
+public class RefreshThread extends Thread {
+
+	/**
+	 * Failed refreshes of a file
+	 */
+	private static class Backoff {
+		//FileLocation that failed, the backoff does not apply to a newer FileLocation of the file
+		private final FileLocation loc;
+		private int failures;
+		//System.nanoTime() before which the file is not retried
+		private long retryAt;
+
+		private Backoff(FileLocation loc) {
+			this.loc = loc;
+		}
+	}
+
+	private Peer peer;
+
+	//Workers doing the downloads and names of the files being refreshed
+	private ExecutorService workers;
+	private Set<String> inFlight;
+
+	//Files whose last refresh failed
+	private ConcurrentHashMap<String,Backoff> backoffs;
+
+	//Number of queries received for each downloaded file
+	private ConcurrentHashMap<String,AtomicLong> queryCounts;
+
+	//Set by wakeup() to start a refresh before the period ends
+	private boolean pending;
+
+	//Counters
+	private AtomicLong refreshed;
+	private AtomicLong failed;
+	private AtomicLong abandoned;
+
+	/**
+	 * Creates a new RefreshThread
+	 * @param peer peer whose remote files are refreshed
+	 */
+	public RefreshThread(Peer peer) {
+		super("refresh");
+		setDaemon(true);
+		this.peer = peer;
+		workers = Executors.newFixedThreadPool(Const.REFRESH_THREADS, r -> {
+			Thread t = new Thread(r, "refresh-worker");
+			t.setDaemon(true);
+			return t;
+		});
+		inFlight = ConcurrentHashMap.newKeySet();
+		queryCounts = new ConcurrentHashMap<String,AtomicLong>();
+		refreshed = new AtomicLong();
+		failed = new AtomicLong();
+		abandoned = new AtomicLong();
+		backoffs = new ConcurrentHashMap<String,Backoff>();
+	}
+
+	/**
+	 * Record that a query was received for a file, used to refresh popular files first
+	 * @param fileName
+	 */
+	public void recordQuery(String fileName) {
+		queryCounts.computeIfAbsent(fileName, k -> new AtomicLong()).incrementAndGet();
+	}
+
+	/**
+	 * Start refreshing invalid files without waiting for the end of the current period
+	 */
+	public synchronized void wakeup() {
+		pending = true;
+		notify();
+	}
+
+	/**
+	 * Stop the thread and its workers, downloads in progress are not interrupted
+	 */
+	public void shutdown() {
+		interrupt();
+		workers.shutdown();
+	}
+
+	@Override
+	public void run() {
+		while(!Thread.interrupted()) {
+			try {
+				synchronized(this) {
+					if (!pending)
+						wait(Const.REFRESH_PERIOD);
+					pending = false;
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			//Find invalid files that are not being refreshed already and are not waiting for a retry
+			ArrayList<FileLocation> invalid = new ArrayList<FileLocation>();
+			Set<FileLocation> current = Collections.newSetFromMap(new IdentityHashMap<FileLocation,Boolean>());
+			long now = System.nanoTime();
+			for ( FileLocation loc : peer.getRemoteFiles() ) {
+				current.add(loc);
+				if ( loc.isValid() || inFlight.contains(loc.getName()) )
+					continue;
+				Backoff backoff = backoffs.get(loc.getName());
+				if ( backoff != null && backoff.loc == loc && 
+						(backoff.failures >= Const.REFRESH_MAX_FAILURES || now - backoff.retryAt < 0) )
+					continue;
+				invalid.add(loc);
+			}
+			//forget the failures of files that were removed or replaced
+			backoffs.values().removeIf(backoff -> !current.contains(backoff.loc));
+			if ( invalid.isEmpty() )
+				continue;
+
+			//Most queried files first
+			Collections.sort(invalid, (a, b) -> Long.compare(queries(b.getName()), queries(a.getName())));
+
+			for ( FileLocation loc : invalid ) {
+				inFlight.add(loc.getName());
+				workers.execute(() -> {
+					try {
+						if ( peer.refreshFile(loc) ) {
+							refreshed.incrementAndGet();
+							backoffs.remove(loc.getName());
+						} else {
+							failed.incrementAndGet();
+							failed(loc);
+						}
+					} finally {
+						inFlight.remove(loc.getName());
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Record a failed refresh and schedule the next retry of the file
+	 * @param loc FileLocation that failed to refresh
+	 */
+	private void failed(FileLocation loc) {
+		//updated inside compute() so the refresh thread sees the new values when it reads the map
+		Backoff backoff = backoffs.compute(loc.getName(), (name, last) -> {
+			Backoff updated = last != null && last.loc == loc ? last : new Backoff(loc);
+			updated.failures++;
+			long delay = Const.REFRESH_PERIOD * (1L << Math.min(updated.failures - 1, 20));
+			updated.retryAt = System.nanoTime() + Math.min(delay, Const.REFRESH_MAX_BACKOFF) * 1000000L;
+			return updated;
+		});
+		if ( backoff.failures == Const.REFRESH_MAX_FAILURES ) {
+			abandoned.incrementAndGet();
+			System.out.println("Giving up refreshing " + loc.getName() + " after " + backoff.failures + " failures");
+		}
+	}
+
+	private long queries(String fileName) {
+		AtomicLong count = queryCounts.get(fileName);
+		return count == null ? 0 : count.get();
+	}
+
+	@Override
+	public String toString() {
+		return inFlight.size() + " in progress" +
+				", refreshed " + refreshed.get() +
+				", failed " + failed.get() +
+				", backing off " + backoffs.size() +
+				", given up " + abandoned.get();
+	}
+}
@@ -0,0 +1,56 @@
+package japster2.peer;
+
+import java.net.InetSocketAddress;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+/**
+ * PeerTransport based on Java RMI. Each peer creates its own registry on its port and binds its PeerNode stub to 
+ * it under Const.PEER_SERVICE_NAME, other peers look the stub up on the registry.
+ * @author jota
+ *
+ */
+public class RmiTransport implements PeerTransport {
+	
+	private Registry registry;
+	private PeerNode node;
+
+	@Override
+	public void export(PeerNode node, String address, int port) throws RemoteException {
+		this.node = node;
+		PeerNode stub = (PeerNode) UnicastRemoteObject.exportObject(node,0);
+		registry = LocateRegistry.createRegistry(port);
+		registry.rebind(Const.PEER_SERVICE_NAME, stub);
+	}
+
+	@Override
+	public void shutdown() throws RemoteException {
+		try {
+			registry.unbind(Const.PEER_SERVICE_NAME);
+		} catch (NotBoundException e) {
+			//nothing to unbind
+		}
+		try {
+			UnicastRemoteObject.unexportObject(node, false);
+			UnicastRemoteObject.unexportObject(registry, false);
+		} catch (NoSuchObjectException e) {
+			//already unexported
+		}
+	}
+
+	@Override
+	public PeerNode connect(InetSocketAddress address) throws RemoteException, NotBoundException {
+		//Query the Peer's registry to obtain its PeerNode remote object
+		Registry registry = LocateRegistry.getRegistry(address.getHostString(), address.getPort());
+		return (PeerNode) registry.lookup(Const.PEER_SERVICE_NAME);
+	}
+	
+	@Override
+	public String toString() {
+		return "rmi";
+	}
+}
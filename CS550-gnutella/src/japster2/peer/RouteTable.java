@@ -0,0 +1,170 @@
+package japster2.peer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores previously seen messages together with the route back to the neighbor that sent them. Used to drop
+ * duplicated messages and to route hitquery messages back to the origin of a query.
+ * <br>
+ * Entries expire after a configurable route lifetime. The table is a ring of time buckets: new entries are
+ * always added to the newest bucket and every lifetime/buckets milliseconds the oldest bucket is discarded as a
+ * whole. An entry therefore lives between (buckets-1)/buckets and 1 times the route lifetime. Each bucket also
+ * has a maximum size, if the newest bucket fills up the ring is rotated early so memory stays bounded even
+ * under a message flood.
+ * <br>
+ * Lookups and inserts do not take a global lock, only rotating the ring is synchronized. An insert that races with
+ * a rotation is retried on the new head bucket, so the same id is never accepted twice.
+ * @author jota
+ *
+ * @param <K> message id type
+ * @param <V> route type
+ */
+public class RouteTable<K,V> {
+
+	//Ring of buckets, head is the index of the newest bucket
+	private final ConcurrentHashMap<K,V>[] buckets;
+	private volatile int head;
+
+	//Time when the head bucket has to be rotated out
+	private volatile long nextRotation;
+	private final long bucketLifetime;
+	private final int bucketCapacity;
+
+	//Counters
+	private final AtomicLong hits;
+	private final AtomicLong misses;
+	private final AtomicLong evictions;
+
+	/**
+	 * Create a new RouteTable
+	 * @param lifetime time in milliseconds during which a route is kept
+	 * @param capacity maximum number of routes stored
+	 * @param bucketCount number of buckets in the ring
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public RouteTable(long lifetime, int capacity, int bucketCount) {
+		buckets = new ConcurrentHashMap[bucketCount];
+		for ( int i = 0; i < bucketCount; i++ ) {
+			buckets[i] = new ConcurrentHashMap<K,V>();
+		}
+		head = 0;
+		bucketLifetime = Math.max(1, lifetime / bucketCount);
+		bucketCapacity = Math.max(1, capacity / bucketCount);
+		nextRotation = System.nanoTime() + bucketLifetime * 1000000L;
+
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+	}
+
+	/**
+	 * Record a message as seen if it has not been seen before.
+	 * @param key message id
+	 * @param route route back to the sender of the message
+	 * @return true if the message was recorded, false if it is a duplicate
+	 */
+	public boolean putIfAbsent(K key, V route) {
+		while ( true ) {
+			rotate();
+			int h = head;
+			//older buckets are not written to, except by inserts that started before the last rotation
+			for ( int i = 1; i < buckets.length; i++ ) {
+				if ( buckets[(h + i) % buckets.length].containsKey(key) ) {
+					hits.incrementAndGet();
+					return false;
+				}
+			}
+			if ( buckets[h].putIfAbsent(key, route) != null ) {
+				hits.incrementAndGet();
+				return false;
+			}
+			//the ring rotated while we inserted, another thread may have checked the new head without seeing our
+			//entry. Take the entry back and insert again so only one of the two inserts succeeds
+			if ( head != h ) {
+				buckets[h].remove(key, route);
+				continue;
+			}
+			misses.incrementAndGet();
+			return true;
+		}
+	}
+
+	/**
+	 * Get the route of a previously seen message
+	 * @param key message id
+	 * @return route stored for the message or null if the message is unknown or its route expired
+	 */
+	public V get(K key) {
+		rotate();
+		int h = head;
+		//newest entries first
+		for ( int i = 0; i < buckets.length; i++ ) {
+			int idx = (h - i + buckets.length) % buckets.length;
+			V route = buckets[idx].get(key);
+			if ( route != null ) {
+				hits.incrementAndGet();
+				return route;
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+
+	/**
+	 * Discard the oldest bucket if the head bucket is full or if its lifetime has passed
+	 */
+	private void rotate() {
+		long now = System.nanoTime();
+		if( now - nextRotation < 0 && buckets[head].size() < bucketCapacity )
+			return;
+
+		synchronized(this) {
+			//check again, other thread may have rotated already
+			now = System.nanoTime();
+			if( now - nextRotation < 0 && buckets[head].size() < bucketCapacity )
+				return;
+
+			//number of buckets that have fully expired since the last rotation (at least one)
+			long expired = (now - nextRotation) / (bucketLifetime * 1000000L) + 1;
+			int steps = (int) Math.max(1, Math.min(expired, buckets.length));
+
+			for ( int i = 0; i < steps; i++ ) {
+				//the oldest bucket is the one following the head, it becomes the new head
+				int oldest = (head + 1) % buckets.length;
+				evictions.addAndGet(buckets[oldest].size());
+				buckets[oldest].clear();
+				head = oldest;
+			}
+			nextRotation = now + bucketLifetime * 1000000L;
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for ( ConcurrentHashMap<K,V> bucket : buckets ) {
+			size += bucket.size();
+		}
+		return size;
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public String toString() {
+		return size() + " routes" +
+				", hits " + getHits() +
+				", misses " + getMisses() +
+				", evictions " + getEvictions();
+	}
+}
@@ -0,0 +1,149 @@
+package japster2.peer;
+
+import java.io.Serializable;
+
+/**
+ * Update of the query routing table (a BloomFilter) that a peer sends to a neighbor through updateRoutes().
+ * <br>
+ * A full update carries every word of the filter. A patch carries only the words that changed since the version
+ * of the filter the neighbor already has (the base version), the neighbor rejects a patch if its filter is not at
+ * that version and the sender answers with a full update.
+ * <br>
+ * An aggregate filter also covers the files reachable through the peer that sent it, so the neighbor can use it
+ * for queries that the peer will forward. A filter that is not aggregate only covers the files of the peer itself
+ * and is only used for queries that will not be forwarded by the peer (last hop).
+ * <br>
+ * Every update also carries the number of neighbors of the sender, used to bias random walks toward neighbors
+ * with more neighbors. A patch without words is sent when only the number of neighbors changed.
+ * @author jota
+ *
+ */
+public class RouteUpdate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private long version;
+	private long base;
+	private boolean aggregate;
+	private int degree;
+	private int hashes;
+
+	//indices of the words carried, null on full updates
+	private int[] indices;
+	private long[] words;
+
+	public RouteUpdate(long version, long base, boolean aggregate, int degree, int hashes, int[] indices, long[] words) {
+		this.version = version;
+		this.base = base;
+		this.aggregate = aggregate;
+		this.degree = degree;
+		this.hashes = hashes;
+		this.indices = indices;
+		this.words = words;
+	}
+
+	/**
+	 * Create a full update
+	 * @param version version of the filter
+	 * @param aggregate true if the filter covers the files reachable through the sender
+	 * @param degree number of neighbors of the sender
+	 * @param filter
+	 * @return
+	 */
+	public static RouteUpdate full(long version, boolean aggregate, int degree, BloomFilter filter) {
+		return new RouteUpdate(version, 0, aggregate, degree, filter.getHashes(), null, filter.getWords().clone());
+	}
+
+	/**
+	 * Create a patch with the words that differ between two filters of the same size
+	 * @param version version of the new filter
+	 * @param base version of the old filter
+	 * @param aggregate true if the filter covers the files reachable through the sender
+	 * @param degree number of neighbors of the sender
+	 * @param old filter the neighbor has
+	 * @param filter new filter
+	 * @return the patch, without words if the filters are equal
+	 */
+	public static RouteUpdate patch(long version, long base, boolean aggregate, int degree, BloomFilter old, BloomFilter filter) {
+		long[] a = old.getWords();
+		long[] b = filter.getWords();
+		int changed = 0;
+		for ( int i = 0; i < b.length; i++ ) {
+			if ( a[i] != b[i] )
+				changed++;
+		}
+		int[] indices = new int[changed];
+		long[] words = new long[changed];
+		for ( int i = 0, j = 0; i < b.length; i++ ) {
+			if ( a[i] != b[i] ) {
+				indices[j] = i;
+				words[j++] = b[i];
+			}
+		}
+		return new RouteUpdate(version, base, aggregate, degree, filter.getHashes(), indices, words);
+	}
+
+	/**
+	 * Apply the update to the filter the neighbor has
+	 * @param filter current filter, null if the neighbor has none
+	 * @param current version of the current filter
+	 * @return a new filter, or null if the update is a patch for a different version
+	 */
+	public BloomFilter apply(BloomFilter filter, long current) {
+		if ( isFull() )
+			return new BloomFilter(words.clone(), hashes);
+		if ( filter == null || current != base )
+			return null;
+		long[] updated = filter.getWords().clone();
+		for ( int i = 0; i < indices.length; i++ ) {
+			if ( indices[i] >= updated.length )
+				return null;
+			updated[indices[i]] = words[i];
+		}
+		return new BloomFilter(updated, hashes);
+	}
+
+	public boolean isFull() {
+		return indices == null;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getBase() {
+		return base;
+	}
+
+	public boolean isAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Number of neighbors of the sender
+	 * @return
+	 */
+	public int getDegree() {
+		return degree;
+	}
+
+	public int getHashes() {
+		return hashes;
+	}
+
+	public int[] getIndices() {
+		return indices;
+	}
+
+	public long[] getWords() {
+		return words;
+	}
+
+	/**
+	 * Number of words carried by the update
+	 * @return
+	 */
+	public int size() {
+		return words.length;
+	}
+}
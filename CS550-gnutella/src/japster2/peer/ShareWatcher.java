@@ -0,0 +1,219 @@
+package japster2.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Watches the shared directory of a peer and its subdirectories, and tells the peer which files were created,
+ * modified or deleted so it can update its local file table without scanning the whole directory.
+ * <br>
+ * Events are debounced: the paths that changed are collected until the directory has been quiet for
+ * Const.WATCH_DEBOUNCE milliseconds, or for at most Const.WATCH_MAX_DELAY milliseconds after the first change,
+ * and then handed to Peer.shareChanged() once each. A file copied in many writes, or many files copied at once,
+ * produce a single update per file.
+ * <br>
+ * New subdirectories are watched as soon as they are created and the files already in them are reported. When
+ * events are lost (OVERFLOW) the peer rescans the whole directory. Hidden files and partial downloads are ignored.
+ * @author jota
+ *
+ */
+public class ShareWatcher extends Thread {
+
+	private Peer peer;
+	private Path root;
+	private WatchService watcher;
+
+	//Directory watched by each key
+	private HashMap<WatchKey,Path> keys;
+
+	//Paths changed since the last update, with the time of the first and last change
+	private LinkedHashSet<Path> pending;
+	private long firstChange;
+	private long lastChange;
+	private boolean rescan;
+
+	//Counters
+	private volatile long events;
+	private volatile long updates;
+	private volatile long rescans;
+
+	/**
+	 * Creates a new ShareWatcher and registers the directory and its subdirectories. start() starts watching them
+	 * @param peer
+	 * @param directory shared directory of the peer
+	 * @throws IOException
+	 */
+	public ShareWatcher(Peer peer, String directory) throws IOException {
+		super("share-watcher");
+		setDaemon(true);
+		this.peer = peer;
+		root = new File(directory).toPath().toAbsolutePath().normalize();
+		watcher = FileSystems.getDefault().newWatchService();
+		keys = new HashMap<WatchKey,Path>();
+		pending = new LinkedHashSet<Path>();
+		register(root);
+	}
+
+	/**
+	 * Check if a file must not be shared: hidden files, files in hidden directories and partial downloads
+	 * @param name name of the file relative to the shared directory, with '/' separators
+	 * @return
+	 */
+	public static boolean isIgnored(String name) {
+		for ( String part : name.split("/") ) {
+			if ( part.startsWith(".") )
+				return true;
+		}
+		return name.endsWith(Const.PARTIAL_SUFFIX) || name.endsWith(Const.SWARM_SUFFIX);
+	}
+
+	/**
+	 * Get the name of a file relative to the shared directory, as used on the file tables
+	 * @param root shared directory
+	 * @param path
+	 * @return
+	 */
+	public static String nameOf(Path root, Path path) {
+		return root.relativize(path).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * Watch a directory and every subdirectory in it
+	 * @param dir
+	 * @return the files found in the directories
+	 */
+	private ArrayList<Path> register(Path dir) throws IOException {
+		ArrayList<Path> files = new ArrayList<Path>();
+		try (Stream<Path> paths = Files.walk(dir)) {
+			for ( Path path : (Iterable<Path>) paths::iterator ) {
+				if ( path != root && isIgnored(nameOf(root, path)) )
+					continue;
+				if ( Files.isDirectory(path) ) {
+					WatchKey key = path.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+					keys.put(key, path);
+				} else {
+					files.add(path);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Stop watching
+	 */
+	public void shutdown() {
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			System.out.println("Failed to close watch service");
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while ( true ) {
+				//wait for events, or until the pending changes are due
+				WatchKey key;
+				if ( pending.isEmpty() && !rescan ) {
+					key = watcher.take();
+				} else {
+					long due = Math.min(lastChange + Const.WATCH_DEBOUNCE * 1000000L,
+							firstChange + Const.WATCH_MAX_DELAY * 1000000L);
+					long wait = due - System.nanoTime();
+					key = wait > 0 ? watcher.poll(wait / 1000000L + 1, TimeUnit.MILLISECONDS) : null;
+					if ( key == null && System.nanoTime() >= due ) {
+						flush();
+						continue;
+					}
+				}
+				if ( key != null )
+					handle(key);
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//stopped
+		}
+	}
+
+	/**
+	 * Record the events of a key
+	 */
+	private void handle(WatchKey key) {
+		Path dir = keys.get(key);
+		for ( WatchEvent<?> event : key.pollEvents() ) {
+			events++;
+			if ( event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null ) {
+				changed(null);
+				continue;
+			}
+			Path path = dir.resolve((Path) event.context());
+			if ( isIgnored(nameOf(root, path)) )
+				continue;
+			if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path) ) {
+				//watch the new directory and report the files copied into it before it was registered
+				try {
+					for ( Path file : register(path) )
+						changed(file);
+				} catch (IOException e) {
+					changed(null);
+				}
+				continue;
+			}
+			changed(path);
+		}
+		if ( !key.reset() )
+			keys.remove(key);
+	}
+
+	/**
+	 * Record a change
+	 * @param path path that changed, null to rescan the whole directory
+	 */
+	private void changed(Path path) {
+		long now = System.nanoTime();
+		if ( pending.isEmpty() && !rescan )
+			firstChange = now;
+		lastChange = now;
+		if ( path == null )
+			rescan = true;
+		else
+			pending.add(path);
+	}
+
+	/**
+	 * Hand the pending changes to the peer
+	 */
+	private void flush() {
+		if ( rescan ) {
+			rescans++;
+			peer.loadFiles();
+		} else {
+			for ( Path path : pending ) {
+				updates++;
+				peer.shareChanged(nameOf(root, path));
+			}
+		}
+		pending.clear();
+		rescan = false;
+	}
+
+	@Override
+	public String toString() {
+		return keys.size() + " directories, " + events + " events, " + updates + " updates, " + rescans + " rescans";
+	}
+}
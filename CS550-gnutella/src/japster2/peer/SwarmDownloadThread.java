@@ -0,0 +1,335 @@
+package japster2.peer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.rmi.NotBoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * Downloads a file from several peers at the same time.
+ * <br>
+ * The file is split in chunks of Const.SWARM_CHUNK_SIZE bytes. One worker thread is started for each source,
+ * each worker repeatedly takes the next missing chunk, requests that range from its source and writes it at the
+ * same offset of the partial file. Because chunks are pulled by the workers, fast sources download more chunks
+ * than slow ones. A source that fails Const.SWARM_MAX_FAILURES times is dropped and its chunks are returned to the
+ * queue.
+ * <br>
+ * Once there are no chunks left in the queue, idle workers also download the chunk that has been in progress
+ * the longest on another source. Whichever copy finishes first is kept and the slower transfer is aborted, so a
+ * single slow source can not hold back the end of the download. Workers with nothing to take wait instead of
+ * exiting, until the download completes or fails, so a chunk put back after its transfers failed is always picked up.
+ * <br>
+ * Sources may serve the file under different names as long as they hold the same content. When the FileLocation
+ * has a content hash the completed file is hashed and discarded if it does not match.
+ * <br>
+ * When all chunks are done the partial file is renamed to its final name and the FileLocation is added to the
+ * remote files table, as with FileDownloaderThread.
+ * @author jota
+ *
+ */
+public class SwarmDownloadThread extends Thread {
+
+	//file attributes
+	private String fileName;
+	private FileLocation location;
+
+	//peer object doing the download used for callbacks
+	private Peer peer;
+
+	//Determine if progress is printed to console
+	private boolean quiet;
+
+	//Sources of the file
+	private ArrayList<Source> sources;
+
+	//Chunks waiting to be downloaded and chunks being downloaded
+	private LinkedList<Chunk> queue;
+	private ArrayList<Chunk> inProgress;
+	private int remaining;
+	private boolean failed;
+
+	private FileChannel output;
+
+	/**
+	 * A peer serving the file
+	 */
+	public static class Source {
+		private InetSocketAddress address;
+		private String name;
+		private long bytes;
+		private int chunks;
+		private int failures;
+
+		/**
+		 * @param address address of the peer serving the file
+		 */
+		public Source(InetSocketAddress address) {
+			this(address, null);
+		}
+
+		/**
+		 * @param address address of the peer serving the file
+		 * @param name name of the file on that peer, null if it is the name of the file being downloaded
+		 */
+		public Source(InetSocketAddress address, String name) {
+			this.address = address;
+			this.name = name;
+		}
+
+		@Override
+		public String toString() {
+			return address + ": " + chunks + " chunks, " + bytes + " bytes, " + failures + " failures";
+		}
+	}
+
+	/**
+	 * A range of the file
+	 */
+	private static class Chunk {
+		private long offset;
+		private long length;
+		private volatile boolean done;
+		private long started;
+		//number of workers downloading this chunk and their transfers
+		private int workers;
+		private ArrayList<TransferClient> clients = new ArrayList<TransferClient>();
+
+		private Chunk(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Creates a new SwarmDownloadThread
+	 * @param peer peer object doing the download
+	 * @param newFileName String representing the full name that will be used to create the file on this peer
+	 * @param sources peers serving the same version of the file
+	 * @param location FileLocation of the file being downloaded
+	 * @param quiet Wont print progress if true
+	 */
+	public SwarmDownloadThread(Peer peer, String newFileName, ArrayList<Source> sources, FileLocation location, boolean quiet) {
+		this.peer = peer;
+		this.fileName = newFileName;
+		this.sources = sources;
+		this.location = location;
+		this.quiet = quiet;
+
+		//split file in chunks
+		queue = new LinkedList<Chunk>();
+		inProgress = new ArrayList<Chunk>();
+		long size = location.getSize();
+		for (long offset = 0; offset < size; offset += Const.SWARM_CHUNK_SIZE) {
+			queue.add(new Chunk(offset, Math.min(Const.SWARM_CHUNK_SIZE, size - offset)));
+		}
+		remaining = queue.size();
+	}
+
+	@Override
+	public void run() {
+		File partial = new File(FileDownloaderThread.partialFile(fileName, location.getVersion()).getPath() + Const.SWARM_SUFFIX);
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(partial, "rw");
+			file.setLength(location.getSize());
+			output = file.getChannel();
+
+			if (!quiet)
+				System.out.println("Downloading " + fileName + " from " + sources.size() + " sources, " + remaining + " chunks");
+
+			//start one worker per source and wait for all of them
+			long start = System.nanoTime();
+			ArrayList<Thread> workers = new ArrayList<Thread>();
+			for (Source source : sources) {
+				Thread worker = new Thread(() -> work(source), "swarm-" + source.address);
+				workers.add(worker);
+				worker.start();
+			}
+			for (Thread worker : workers) {
+				worker.join();
+			}
+			long elapsed = System.nanoTime() - start;
+			file.close();
+			file = null;
+
+			if (remaining > 0 || failed) {
+				System.out.println("Download failed, all sources failed (" + fileName + ")");
+				partial.delete();
+				return;
+			}
+
+			//Check the bytes put together from all the sources
+			if (location.getHash() != null && !Arrays.equals(location.getHash(), ContentHasher.hash(partial))) {
+				System.out.println("Download failed, content does not match its hash (" + fileName + ")");
+				partial.delete();
+				return;
+			}
+
+			//Move the completed file to its final name
+			Files.move(partial.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+			if (!quiet) {
+				System.out.println("Download success (" + fileName + ") in " + (elapsed / 1000000) + "ms");
+				for (Source source : sources)
+					System.out.println("  " + source);
+			}
+
+			//Record FileLocation on remote FileLocations table
+			peer.addRemoteFile(location);
+		} catch (IOException e) {
+			System.out.println("Download failed (" + fileName + "): " + e.getMessage());
+			partial.delete();
+		} catch (InterruptedException e) {
+			partial.delete();
+		} finally {
+			if (file != null) {
+				try {
+					file.close();
+				} catch (IOException e) {
+					System.out.println("Error closing resource");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take the next chunk to download. If no chunks are waiting, take the chunk that has been in progress the
+	 * longest so it is downloaded again from a (hopefully faster) source. If every chunk in progress has two
+	 * workers already, wait until one of them finishes or fails: a chunk whose transfers fail is put back in the
+	 * queue and needs a worker to take it.
+	 * @return chunk to download or null if every chunk is done or the download failed
+	 */
+	private synchronized Chunk next() {
+		while (remaining > 0 && !failed) {
+			Chunk chunk = queue.pollFirst();
+			if (chunk != null) {
+				chunk.started = System.nanoTime();
+				inProgress.add(chunk);
+			} else {
+				//endgame: duplicate the oldest chunk that only one source is working on
+				for (Chunk c : inProgress) {
+					if (c.workers == 1 && (chunk == null || c.started < chunk.started))
+						chunk = c;
+				}
+			}
+			if (chunk != null) {
+				chunk.workers++;
+				return chunk;
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Register the client that is about to download a chunk so it can be aborted if another source finishes
+	 * the chunk first
+	 * @param chunk
+	 * @param client
+	 * @return false if the chunk has been completed already 
+	 */
+	private synchronized boolean attach(Chunk chunk, TransferClient client) {
+		if (chunk.done)
+			return false;
+		chunk.clients.add(client);
+		return true;
+	}
+
+	/**
+	 * Record the result of a chunk transfer
+	 * @param chunk
+	 * @param client TransferClient used for the transfer, null if the transfer was not started
+	 * @param success true if the whole chunk was received
+	 * @return true if this transfer completed the chunk
+	 */
+	private synchronized boolean finish(Chunk chunk, TransferClient client, boolean success) {
+		chunk.workers--;
+		chunk.clients.remove(client);
+		//wake up idle workers: the download may be complete, or the chunk needs another worker
+		notifyAll();
+		if (chunk.done)
+			return false;
+		if (success) {
+			chunk.done = true;
+			inProgress.remove(chunk);
+			remaining--;
+			//abort duplicated transfers of this chunk
+			for (TransferClient other : chunk.clients)
+				other.close();
+			if (!quiet)
+				System.out.println("Downloading " + new File(fileName).getName() + ": " + remaining + " chunks left");
+			return true;
+		}
+		//put the chunk back in the queue if nobody else is working on it
+		if (chunk.workers == 0) {
+			inProgress.remove(chunk);
+			queue.addFirst(chunk);
+		}
+		return false;
+	}
+
+	/**
+	 * Worker loop for one source
+	 * @param source
+	 */
+	private void work(Source source) {
+		Chunk chunk;
+		while ((chunk = next()) != null) {
+			boolean success = false;
+			long received = 0;
+			TransferClient client = null;
+			try {
+				//each chunk needs a new ticket
+				TransferTicket ticket = peer.getPeerNodeCache().call(source.address, 
+						node -> node.obtain(source.name != null ? source.name : location.getName()));
+				client = new TransferClient(source.address.getHostString(), ticket);
+				if (attach(chunk, client)) {
+					received = client.fetch(chunk.offset, chunk.length, output, null);
+					success = received == chunk.length;
+				}
+			} catch (IOException | NotBoundException e) {
+				success = false;
+			}
+			boolean aborted = chunk.done;
+			if (finish(chunk, client, success)) {
+				synchronized (this) {
+					source.bytes += received;
+					source.chunks++;
+				}
+			} else if (!success && !aborted && dropSource(source)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Count a failure of a source
+	 * @param source
+	 * @return true if the source has failed too many times and must not be used anymore
+	 */
+	private synchronized boolean dropSource(Source source) {
+		source.failures++;
+		if (source.failures < Const.SWARM_MAX_FAILURES)
+			return false;
+		System.out.println("Dropping source " + source.address + " (" + fileName + ")");
+		//fail the download if this was the last source
+		for (Source s : sources) {
+			if (s.failures < Const.SWARM_MAX_FAILURES)
+				return true;
+		}
+		failed = true;
+		notifyAll();
+		return true;
+	}
+}
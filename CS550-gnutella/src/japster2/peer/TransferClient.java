@@ -0,0 +1,90 @@
+package japster2.peer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+
+/**
+ * Client side of the TransferServer protocol. Requests a range of a file using a TransferTicket and writes 
+ * the received bytes to a FileChannel at a given position, so several clients can fill different parts of 
+ * the same file.
+ * <br>
+ * A TransferClient can be closed from another thread to abort a transfer.
+ * @author jota
+ *
+ */
+public class TransferClient {
+
+	private String address;
+	private TransferTicket ticket;
+	private volatile SocketChannel socket;
+
+	/**
+	 * Creates a new TransferClient
+	 * @param address address of the peer serving the file
+	 * @param ticket TransferTicket obtained from the peer 
+	 */
+	public TransferClient(String address, TransferTicket ticket) {
+		this.address = address;
+		this.ticket = ticket;
+	}
+
+	/**
+	 * Request a range of a file and write it to a file 
+	 * @param offset first byte requested
+	 * @param length number of bytes requested
+	 * @param output file where the data is written, the range is written at the same offset 
+	 * @param progress called with the total number of bytes received after each read, can be null
+	 * @return number of bytes received
+	 * @throws IOException
+	 */
+	public long fetch(long offset, long length, FileChannel output, LongConsumer progress) throws IOException {
+		socket = SocketChannel.open(new InetSocketAddress(address, ticket.getPort()));
+
+		//Present the token and the requested range to the TransferServer
+		ByteBuffer request = ByteBuffer.allocate(TransferServer.HEADER_SIZE);
+		request.putLong(ticket.getToken());
+		request.putLong(offset);
+		request.putLong(length);
+		request.flip();
+		while (request.hasRemaining())
+			socket.write(request);
+
+		//Read the range from the socket directly into the file
+		long received = 0;
+		while (received < length) {
+			long len = output.transferFrom(socket, offset + received, Math.min(Const.BUFFER_SIZE, length - received));
+			if (len <= 0) {
+				//transferFrom does not report end of stream, check it with a read
+				ByteBuffer probe = ByteBuffer.allocate(1);
+				if (socket.read(probe) < 0)
+					break;
+				probe.flip();
+				output.write(probe, offset + received);
+				len = 1;
+			}
+			received += len;
+			if (progress != null)
+				progress.accept(received);
+		}
+		close();
+		return received;
+	}
+
+	/**
+	 * Close the connection, aborting the transfer if it is in progress
+	 */
+	public void close() {
+		SocketChannel s = socket;
+		if (s != null) {
+			try {
+				s.close();
+			} catch (IOException e) {
+				System.out.println("Error closing resource");
+			}
+		}
+	}
+}
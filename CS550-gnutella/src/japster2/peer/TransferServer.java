@@ -0,0 +1,359 @@
+package japster2.peer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves files to other peers. A single TransferServer listens on one port and handles all uploads of a peer
+ * on one thread driven by a Selector.
+ * <br>
+ * A transfer works as follows: 
+ * <br>
+ * 1. The downloading peer calls obtain() on the serving peer, which registers the file with register() and 
+ * returns a TransferTicket with the port of the server and a random token.
+ * <br>
+ * 2. The downloading peer connects to the port and sends the token, the offset of the first byte it wants 
+ * and the number of bytes it wants (8 bytes each, a negative length means until the end of the file).
+ * <br>
+ * 3. The server sends the requested range of the file and closes the connection.
+ * <br>
+ * Tokens that are not presented within Const.FILE_SERVER_WAIT_TIME are discarded, as are connections that do 
+ * not send a valid token within the same time.
+ * <br>
+ * Files are sent with FileChannel.transferTo unless zero-copy is disabled or fails, in which case they are
+ * copied through a heap buffer. The bytes sent so far are counted on the connection after every write, so a
+ * transfer that falls back to copying continues from the last byte the client received instead of the start of
+ * the range.
+ * @author jota
+ *
+ */
+public class TransferServer extends Thread {
+
+	//Size of the request sent by the client: token, offset and length
+	public static final int HEADER_SIZE = 24;
+
+	//Maximum number of bytes sent to a connection each time it becomes writable, so that a fast 
+	//connection can not starve the rest
+	private static final long MAX_WRITE = 1024*1024;
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+
+	//Registered files waiting for their client to connect
+	private ConcurrentHashMap<Long,PendingFile> pending;
+	private SecureRandom random;
+
+	private boolean zeroCopy;
+
+	//Counters
+	private AtomicLong served;
+	private AtomicLong failed;
+	private AtomicLong bytesSent;
+	private volatile int active;
+
+	/**
+	 * Creates a new TransferServer. The server must be started with start()
+	 * @param address local address to listen on
+	 * @param port port to listen on, 0 to use any free port
+	 * @param zeroCopy send files with FileChannel.transferTo
+	 * @throws IOException
+	 */
+	public TransferServer(String address, int port, boolean zeroCopy) throws IOException {
+		super("transfer-server");
+		setDaemon(true);
+
+		this.zeroCopy = zeroCopy;
+		pending = new ConcurrentHashMap<Long,PendingFile>();
+		random = new SecureRandom();
+		served = new AtomicLong();
+		failed = new AtomicLong();
+		bytesSent = new AtomicLong();
+
+		selector = Selector.open();
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(address, port), Const.TRANSFER_BACKLOG);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	/**
+	 * Register a file to be served 
+	 * @param fileName full name of the file
+	 * @return TransferTicket that has to be used by the client to download the file
+	 * @throws FileNotFoundException if the file does not exist
+	 */
+	public TransferTicket register(String fileName) throws FileNotFoundException {
+		if (!new File(fileName).exists())
+			throw new FileNotFoundException();
+
+		long token = random.nextLong();
+		pending.put(token, new PendingFile(fileName, System.nanoTime() + Const.FILE_SERVER_WAIT_TIME * 1000000L));
+		return new TransferTicket(getPort(), token);
+	}
+
+	/**
+	 * Stop the server and close all connections
+	 */
+	public void shutdown() {
+		interrupt();
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		long nextExpiry = System.nanoTime();
+		try {
+			while (!Thread.interrupted()) {
+				selector.select(1000);
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid())
+							continue;
+						if (key.isAcceptable())
+							accept();
+						else if (key.isReadable())
+							readRequest(key);
+						else if (key.isWritable())
+							send(key);
+					} catch (IOException e) {
+						System.out.println("File Transfer failed(" + key.attachment() + ")");
+						failed.incrementAndGet();
+						close(key);
+					}
+				}
+
+				//discard expired tokens and idle connections about once per second
+				long now = System.nanoTime();
+				if (now - nextExpiry >= 0) {
+					expire(now);
+					nextExpiry = now + 1000000000L;
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Transfer server failed");
+			e.printStackTrace();
+		} finally {
+			cleanup();
+		}
+	}
+
+	/**
+	 * Accept all pending connections
+	 * @throws IOException
+	 */
+	private void accept() throws IOException {
+		SocketChannel client;
+		while ((client = serverChannel.accept()) != null) {
+			client.configureBlocking(false);
+			client.register(selector, SelectionKey.OP_READ, new Connection());
+			active++;
+		}
+	}
+
+	/**
+	 * Read the request of a client and start sending the file once the whole request has been received
+	 * @param key
+	 * @throws IOException
+	 */
+	private void readRequest(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+
+		if (client.read(conn.header) < 0)
+			throw new IOException("Connection closed before request");
+		if (conn.header.hasRemaining())
+			return;
+
+		//find the registered file
+		conn.header.flip();
+		long token = conn.header.getLong();
+		long offset = conn.header.getLong();
+		long length = conn.header.getLong();
+		PendingFile file = pending.remove(token);
+		if (file == null)
+			throw new IOException("Unknown token");
+
+		conn.fileName = file.fileName;
+		conn.file = new RandomAccessFile(file.fileName, "r").getChannel();
+		//serve the requested range
+		long size = conn.file.size();
+		if (offset < 0 || offset > size)
+			throw new IOException("Invalid range");
+		conn.position = offset;
+		conn.end = length < 0 ? size : Math.min(size, offset + length);
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Send the next part of the file to a client
+	 * @param key
+	 * @throws IOException
+	 */
+	private void send(SelectionKey key) throws IOException {
+		SocketChannel client = (SocketChannel) key.channel();
+		Connection conn = (Connection) key.attachment();
+
+		long len = Math.min(MAX_WRITE, conn.end - conn.position);
+		long written = 0;
+		if (zeroCopy && conn.buffer == null) {
+			try {
+				written = conn.file.transferTo(conn.position, len, client);
+			} catch (IOException e) {
+				//continue this transfer copying through a buffer
+				System.out.println("Zero-copy transfer failed, copying the rest of the file (" + conn.fileName + ")");
+				conn.buffer = ByteBuffer.allocate(Const.TRANSFER_BUFFER_SIZE);
+				conn.buffer.limit(0);
+			}
+		} else {
+			if (conn.buffer == null) {
+				conn.buffer = ByteBuffer.allocate(Const.TRANSFER_BUFFER_SIZE);
+				conn.buffer.limit(0);
+			}
+			//refill the buffer once it has been sent completely
+			if (!conn.buffer.hasRemaining()) {
+				conn.buffer.clear();
+				conn.buffer.limit((int) Math.min(conn.buffer.capacity(), len));
+				if (conn.file.read(conn.buffer, conn.position) < 0)
+					throw new IOException("File truncated");
+				conn.buffer.flip();
+			}
+			written = client.write(conn.buffer);
+		}
+		conn.position += written;
+		bytesSent.addAndGet(written);
+
+		if (conn.position >= conn.end) {
+			served.incrementAndGet();
+			close(key);
+		}
+	}
+
+	/**
+	 * Remove expired tokens and close connections that did not send a request in time
+	 * @param now current System.nanoTime() 
+	 */
+	private void expire(long now) {
+		Iterator<PendingFile> files = pending.values().iterator();
+		while (files.hasNext()) {
+			PendingFile file = files.next();
+			if (now - file.deadline > 0) {
+				System.out.println("File Transfer timed out waiting for client connection (" + file.fileName + ")");
+				files.remove();
+			}
+		}
+		for (SelectionKey key : selector.keys()) {
+			Object attachment = key.attachment();
+			if (attachment instanceof Connection && ((Connection) attachment).file == null
+					&& now - ((Connection) attachment).deadline > 0) {
+				failed.incrementAndGet();
+				close(key);
+			}
+		}
+	}
+
+	/**
+	 * Close a client connection and its file 
+	 * @param key
+	 */
+	private void close(SelectionKey key) {
+		key.cancel();
+		try {
+			key.channel().close();
+		} catch (IOException e) {
+			System.out.println("Error closing resource");
+		}
+		Connection conn = (Connection) key.attachment();
+		if (conn != null) {
+			active--;
+			if (conn.file != null) {
+				try {
+					conn.file.close();
+				} catch (IOException e) {
+					System.out.println("Error closing resource");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Close all resources used by the thread.
+	 */
+	private void cleanup() {
+		for (SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection)
+				close(key);
+		}
+		try {
+			serverChannel.close();
+			selector.close();
+		} catch (IOException e) {
+			System.out.println("Error closing resource");
+		}
+		pending.clear();
+	}
+
+	@Override
+	public String toString() {
+		return "port " + getPort() +
+				", active " + active +
+				", pending " + pending.size() +
+				", served " + served.get() +
+				", failed " + failed.get() +
+				", sent " + bytesSent.get() + " bytes";
+	}
+
+	/**
+	 * A file registered by obtain() waiting for its client to connect
+	 */
+	private static class PendingFile {
+		private String fileName;
+		private long deadline;
+
+		private PendingFile(String fileName, long deadline) {
+			this.fileName = fileName;
+			this.deadline = deadline;
+		}
+	}
+
+	/**
+	 * State of a client connection
+	 */
+	private static class Connection {
+		private ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		private long deadline = System.nanoTime() + Const.FILE_SERVER_WAIT_TIME * 1000000L;
+
+		private String fileName;
+		private FileChannel file;
+		private long position;
+		private long end;
+
+		//only used when not using zero-copy
+		private ByteBuffer buffer;
+
+		@Override
+		public String toString() {
+			return fileName == null ? "no request" : fileName;
+		}
+	}
+}
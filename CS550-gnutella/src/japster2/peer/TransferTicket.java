@@ -0,0 +1,36 @@
+package japster2.peer;
+
+import java.io.Serializable;
+
+/**
+ * Returned by obtain() to a peer that wants to download a file. Contains the port of the TransferServer of 
+ * the peer serving the file and a token that identifies the requested file. The downloading peer connects to 
+ * the port and presents the token to start the transfer.
+ * @author jota
+ *
+ */
+public class TransferTicket implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int port;
+	private long token;
+
+	public TransferTicket(int port, long token) {
+		this.port = port;
+		this.token = token;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public long getToken() {
+		return token;
+	}
+
+	@Override
+	public String toString() {
+		return "port " + port + ", token " + Long.toHexString(token);
+	}
+}
@@ -0,0 +1,134 @@
+package japster2.peer;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Keeps track of when the TTR of each remote FileLocation expires. Used in pull mode instead of decreasing the 
+ * TTR of every file periodically.
+ * <br>
+ * FileLocations are kept on a priority queue ordered by their deadline, so finding the files that expired only 
+ * touches those files. Deadlines are measured with System.nanoTime(), which is not affected by changes of the 
+ * system clock.
+ * <br>
+ * Each deadline is moved forward by a random amount of up to jitter*TTR, so files that were downloaded at the 
+ * same time do not all expire (and get polled) in the same instant. Expiring early never makes a copy less 
+ * consistent, it only makes it get polled sooner.
+ * <br>
+ * Rescheduling a FileLocation does not remove its previous entry from the queue, entries whose deadline no 
+ * longer matches the deadline of their FileLocation are discarded when they reach the head of the queue.
+ * @author jota
+ *
+ */
+public class TtrScheduler {
+
+	/**
+	 * A deadline of a FileLocation
+	 */
+	private static class Entry implements Comparable<Entry> {
+		private FileLocation location;
+		private long deadline;
+
+		private Entry(FileLocation location, long deadline) {
+			this.location = location;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return Long.compare(deadline - other.deadline, 0);
+		}
+	}
+
+	private PriorityQueue<Entry> queue;
+	private Random random;
+	private double jitter;
+
+	/**
+	 * Create a new TtrScheduler
+	 * @param jitter fraction of the TTR by which deadlines can be moved forward, at least 0 and less than 1
+	 * @throws IllegalArgumentException if jitter is out of range
+	 */
+	public TtrScheduler(double jitter) {
+		queue = new PriorityQueue<Entry>();
+		random = new Random();
+		setJitter(jitter);
+	}
+
+	/**
+	 * Set the fraction of the TTR by which deadlines can be moved forward. A jitter of 1 or more could schedule a
+	 * deadline at or before the time the file was downloaded
+	 * @param jitter at least 0 and less than 1
+	 * @throws IllegalArgumentException if jitter is out of range
+	 */
+	public synchronized void setJitter(double jitter) {
+		if ( !(jitter >= 0 && jitter < 1) )
+			throw new IllegalArgumentException("Jitter must be at least 0 and less than 1: " + jitter);
+		this.jitter = jitter;
+	}
+
+	/**
+	 * Schedule the expiration of a FileLocation using its current TTR
+	 * @param loc FileLocation to schedule 
+	 */
+	public void schedule(FileLocation loc) {
+		long ttr = loc.getTtr() * 1000000000L;
+		long delay;
+		synchronized(this) {
+			delay = ttr - (long) (ttr * jitter * random.nextDouble());
+		}
+		schedule(loc, delay);
+	}
+
+	/**
+	 * Schedule the expiration of a FileLocation after a delay 
+	 * @param loc FileLocation to schedule
+	 * @param delay delay in nanoseconds
+	 */
+	public synchronized void schedule(FileLocation loc, long delay) {
+		long deadline = System.nanoTime() + delay;
+		loc.setDeadline(deadline);
+		Entry entry = new Entry(loc, deadline);
+		queue.add(entry);
+		//wake up the waiting thread if this is the new earliest deadline
+		if (queue.peek() == entry)
+			notifyAll();
+	}
+
+	/**
+	 * Wait until at least one FileLocation expires. 
+	 * @return FileLocations whose deadline has passed. They are marked as expired
+	 * @throws InterruptedException
+	 */
+	public synchronized ArrayList<FileLocation> awaitExpired() throws InterruptedException {
+		ArrayList<FileLocation> expired = new ArrayList<FileLocation>();
+		while (expired.isEmpty()) {
+			long now = System.nanoTime();
+			Entry head = queue.peek();
+			if (head == null) {
+				wait();
+				continue;
+			}
+			if (head.deadline - now > 0) {
+				long wait = head.deadline - now;
+				wait(wait / 1000000, (int) (wait % 1000000));
+				continue;
+			}
+			//collect every due entry 
+			while ((head = queue.peek()) != null && head.deadline - now <= 0) {
+				queue.poll();
+				//skip entries replaced by a later schedule() call
+				if (head.location.getDeadline() != head.deadline)
+					continue;
+				head.location.expire();
+				expired.add(head.location);
+			}
+		}
+		return expired;
+	}
+
+	public synchronized int size() {
+		return queue.size();
+	}
+}
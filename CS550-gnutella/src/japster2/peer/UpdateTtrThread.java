@@ -1,9 +1,10 @@
 package japster2.peer;
 
 /**
- * Periodically calls the tickTtr method of a peer, which in turn calls the tickTtr methods of all of its 
- * remote FileLocations. After updating the TTR of each file calls sendPolls() to poll for any FileLocations
- * which have expired.
+ * Waits on the TtrScheduler of a peer for remote FileLocations whose TTR has expired and calls sendPolls() to 
+ * poll the owners of those FileLocations.
+ * <br>
+ * The thread only wakes up when a file actually expires, so its cost does not depend on the number of remote files.
  * @author jota
  *
  */
@@ -18,15 +19,8 @@ public class UpdateTtrThread extends Thread {
 	@Override
 	public void run() {
 		while(!Thread.interrupted()) {
-			long currentTime = System.currentTimeMillis();
-			long nextRunTime = currentTime + Const.UPDATE_TTR_PERIOD;
-			peer.tickTtr();
-			peer.sendPolls();
-			currentTime = System.currentTimeMillis();
-			long waitTime = nextRunTime - currentTime; 
 			try {
-				if (waitTime > 0)
-					sleep(waitTime);
+				peer.sendPolls(peer.getTtrScheduler().awaitExpired());
 			} catch (InterruptedException e) {
 				return; 
 			}
@@ -0,0 +1,97 @@
+package japster2.tools;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Random;
+
+import japster2.peer.FileLocation;
+import japster2.peer.FileTable;
+
+/**
+ * Measures the cost of finding a FileLocation by name as the number of shared files grows. Compares the 
+ * linear scan over a list of FileLocations (used by earlier versions of the peer) with the name index of 
+ * FileTable.
+ * 
+ * Usage: FileIndexBenchmark [lookups]
+ * 
+ * @author jota
+ *
+ */
+public class FileIndexBenchmark {
+	
+	public static final int[] FILE_COUNTS = { 1000, 10000, 50000, 100000 };
+	public static final int DEFAULT_LOOKUPS = 20000;
+	
+	public static void main(String[] args) {
+		int lookups = DEFAULT_LOOKUPS;
+		if ( args.length > 0 )
+			lookups = Integer.parseInt(args[0]);
+		
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9900);
+		System.out.println("files\tlinear scan (ns/lookup)\tindex (ns/lookup)");
+		
+		for ( int count : FILE_COUNTS ) {
+			//create tables
+			ArrayList<FileLocation> list = new ArrayList<FileLocation>(count);
+			FileTable table = new FileTable();
+			for ( int i = 0; i < count; i++ ) {
+				FileLocation loc = new FileLocation(address, "file_" + i, 1024, 1, 30);
+				list.add(loc);
+				table.put(loc);
+			}
+			
+			//names to lookup, use the same seed so both methods see the same names
+			Random rand = new Random(1);
+			String[] names = new String[lookups];
+			for ( int i = 0; i < lookups; i++ ) {
+				names[i] = "file_" + rand.nextInt(count);
+			}
+			
+			//warm up 
+			scan(list, names);
+			lookup(table, names);
+			
+			long scanTime = scan(list, names);
+			long indexTime = lookup(table, names);
+			System.out.println(count + "\t" + (scanTime / lookups) + "\t\t\t\t" + (indexTime / lookups));
+		}
+	}
+	
+	/**
+	 * Find each name by traversing the list
+	 * @return elapsed time in nanoseconds
+	 */
+	private static long scan(ArrayList<FileLocation> list, String[] names) {
+		int found = 0;
+		long start = System.nanoTime();
+		for ( String name : names ) {
+			for ( FileLocation loc : list ) {
+				if ( loc.getName().equals(name) ) {
+					found++;
+					break;
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		if ( found != names.length )
+			System.out.println("Lookup failed");
+		return elapsed;
+	}
+	
+	/**
+	 * Find each name using the FileTable index
+	 * @return elapsed time in nanoseconds
+	 */
+	private static long lookup(FileTable table, String[] names) {
+		int found = 0;
+		long start = System.nanoTime();
+		for ( String name : names ) {
+			if ( table.get(name) != null )
+				found++;
+		}
+		long elapsed = System.nanoTime() - start;
+		if ( found != names.length )
+			System.out.println("Lookup failed");
+		return elapsed;
+	}
+}
@@ -0,0 +1,148 @@
+package japster2.tools;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import japster2.peer.FileLocation;
+import japster2.peer.FileTable;
+import japster2.peer.InvertedIndex;
+
+/**
+ * Measures the latency of keyword lookups on a FileTable with many shared files.
+ *
+ * The table is filled with generated file names made of a few words taken from a vocabulary with a Zipf
+ * distribution, so some keywords are on many files and most are on few. Queries of one, two and three keywords
+ * are taken from the names of random files, so every query matches at least one file. Each query is answered
+ * with FileTable.search(), which intersects the posting lists of the keywords, and by scanning every name of the
+ * table and checking its keywords, as a peer without the index would have to do.
+ *
+ * Usage: IndexBenchmark [files] [vocabulary] [queries]
+ *
+ * @author jota
+ *
+ */
+public class IndexBenchmark {
+
+	public static final int DEFAULT_FILES = 100000;
+	public static final int DEFAULT_VOCABULARY = 5000;
+	public static final int DEFAULT_QUERIES = 2000;
+	public static final String[] EXTENSIONS = { "mp3", "txt", "pdf", "avi", "jpg" };
+	public static final long SEED = 42;
+
+	public static void main(String[] args) {
+		int files = DEFAULT_FILES;
+		int vocabulary = DEFAULT_VOCABULARY;
+		int queries = DEFAULT_QUERIES;
+		if ( args.length > 0 )
+			files = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			vocabulary = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			queries = Integer.parseInt(args[2]);
+
+		Random random = new Random(SEED);
+		double[] zipf = zipf(vocabulary);
+		InetSocketAddress address = new InetSocketAddress("127.0.0.1", 9000);
+		String[] names = new String[files];
+		for ( int i = 0; i < files; i++ ) {
+			int words = 2 + random.nextInt(3);
+			StringBuilder name = new StringBuilder();
+			for ( int w = 0; w < words; w++ )
+				name.append("word").append(sample(zipf, random)).append(w < words - 1 ? "_" : "");
+			names[i] = name.append('-').append(i).append('.').append(EXTENSIONS[random.nextInt(EXTENSIONS.length)]).toString();
+		}
+
+		long start = System.nanoTime();
+		FileTable table = new FileTable();
+		for ( String name : names )
+			table.put(new FileLocation(address, name, 1024, 1, 30));
+		System.out.printf("%d files, %d keywords, table built in %.0f ms%n", files, table.tokens().size(),
+				(System.nanoTime() - start) / 1e6);
+
+		for ( int keywords = 1; keywords <= 3; keywords++ ) {
+			String[] query = new String[queries];
+			for ( int q = 0; q < queries; q++ ) {
+				String[] tokens = InvertedIndex.tokenize(names[random.nextInt(files)]);
+				StringBuilder text = new StringBuilder();
+				for ( int k = 0; k < Math.min(keywords, tokens.length); k++ )
+					text.append(tokens[k]).append(' ');
+				query[q] = text.toString();
+			}
+
+			//warm up, then measure
+			for ( int q = 0; q < queries; q++ )
+				table.search(query[q]);
+			long[] indexed = new long[queries];
+			long results = 0;
+			for ( int q = 0; q < queries; q++ ) {
+				long t = System.nanoTime();
+				results += table.search(query[q]).size();
+				indexed[q] = System.nanoTime() - t;
+			}
+
+			int scans = Math.max(1, queries / 20);
+			long[] scanned = new long[scans];
+			for ( int q = 0; q < scans; q++ ) {
+				long t = System.nanoTime();
+				scan(table.list(), query[q]);
+				scanned[q] = System.nanoTime() - t;
+			}
+
+			System.out.printf("%d keyword(s): %.1f results/query, index avg %.1f us p50 %.1f us p99 %.1f us, scan avg %.1f us p50 %.1f us%n",
+					keywords, (double) results / queries, avg(indexed) / 1e3, percentile(indexed, 0.5) / 1e3,
+					percentile(indexed, 0.99) / 1e3, avg(scanned) / 1e3, percentile(scanned, 0.5) / 1e3);
+		}
+	}
+
+	/**
+	 * Answer a keyword query by checking every name
+	 */
+	private static ArrayList<FileLocation> scan(ArrayList<FileLocation> files, String query) {
+		String[] keywords = InvertedIndex.tokenize(query);
+		ArrayList<FileLocation> matches = new ArrayList<FileLocation>();
+		for ( FileLocation loc : files ) {
+			String[] tokens = InvertedIndex.tokenize(loc.getName());
+			boolean all = true;
+			for ( String keyword : keywords )
+				all &= Arrays.asList(tokens).contains(keyword);
+			if ( all )
+				matches.add(loc);
+		}
+		return matches;
+	}
+
+	/**
+	 * Cumulative probabilities of a Zipf distribution with exponent 1
+	 */
+	private static double[] zipf(int n) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for ( int i = 0; i < n; i++ ) {
+			sum += 1.0 / (i + 1);
+			cdf[i] = sum;
+		}
+		for ( int i = 0; i < n; i++ )
+			cdf[i] /= sum;
+		return cdf;
+	}
+
+	private static int sample(double[] cdf, Random random) {
+		int i = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+	}
+
+	private static double avg(long[] samples) {
+		long sum = 0;
+		for ( long sample : samples )
+			sum += sample;
+		return (double) sum / samples.length;
+	}
+
+	private static long percentile(long[] samples, double p) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+	}
+}
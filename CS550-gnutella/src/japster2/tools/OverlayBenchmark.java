@@ -0,0 +1,184 @@
+package japster2.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import japster2.peer.NioTransport;
+import japster2.peer.Peer;
+import japster2.peer.QueryRouter;
+
+/**
+ * Compares the message load of the peers of a flat network with the load of the peers of a two tier network of
+ * ultrapeers and leaves.
+ *
+ * The same number of peers is created in this process for each network, every peer shares a few files of its own:
+ * - flat: every peer connects to a few random peers created before it, queries are flooded to every peer.
+ * - ultrapeer: the first peers are ultrapeers connected among themselves the same way, every other peer is a leaf
+ *   attached to Const.LEAF_ULTRAPEERS random ultrapeers.
+ *
+ * Every peer then searches for files of random peers. The benchmark counts the query, hitquery and invalidate
+ * messages received by each peer and reports the average and maximum per peer, per ultrapeer and per leaf, with
+ * the results found per search. The hit cache and query routing tables are disabled so that only the structure of
+ * the overlay is measured.
+ *
+ * Usage: OverlayBenchmark [peers] [ultrapeers] [searches per peer] [files per peer]
+ *
+ * @author jota
+ *
+ */
+public class OverlayBenchmark {
+
+	public static final int DEFAULT_PEERS = 60;
+	public static final int DEFAULT_ULTRAPEERS = 6;
+	public static final int DEFAULT_SEARCHES = 20;
+	public static final int DEFAULT_FILES = 5;
+	public static final int LINKS = 2;
+	public static final int FLAT_BASE_PORT = 10100;
+	public static final int TIERED_BASE_PORT = 10300;
+	public static final long SEED = 42;
+
+	public static void main(String[] args) throws Exception {
+		int peers = DEFAULT_PEERS;
+		int ultrapeers = DEFAULT_ULTRAPEERS;
+		int searches = DEFAULT_SEARCHES;
+		int files = DEFAULT_FILES;
+		if ( args.length > 0 )
+			peers = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			ultrapeers = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			searches = Integer.parseInt(args[2]);
+		if ( args.length > 3 )
+			files = Integer.parseInt(args[3]);
+
+		System.out.println(peers + " peers, " + files + " files per peer, " + searches + " searches per peer");
+		run("flat", peers, 0, searches, files, FLAT_BASE_PORT);
+		run("ultrapeer", peers, ultrapeers, searches, files, TIERED_BASE_PORT);
+		System.exit(0);
+	}
+
+	/**
+	 * Build a network, run the searches and print the load of the peers
+	 * @param name name of the network
+	 * @param count number of peers
+	 * @param ultrapeers number of ultrapeers, 0 for a flat network
+	 */
+	private static void run(String name, int count, int ultrapeers, int searches, int files, int basePort) throws Exception {
+		Random random = new Random(SEED);
+		Peer[] peers = new Peer[count];
+		for ( int i = 0; i < count; i++ ) {
+			peers[i] = createPeer(i, files, basePort);
+			if ( ultrapeers == 0 ) {
+				connect(peers[i], i, basePort, random);
+			} else if ( i < ultrapeers ) {
+				peers[i].setRole(Peer.Role.ULTRAPEER);
+				connect(peers[i], i, basePort, random);
+			} else {
+				peers[i].setRole(Peer.Role.LEAF);
+				int first = random.nextInt(ultrapeers);
+				peers[i].sayHello(new InetSocketAddress("127.0.0.1", basePort + first));
+				if ( ultrapeers > 1 )
+					peers[i].sayHello(new InetSocketAddress("127.0.0.1", basePort + (first + 1 + random.nextInt(ultrapeers - 1)) % ultrapeers));
+			}
+		}
+		//wait for the leaves to publish their files
+		Thread.sleep(1500);
+
+		long[] before = new long[count];
+		for ( int i = 0; i < count; i++ )
+			before[i] = peers[i].getMessagesReceived();
+
+		long start = System.nanoTime();
+		for ( int s = 0; s < searches; s++ ) {
+			for ( Peer peer : peers )
+				peer.search(fileName(random.nextInt(count), random.nextInt(files)));
+		}
+		waitForQuiet(peers);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		long[] load = new long[count];
+		long total = 0;
+		long results = 0;
+		for ( int i = 0; i < count; i++ ) {
+			load[i] = peers[i].getMessagesReceived() - before[i];
+			total += load[i];
+			results += peers[i].getSearchResults().size();
+		}
+		System.out.printf("%s: %d messages in %.1f s, %.1f messages/search, %.2f results/search%n", name, total,
+				seconds, (double) total / (count * searches), (double) results / (count * searches));
+		if ( ultrapeers == 0 ) {
+			print(name + ": messages per peer", Arrays.copyOfRange(load, 0, count));
+		} else {
+			print(name + ": messages per ultrapeer", Arrays.copyOfRange(load, 0, ultrapeers));
+			print(name + ": messages per leaf", Arrays.copyOfRange(load, ultrapeers, count));
+		}
+
+		for ( Peer peer : peers )
+			peer.shutdownPeerStub();
+	}
+
+	private static Peer createPeer(int i, int files, int basePort) throws IOException {
+		File dir = Files.createTempDirectory("overlay").toFile();
+		dir.deleteOnExit();
+		for ( int j = 0; j < files; j++ ) {
+			File file = new File(dir, fileName(i, j));
+			file.deleteOnExit();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(1024);
+			raf.close();
+		}
+		Peer peer = new Peer("127.0.0.1", basePort + i, dir.getPath());
+		peer.setQuiet(true);
+		peer.setTransport(new NioTransport());
+		peer.setDispatchWorkers(2, false);
+		peer.setHitCache(false);
+		peer.setQueryRouting(QueryRouter.Mode.OFF);
+		peer.exportPeerStub();
+		peer.loadFiles();
+		return peer;
+	}
+
+	/**
+	 * Connect a peer to random peers created before it
+	 */
+	private static void connect(Peer peer, int i, int basePort, Random random) throws Exception {
+		for ( int l = 0; l < Math.min(i, LINKS); l++ ) {
+			int other = random.nextInt(i);
+			peer.sayHello(new InetSocketAddress("127.0.0.1", basePort + other));
+		}
+	}
+
+	private static String fileName(int peer, int file) {
+		return "file-" + peer + "-" + file;
+	}
+
+	/**
+	 * Wait until no peer has received a message for a while
+	 */
+	private static void waitForQuiet(Peer[] peers) throws InterruptedException {
+		long last = -1;
+		while ( true ) {
+			Thread.sleep(500);
+			long total = 0;
+			for ( Peer peer : peers )
+				total += peer.getMessagesReceived();
+			if ( total == last )
+				return;
+			last = total;
+		}
+	}
+
+	private static void print(String label, long[] samples) {
+		Arrays.sort(samples);
+		long sum = 0;
+		for ( long sample : samples )
+			sum += sample;
+		System.out.printf("%s: avg %d, p50 %d, max %d%n", label, sum / samples.length,
+				samples[samples.length / 2], samples[samples.length - 1]);
+	}
+}
@@ -0,0 +1,281 @@
+package japster2.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import japster2.peer.BloomFilter;
+import japster2.peer.Const;
+
+/**
+ * Measures how many query messages are saved by forwarding queries with query routing tables.
+ *
+ * Networks large enough to show the effect can not be run as real peers in one process, so the benchmark
+ * simulates them: a random topology is built by adding peers one at a time, each one connecting to a few random
+ * peers already in the network (as peers started with -N do). Every peer shares a few files, chosen with a Zipf
+ * distribution so that some files are replicated on many peers. The routing tables are BloomFilters of the same
+ * size as the ones used by QueryRouter, and the aggregate tables are computed until they stop changing, as the
+ * peers would do by exchanging updates.
+ *
+ * Each query is propagated breadth first from a random peer with the same rules as Peer: a query is not sent back
+ * to the neighbor it came from, duplicates are dropped when they arrive and the ttl is decreased on every hop. For
+ * each routing mode the benchmark reports the query messages sent and the results found per query:
+ * - flood: every query is sent to every neighbor.
+ * - last-hop: neighbors only send tables with their own files, used when the query can not travel further.
+ * - aggregate: tables cover every file reachable through the neighbor, used on every hop.
+ *
+ * Usage: RoutingBenchmark [peers] [links per peer] [files per peer] [distinct files] [queries] [ttl]
+ *
+ * @author jota
+ *
+ */
+public class RoutingBenchmark {
+
+	public static final int DEFAULT_PEERS = 1000;
+	public static final int DEFAULT_LINKS = 2;
+	public static final int DEFAULT_FILES = 20;
+	public static final int DEFAULT_DISTINCT = 100000;
+	public static final int DEFAULT_QUERIES = 5000;
+	public static final long SEED = 42;
+
+	private static final int FLOOD = 0;
+	private static final int LAST_HOP = 1;
+	private static final int AGGREGATE = 2;
+	private static final String[] MODES = { "flood", "last-hop", "aggregate" };
+
+	//neighbors of each peer and, for each neighbor, the index of the peer on the neighbor's list
+	private static int[][] links;
+	private static int[][] back;
+
+	//files of each peer, table with the files of each peer and aggregate table sent by each peer to each neighbor
+	private static String[][] files;
+	private static BloomFilter[] own;
+	private static BloomFilter[][] aggregate;
+
+	public static void main(String[] args) {
+		int peers = DEFAULT_PEERS;
+		int degree = DEFAULT_LINKS;
+		int filesPerPeer = DEFAULT_FILES;
+		int distinct = DEFAULT_DISTINCT;
+		int queries = DEFAULT_QUERIES;
+		int ttl = Const.TTL;
+		if ( args.length > 0 )
+			peers = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			degree = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			filesPerPeer = Integer.parseInt(args[2]);
+		if ( args.length > 3 )
+			distinct = Integer.parseInt(args[3]);
+		if ( args.length > 4 )
+			queries = Integer.parseInt(args[4]);
+		if ( args.length > 5 )
+			ttl = Integer.parseInt(args[5]);
+
+		Random random = new Random(SEED);
+		double[] zipf = zipf(distinct);
+		buildTopology(peers, degree, random);
+		shareFiles(filesPerPeer, zipf, random);
+		int rounds = buildAggregateTables();
+
+		long edges = 0;
+		double fill = 0;
+		for ( int v = 0; v < peers; v++ ) {
+			edges += links[v].length;
+			for ( BloomFilter table : aggregate[v] )
+				fill += table.getFill();
+		}
+		System.out.printf("%d peers, %.1f neighbors per peer, %d files per peer out of %d, ttl %d%n", peers,
+				(double) edges / peers, filesPerPeer, distinct, ttl);
+		System.out.printf("routing tables of %d bits, %d hashes, aggregate tables stable after %d rounds, %.1f%% set on average%n",
+				Const.QRT_BITS, Const.QRT_HASHES, rounds, fill / edges * 100);
+
+		//same queries for every mode
+		int[] origins = new int[queries];
+		String[] names = new String[queries];
+		for ( int i = 0; i < queries; i++ ) {
+			origins[i] = random.nextInt(peers);
+			names[i] = "file-" + sample(zipf, random);
+		}
+
+		long floodMessages = 0;
+		for ( int mode = FLOOD; mode <= AGGREGATE; mode++ ) {
+			long messages = 0;
+			long reached = 0;
+			long results = 0;
+			long start = System.nanoTime();
+			for ( int i = 0; i < queries; i++ ) {
+				long[] counts = query(origins[i], names[i], ttl, mode);
+				messages += counts[0];
+				reached += counts[1];
+				results += counts[2];
+			}
+			double ms = (System.nanoTime() - start) / 1e6;
+			if ( mode == FLOOD )
+				floodMessages = messages;
+			System.out.printf("%-9s: %8.1f messages/query (%5.1f%% of flood), %7.1f peers reached/query, %.2f results/query (%.0f ms)%n",
+					MODES[mode], (double) messages / queries, 100.0 * messages / floodMessages,
+					(double) reached / queries, (double) results / queries, ms);
+		}
+	}
+
+	/**
+	 * Cumulative probabilities of a Zipf distribution with exponent 1
+	 */
+	private static double[] zipf(int n) {
+		double[] cdf = new double[n];
+		double sum = 0;
+		for ( int i = 0; i < n; i++ ) {
+			sum += 1.0 / (i + 1);
+			cdf[i] = sum;
+		}
+		for ( int i = 0; i < n; i++ )
+			cdf[i] /= sum;
+		return cdf;
+	}
+
+	private static int sample(double[] cdf, Random random) {
+		int i = Arrays.binarySearch(cdf, random.nextDouble());
+		return Math.min(i < 0 ? -i - 1 : i, cdf.length - 1);
+	}
+
+	/**
+	 * Add the peers one at a time, each one connects to degree random peers already in the network
+	 */
+	private static void buildTopology(int peers, int degree, Random random) {
+		ArrayList<ArrayList<Integer>> adjacency = new ArrayList<ArrayList<Integer>>();
+		for ( int v = 0; v < peers; v++ ) {
+			adjacency.add(new ArrayList<Integer>());
+			for ( int i = 0; i < Math.min(v, degree); i++ ) {
+				int u = random.nextInt(v);
+				if ( adjacency.get(v).contains(u) )
+					continue;
+				adjacency.get(v).add(u);
+				adjacency.get(u).add(v);
+			}
+		}
+		links = new int[peers][];
+		for ( int v = 0; v < peers; v++ )
+			links[v] = adjacency.get(v).stream().mapToInt(Integer::intValue).toArray();
+		back = new int[peers][];
+		for ( int v = 0; v < peers; v++ ) {
+			back[v] = new int[links[v].length];
+			for ( int j = 0; j < links[v].length; j++ )
+				back[v][j] = adjacency.get(links[v][j]).indexOf(v);
+		}
+	}
+
+	private static void shareFiles(int filesPerPeer, double[] zipf, Random random) {
+		files = new String[links.length][];
+		own = new BloomFilter[links.length];
+		for ( int v = 0; v < links.length; v++ ) {
+			files[v] = new String[filesPerPeer];
+			own[v] = new BloomFilter(Const.QRT_BITS, Const.QRT_HASHES);
+			for ( int i = 0; i < filesPerPeer; i++ ) {
+				files[v][i] = "file-" + sample(zipf, random);
+				own[v].add(files[v][i]);
+			}
+		}
+	}
+
+	/**
+	 * Compute the table each peer sends to each neighbor in AGGREGATE mode: its own files and the tables received
+	 * from every other neighbor. Tables are recomputed until no table changes
+	 * @return number of rounds
+	 */
+	private static int buildAggregateTables() {
+		int peers = links.length;
+		aggregate = new BloomFilter[peers][];
+		for ( int v = 0; v < peers; v++ ) {
+			aggregate[v] = new BloomFilter[links[v].length];
+			for ( int j = 0; j < links[v].length; j++ )
+				aggregate[v][j] = new BloomFilter(own[v]);
+		}
+		int rounds = 0;
+		boolean changed = true;
+		while ( changed ) {
+			changed = false;
+			rounds++;
+			for ( int v = 0; v < peers; v++ ) {
+				for ( int j = 0; j < links[v].length; j++ ) {
+					long[] table = aggregate[v][j].getWords();
+					for ( int k = 0; k < links[v].length; k++ ) {
+						if ( k == j )
+							continue;
+						long[] received = aggregate[links[v][k]][back[v][k]].getWords();
+						for ( int w = 0; w < table.length; w++ ) {
+							long merged = table[w] | received[w];
+							if ( merged != table[w] ) {
+								table[w] = merged;
+								changed = true;
+							}
+						}
+					}
+				}
+			}
+		}
+		return rounds;
+	}
+
+	/**
+	 * Check if peer v forwards a query to its j-th neighbor
+	 */
+	private static boolean forward(int v, int j, String name, long ttl, int mode) {
+		int u = links[v][j];
+		switch ( mode ) {
+		case LAST_HOP:
+			return ttl > 1 || own[u].mightContain(name);
+		case AGGREGATE:
+			return aggregate[u][back[v][j]].mightContain(name);
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Propagate a query
+	 * @return messages sent, peers reached and peers that have the file
+	 */
+	private static long[] query(int origin, String name, int ttl, int mode) {
+		long messages = 0;
+		long reached = 0;
+		long results = 0;
+		boolean[] seen = new boolean[links.length];
+		seen[origin] = true;
+
+		//pending messages: receiving peer, sending peer and ttl
+		ArrayDeque<int[]> queue = new ArrayDeque<int[]>();
+		for ( int j = 0; j < links[origin].length; j++ ) {
+			if ( forward(origin, j, name, ttl, mode) ) {
+				messages++;
+				queue.add(new int[] { links[origin][j], origin, ttl });
+			}
+		}
+		while ( !queue.isEmpty() ) {
+			int[] message = queue.poll();
+			int v = message[0];
+			//duplicates are dropped
+			if ( seen[v] )
+				continue;
+			seen[v] = true;
+			reached++;
+			for ( String file : files[v] ) {
+				if ( file.equals(name) ) {
+					results++;
+					break;
+				}
+			}
+			int newttl = message[2] - 1;
+			if ( newttl <= 0 )
+				continue;
+			for ( int j = 0; j < links[v].length; j++ ) {
+				if ( links[v][j] != message[1] && forward(v, j, name, newttl, mode) ) {
+					messages++;
+					queue.add(new int[] { links[v][j], v, newttl });
+				}
+			}
+		}
+		return new long[] { messages, reached, results };
+	}
+}
@@ -0,0 +1,111 @@
+package japster2.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import japster2.peer.Peer;
+
+/**
+ * Measures the startup time of a peer sharing a large directory, with and without the metadata store.
+ *
+ * Without the store the peer scans the whole directory on every start. With the store the first start scans the
+ * directory and writes the store, later starts restore the file tables from the store and then check the
+ * directory, which only lists the directories that changed and looks at the size and modification time of each
+ * known file. The restart is measured with the directory unchanged and after modifying a fraction of the files.
+ *
+ * Files are spread over subdirectories of FILES_PER_DIR files.
+ *
+ * Usage: StoreBenchmark [files] [modified fraction]
+ *
+ * @author jota
+ *
+ */
+public class StoreBenchmark {
+
+	public static final int DEFAULT_FILES = 100000;
+	public static final double DEFAULT_MODIFIED = 0.01;
+	public static final int FILES_PER_DIR = 1000;
+
+	public static void main(String[] args) throws IOException {
+		int files = DEFAULT_FILES;
+		double modified = DEFAULT_MODIFIED;
+		if ( args.length > 0 )
+			files = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			modified = Double.parseDouble(args[1]);
+
+		Path dir = Files.createTempDirectory("store-benchmark");
+		try {
+			System.out.println("Creating " + files + " files");
+			for ( int i = 0; i < files; i++ ) {
+				File sub = new File(dir.toFile(), "dir-" + i / FILES_PER_DIR);
+				if ( i % FILES_PER_DIR == 0 )
+					sub.mkdir();
+				new File(sub, "file-" + i).createNewFile();
+			}
+
+			//without the store
+			long start = System.nanoTime();
+			Peer peer = newPeer(dir);
+			peer.loadFiles();
+			report("full scan, no store", start, peer);
+
+			//first start with the store
+			start = System.nanoTime();
+			peer = newPeer(dir);
+			peer.restoreFiles();
+			peer.loadFiles();
+			report("full scan, writing store", start, peer);
+			peer.closeStore();
+
+			//restart with the store, directory unchanged
+			restart(dir);
+
+			//restart after modifying some files, their directories are not listed again
+			int count = (int) (files * modified);
+			for ( int i = 0; i < count; i++ ) {
+				int f = (int) ((long) i * files / count);
+				File file = new File(dir.toFile(), "dir-" + f / FILES_PER_DIR + File.separator + "file-" + f);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				raf.setLength(1);
+				raf.close();
+			}
+			System.out.println("Modified " + count + " files");
+			restart(dir);
+		} finally {
+			try (Stream<Path> paths = Files.walk(dir)) {
+				paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+			}
+		}
+	}
+
+	/**
+	 * Start a peer with the store and report the time until the tables are restored and until the directory is checked
+	 */
+	private static void restart(Path dir) throws IOException {
+		long start = System.nanoTime();
+		Peer peer = newPeer(dir);
+		peer.restoreFiles();
+		report("restore from store", start, peer);
+		start = System.nanoTime();
+		peer.loadFiles();
+		report("check after restore", start, peer);
+		peer.closeStore();
+	}
+
+	private static Peer newPeer(Path dir) {
+		Peer peer = new Peer("127.0.0.1", 9900, dir.toString());
+		peer.setQuiet(true);
+		return peer;
+	}
+
+	private static void report(String test, long start, Peer peer) {
+		long elapsed = (System.nanoTime() - start) / 1000000;
+		System.out.println(test + ": " + elapsed + "ms, " + peer.getLocalFiles().size() + " files");
+	}
+}
@@ -0,0 +1,153 @@
+package japster2.tools;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+
+import japster2.peer.Const;
+import japster2.peer.TransferServer;
+import japster2.peer.TransferTicket;
+
+/**
+ * Measures file serving performance of TransferServer.
+ * 
+ * The first test measures the throughput of sending one large file, comparing the heap buffer copy path 
+ * with the zero-copy FileChannel.transferTo path. The client reads the file from the socket and discards it.
+ * 
+ * The second test opens many concurrent downloads of a small file against a single server and reports 
+ * the total time and the number of threads used by the process.
+ * 
+ * Usage: TransferBenchmark [size in MB] [rounds] [concurrent downloads]
+ * 
+ * @author jota
+ *
+ */
+public class TransferBenchmark {
+	
+	public static final int DEFAULT_SIZE_MB = 512;
+	public static final int DEFAULT_ROUNDS = 3;
+	public static final int DEFAULT_CONCURRENT = 2000;
+	public static final int SMALL_FILE_SIZE = 64*1024;
+	
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int sizeMb = DEFAULT_SIZE_MB;
+		int rounds = DEFAULT_ROUNDS;
+		int concurrent = DEFAULT_CONCURRENT;
+		if ( args.length > 0 )
+			sizeMb = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			rounds = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			concurrent = Integer.parseInt(args[2]);
+		
+		//create test files with random content so the transfer can not be optimized away
+		File file = createFile(sizeMb * 1024L * 1024L);
+		File smallFile = createFile(SMALL_FILE_SIZE);
+		
+		TransferServer copyServer = new TransferServer("127.0.0.1", 0, false);
+		TransferServer zeroCopyServer = new TransferServer("127.0.0.1", 0, true);
+		copyServer.start();
+		zeroCopyServer.start();
+		
+		System.out.println("Serving " + sizeMb + "MB file, " + rounds + " rounds");
+		//warm up
+		transfer(copyServer, file);
+		transfer(zeroCopyServer, file);
+		
+		for ( int i = 0; i < rounds; i++ ) {
+			double copy = transfer(copyServer, file);
+			double zero = transfer(zeroCopyServer, file);
+			System.out.printf("round %d: copy loop %.1f MB/s, zero-copy %.1f MB/s%n", i, copy, zero);
+		}
+		
+		System.out.println("Serving " + concurrent + " concurrent downloads of a " + SMALL_FILE_SIZE + " byte file");
+		concurrentTransfers(zeroCopyServer, smallFile, concurrent);
+		
+		copyServer.shutdown();
+		zeroCopyServer.shutdown();
+		file.delete();
+		smallFile.delete();
+	}
+	
+	private static File createFile(long size) throws IOException {
+		File file = File.createTempFile("transfer", ".bin");
+		file.deleteOnExit();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		byte[] block = new byte[(int) Math.min(size, 1024*1024)];
+		new java.util.Random(1).nextBytes(block);
+		for ( long written = 0; written < size; written += block.length )
+			raf.write(block, 0, (int) Math.min(block.length, size - written));
+		raf.close();
+		return file;
+	}
+	
+	/**
+	 * Connect to the server and present the token of a ticket 
+	 */
+	private static Socket connect(TransferTicket ticket) throws IOException {
+		Socket socket = new Socket("127.0.0.1", ticket.getPort());
+		DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+		request.writeLong(ticket.getToken());
+		//request the whole file
+		request.writeLong(0);
+		request.writeLong(-1);
+		request.flush();
+		return socket;
+	}
+	
+	/**
+	 * Read a file from a socket and discard it
+	 * @return number of bytes read
+	 */
+	private static long read(Socket socket, byte[] buffer) throws IOException {
+		InputStream input = socket.getInputStream();
+		long received = 0;
+		int len;
+		while ( (len = input.read(buffer)) > 0 ) {
+			received += len;
+		}
+		socket.close();
+		return received;
+	}
+	
+	/**
+	 * Download the file once from the server
+	 * @return throughput in MB/s
+	 */
+	private static double transfer(TransferServer server, File file) throws IOException {
+		long start = System.nanoTime();
+		Socket socket = connect(server.register(file.getPath()));
+		long received = read(socket, new byte[Const.BUFFER_SIZE]);
+		long elapsed = System.nanoTime() - start;
+		
+		if ( received != file.length() )
+			System.out.println("Transfer incomplete: " + received + " bytes");
+		return (received / (1024.0*1024.0)) / (elapsed / 1e9);
+	}
+	
+	/**
+	 * Open all downloads before reading any of them, so the server has to handle them concurrently 
+	 */
+	private static void concurrentTransfers(TransferServer server, File file, int count) throws IOException {
+		long start = System.nanoTime();
+		Socket[] sockets = new Socket[count];
+		for ( int i = 0; i < count; i++ ) {
+			sockets[i] = connect(server.register(file.getPath()));
+		}
+		int threads = Thread.activeCount();
+		
+		byte[] buffer = new byte[SMALL_FILE_SIZE];
+		int incomplete = 0;
+		for ( Socket socket : sockets ) {
+			if ( read(socket, buffer) != file.length() )
+				incomplete++;
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.printf("%d downloads in %d ms, %d incomplete, %d threads in process%n", 
+				count, elapsed / 1000000, incomplete, threads);
+		System.out.println("server: " + server);
+	}
+}
@@ -0,0 +1,170 @@
+package japster2.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import japster2.peer.Const;
+import japster2.peer.NioTransport;
+import japster2.peer.Peer;
+import japster2.peer.PeerNode;
+import japster2.peer.PeerTransport;
+import japster2.peer.QueryRouter;
+import japster2.peer.RmiTransport;
+
+/**
+ * Compares the RMI transport with the NIO transport on the same topology.
+ *
+ * For each transport a line of peers is created in this process, the last peer shares a file and the first peer
+ * searches for it. The benchmark reports:
+ * - throughput: searches are sent back to back and the time until every result arrived is measured. Each search
+ *   is one query per link towards the last peer and one hitquery per link back to the first one.
+ * - search latency: time from sending a single search until its result arrives.
+ * - call latency: round trip time of poll() calls between two neighbors.
+ *
+ * Messages between peers are batched as configured by Peer.setBatching(), a batch size of 1 measures one call 
+ * per message.
+ *
+ * Usage: TransportBenchmark [peers] [searches] [calls] [batch size] [batch delay in us]
+ *
+ * @author jota
+ *
+ */
+public class TransportBenchmark {
+
+	public static final int DEFAULT_PEERS = 4;
+	public static final int DEFAULT_SEARCHES = 5000;
+	public static final int DEFAULT_CALLS = 5000;
+	public static final int LATENCY_SEARCHES = 500;
+	public static final int RMI_BASE_PORT = 9800;
+	public static final int NIO_BASE_PORT = 9900;
+	public static final String FILE_NAME = "bench";
+
+	private static int batchSize = Const.BATCH_SIZE;
+	private static long batchDelay = Const.BATCH_DELAY;
+
+	public static void main(String[] args) throws Exception {
+		int peers = DEFAULT_PEERS;
+		int searches = DEFAULT_SEARCHES;
+		int calls = DEFAULT_CALLS;
+		if ( args.length > 0 )
+			peers = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			searches = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			calls = Integer.parseInt(args[2]);
+		if ( args.length > 3 )
+			batchSize = Integer.parseInt(args[3]);
+		if ( args.length > 4 )
+			batchDelay = Long.parseLong(args[4]);
+
+		System.out.println(peers + " peers in a line, " + searches + " searches, " + calls + " calls" +
+				", batches of " + batchSize + " messages or " + batchDelay + "us");
+		run("rmi", new Peer[peers], RMI_BASE_PORT, searches, calls);
+		run("nio", new Peer[peers], NIO_BASE_PORT, searches, calls);
+		System.exit(0);
+	}
+
+	private static PeerTransport transport(String name) {
+		return name.equals("nio") ? new NioTransport() : new RmiTransport();
+	}
+
+	private static void run(String name, Peer[] peers, int basePort, int searches, int calls) throws Exception {
+		//create a line of peers, only the last one has the file
+		for ( int i = 0; i < peers.length; i++ ) {
+			File dir = Files.createTempDirectory("transport").toFile();
+			dir.deleteOnExit();
+			if ( i == peers.length - 1 ) {
+				File file = new File(dir, FILE_NAME);
+				file.deleteOnExit();
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				raf.setLength(1024);
+				raf.close();
+			}
+			peers[i] = new Peer("127.0.0.1", basePort + i, dir.getPath());
+			peers[i].setQuiet(true);
+			peers[i].setTransport(transport(name));
+			peers[i].setBatching(batchSize, batchDelay);
+			//every search must travel the whole line
+			peers[i].setHitCache(false);
+			peers[i].setQueryRouting(QueryRouter.Mode.OFF);
+			peers[i].exportPeerStub();
+			peers[i].loadFiles();
+			if ( i > 0 )
+				peers[i].sayHello(new InetSocketAddress("127.0.0.1", basePort + i - 1));
+		}
+		Peer origin = peers[0];
+		int messages = 2 * (peers.length - 1);
+
+		//warm up
+		searchAndWait(origin, searches / 10);
+
+		//throughput
+		long start = System.nanoTime();
+		boolean complete = searchAndWait(origin, searches);
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%s: %d searches in %.0f ms, %.0f messages/s%s%n", name, searches, seconds * 1000,
+				searches * messages / seconds, complete ? "" : " (results missing)");
+
+		//latency of a single search
+		long[] latencies = new long[LATENCY_SEARCHES];
+		for ( int i = 0; i < latencies.length; i++ ) {
+			long t = System.nanoTime();
+			searchAndWait(origin, 1);
+			latencies[i] = System.nanoTime() - t;
+		}
+		print(name + ": search latency over " + (peers.length - 1) + " hops", latencies);
+
+		//round trip of a call between neighbors
+		PeerNode neighbor = origin.getPeerNodeCache().get(new InetSocketAddress("127.0.0.1", basePort + 1));
+		long[] rtt = new long[calls];
+		for ( int i = 0; i < calls; i++ ) {
+			long t = System.nanoTime();
+			neighbor.poll(FILE_NAME);
+			rtt[i] = System.nanoTime() - t;
+		}
+		print(name + ": poll() round trip", rtt);
+		System.out.println(name + ": " + origin.getNeighbors().snapshot()[0].getChannel());
+
+		for ( Peer peer : peers )
+			peer.shutdownPeerStub();
+	}
+
+	/**
+	 * Send searches and wait until a result for each of them has arrived
+	 * @param origin peer doing the searches
+	 * @param count number of searches
+	 * @return false if some results did not arrive in time
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private static boolean searchAndWait(Peer origin, int count) throws IOException, InterruptedException {
+		ArrayList<?> results = origin.getSearchResults();
+		int expected;
+		synchronized(results) {
+			expected = results.size() + count;
+		}
+		for ( int i = 0; i < count; i++ )
+			origin.search(FILE_NAME);
+		long deadline = System.nanoTime() + 30_000_000_000L;
+		while ( System.nanoTime() < deadline ) {
+			synchronized(results) {
+				if ( results.size() >= expected )
+					return true;
+			}
+			Thread.onSpinWait();
+		}
+		return false;
+	}
+
+	private static void print(String label, long[] samples) {
+		Arrays.sort(samples);
+		System.out.printf("%s: p50 %d us, p99 %d us%n", label,
+				samples[samples.length / 2] / 1000,
+				samples[(int) (samples.length * 0.99)] / 1000);
+	}
+}
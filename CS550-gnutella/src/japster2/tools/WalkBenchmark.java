@@ -0,0 +1,198 @@
+package japster2.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import japster2.peer.Const;
+import japster2.peer.NioTransport;
+import japster2.peer.Peer;
+import japster2.peer.QueryRouter;
+
+/**
+ * Compares searching with random walkers against flooding queries.
+ *
+ * A network of peers is created in this process, every peer connects to a few random peers created before it so
+ * the first peers end up with more neighbors than the last ones. Each file is shared by a few random peers. The
+ * same searches, for random files from random peers, are then run one at a time in three ways:
+ * - flood: Peer.search(), the query is sent to every neighbor with Const.TTL.
+ * - walk: Peer.walk() with walkers forwarded to uniformly random neighbors.
+ * - biased walk: Peer.walk() with walkers forwarded to neighbors with a probability proportional to their number
+ *   of neighbors.
+ *
+ * For each search the benchmark measures the time until the first result arrives at the origin and, once the
+ * network is quiet, the messages received by all peers (queries, walkers, hitqueries and walkers checking back).
+ * The hit cache is disabled and the routing tables are only used on the last hop (they carry the number of
+ * neighbors of each peer used by the biased walk).
+ *
+ * Usage: WalkBenchmark [peers] [links per peer] [copies per file] [searches] [walkers]
+ *
+ * @author jota
+ *
+ */
+public class WalkBenchmark {
+
+	public static final int DEFAULT_PEERS = 100;
+	public static final int DEFAULT_LINKS = 3;
+	public static final int DEFAULT_COPIES = 3;
+	public static final int DEFAULT_SEARCHES = 100;
+	public static final int FILES = 50;
+	public static final int BASE_PORT = 10500;
+	public static final long SEED = 42;
+
+	//time to wait for the first result of a search
+	public static final long HIT_TIMEOUT = 3000;
+
+	public static void main(String[] args) throws Exception {
+		int count = DEFAULT_PEERS;
+		int links = DEFAULT_LINKS;
+		int copies = DEFAULT_COPIES;
+		int searches = DEFAULT_SEARCHES;
+		int walkers = Const.WALKERS;
+		if ( args.length > 0 )
+			count = Integer.parseInt(args[0]);
+		if ( args.length > 1 )
+			links = Integer.parseInt(args[1]);
+		if ( args.length > 2 )
+			copies = Integer.parseInt(args[2]);
+		if ( args.length > 3 )
+			searches = Integer.parseInt(args[3]);
+		if ( args.length > 4 )
+			walkers = Integer.parseInt(args[4]);
+
+		Random random = new Random(SEED);
+		boolean[][] shares = new boolean[count][FILES];
+		for ( int f = 0; f < FILES; f++ ) {
+			for ( int c = 0; c < copies; c++ )
+				shares[random.nextInt(count)][f] = true;
+		}
+		Peer[] peers = new Peer[count];
+		for ( int i = 0; i < count; i++ ) {
+			peers[i] = createPeer(i, shares[i]);
+			for ( int l = 0; l < Math.min(i, links); l++ )
+				peers[i].sayHello(new InetSocketAddress("127.0.0.1", BASE_PORT + random.nextInt(i)));
+		}
+		//wait for the routing tables
+		Thread.sleep(1500);
+
+		//same searches for every mode
+		int[] origins = new int[searches];
+		String[] names = new String[searches];
+		for ( int s = 0; s < searches; s++ ) {
+			origins[s] = random.nextInt(count);
+			names[s] = fileName(random.nextInt(FILES));
+		}
+
+		System.out.println(count + " peers, " + links + " links per peer, " + copies + " copies per file, " +
+				searches + " searches, " + walkers + " walkers");
+		run("flood", peers, origins, names, 0, false);
+		run("walk", peers, origins, names, walkers, false);
+		run("biased walk", peers, origins, names, walkers, true);
+		System.exit(0);
+	}
+
+	/**
+	 * Run the searches one at a time and print the messages and time to first hit
+	 * @param walkers number of walkers, 0 to flood
+	 */
+	private static void run(String name, Peer[] peers, int[] origins, String[] names, int walkers, boolean bias) throws Exception {
+		for ( Peer peer : peers )
+			peer.setWalkBias(bias);
+
+		long[] messages = new long[origins.length];
+		long[] firstHit = new long[origins.length];
+		int found = 0;
+		for ( int s = 0; s < origins.length; s++ ) {
+			Peer origin = peers[origins[s]];
+			long before = totalMessages(peers);
+			int results = origin.getSearchResults().size();
+
+			long start = System.nanoTime();
+			if ( walkers == 0 )
+				origin.search(names[s]);
+			else
+				origin.walk(names[s], walkers, 1);
+			long deadline = start + HIT_TIMEOUT * 1000000L;
+			while ( origin.getSearchResults().size() == results && System.nanoTime() < deadline )
+				LockSupport.parkNanos(50000);
+			firstHit[s] = System.nanoTime() - start;
+			if ( origin.getSearchResults().size() > results )
+				found++;
+
+			waitForQuiet(peers);
+			messages[s] = totalMessages(peers) - before;
+		}
+
+		System.out.printf("%-11s: %.1f%% found, messages/search avg %d p50 %d max %d, first hit ms avg %.2f p50 %.2f p90 %.2f%n",
+				name, 100.0 * found / origins.length, avg(messages), messages[p(messages, 0.5)], messages[p(messages, 1)],
+				avg(firstHit) / 1e6, firstHit[p(firstHit, 0.5)] / 1e6, firstHit[p(firstHit, 0.9)] / 1e6);
+	}
+
+	private static Peer createPeer(int i, boolean[] shares) throws IOException {
+		File dir = Files.createTempDirectory("walk").toFile();
+		dir.deleteOnExit();
+		for ( int f = 0; f < shares.length; f++ ) {
+			if ( !shares[f] )
+				continue;
+			File file = new File(dir, fileName(f));
+			file.deleteOnExit();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(1024);
+			raf.close();
+		}
+		Peer peer = new Peer("127.0.0.1", BASE_PORT + i, dir.getPath());
+		peer.setQuiet(true);
+		peer.setTransport(new NioTransport());
+		peer.setDispatchWorkers(2, false);
+		peer.setHitCache(false);
+		peer.setQueryRouting(QueryRouter.Mode.LAST_HOP);
+		peer.exportPeerStub();
+		peer.loadFiles();
+		return peer;
+	}
+
+	private static String fileName(int file) {
+		return "file-" + file;
+	}
+
+	private static long totalMessages(Peer[] peers) {
+		long total = 0;
+		for ( Peer peer : peers )
+			total += peer.getMessagesReceived();
+		return total;
+	}
+
+	/**
+	 * Wait until no peer has received a message for a while
+	 */
+	private static void waitForQuiet(Peer[] peers) throws InterruptedException {
+		long last = -1;
+		while ( true ) {
+			Thread.sleep(50);
+			long total = totalMessages(peers);
+			if ( total == last )
+				return;
+			last = total;
+		}
+	}
+
+	private static long avg(long[] samples) {
+		long sum = 0;
+		for ( long sample : samples )
+			sum += sample;
+		return sum / samples.length;
+	}
+
+	/**
+	 * Sort the samples and get the index of a percentile
+	 */
+	private static int p(long[] samples, double percentile) {
+		Arrays.sort(samples);
+		return Math.min(samples.length - 1, (int) (samples.length * percentile));
+	}
+}